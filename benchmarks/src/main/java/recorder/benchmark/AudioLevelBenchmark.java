@@ -0,0 +1,61 @@
+package recorder.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import recorder.AudioMeter;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the audio level computation over a captured audio buffer of half
+ * a second, at once and in windows of the audio meter.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioLevelBenchmark {
+
+    @Param({"48000"})
+    public int sampleRate;
+
+    @Param({"8", "16", "24", "32"})
+    public int sampleSizeInBits;
+
+    @Param({"true", "false"})
+    public boolean bigEndian;
+
+    @Param({"2"})
+    public int channels;
+
+    private AudioFormat format;
+    private byte[] data;
+    private AudioMeter meter;
+    private final float[] levels = new float[2];
+
+    @Setup
+    public void setUp() {
+        format = new AudioFormat(sampleRate, sampleSizeInBits, channels, true, bigEndian);
+        data = new byte[format.getFrameSize() * sampleRate / 2];
+        new Random(0).nextBytes(data);
+        meter = new AudioMeter(format);
+    }
+
+    @Benchmark
+    public float[] computeAudioLevel() {
+        AudioMeter.measure(data, 0, data.length, format, levels);
+        return levels;
+    }
+
+    @Benchmark
+    public float meterWindows() {
+        meter.process(data, 0, data.length);
+        return meter.getLevel(0);
+    }
+}
@@ -0,0 +1,58 @@
+package recorder.benchmark;
+
+import com.sun.jna.platform.win32.WinDef.HWND;
+import org.openjdk.jmh.annotations.*;
+import recorder.CaptureWindow;
+import recorder.InterfaceOperations;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the capture and composition of all windows of a process in
+ * {@link CaptureWindow#capture(HWND[])}. Works only on Windows, the process is
+ * found by a part of the title of one of its windows:
+ * <pre>
+ * java -jar target/benchmarks.jar CaptureBenchmark -p windowTitle="Mozilla Firefox"
+ * </pre>
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureBenchmark {
+
+    @Param({"Mozilla Firefox"})
+    public String windowTitle;
+
+    private CaptureWindow captureWindow;
+    private HWND[] hWnds;
+
+    @Setup
+    public void setUp() {
+        if (!System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+            throw new IllegalStateException("Window capture can be measured only on Windows");
+        }
+        int pid = new InterfaceOperations().getPIDByWindowContainsName(windowTitle);
+        if (pid == 0) {
+            throw new IllegalStateException("No visible window contains \"" + windowTitle + "\"");
+        }
+        hWnds = InterfaceOperations.getHWNDsByPID(pid);
+        captureWindow = new CaptureWindow();
+    }
+
+    @Benchmark
+    public HWND[] enumerateWindows() {
+        return InterfaceOperations.getHWNDsByPID(new InterfaceOperations().getPIDByWindowContainsName(windowTitle));
+    }
+
+    @Benchmark
+    public BufferedImage captureWindows() {
+        return captureWindow.capture(hWnds);
+    }
+}
@@ -0,0 +1,54 @@
+package recorder.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the copy of a captured frame into the video image
+ * ({@code videoGraphics.drawImage} in {@code BrowserGrabber.grabWindow}),
+ * including the conversion to the recorded color depth.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrawImageBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"24", "16", "8"})
+    public int depth;
+
+    private BufferedImage screenCapture;
+    private BufferedImage videoImg;
+    private Graphics2D videoGraphics;
+
+    @Setup
+    public void setUp() throws IOException {
+        Dimension size = RecorderFixture.parseResolution(resolution);
+        screenCapture = RecorderFixture.createSource(size, 1.0).capture();
+        videoImg = RecorderFixture.createVideoImage(size, depth);
+        videoGraphics = RecorderFixture.createVideoGraphics(videoImg);
+    }
+
+    @TearDown
+    public void tearDown() {
+        videoGraphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage drawImage() {
+        videoGraphics.drawImage(screenCapture, 0, 0, null);
+        return videoImg;
+    }
+}
@@ -0,0 +1,89 @@
+package recorder.benchmark;
+
+import org.monte.media.Buffer;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.FormatKeys.MediaType;
+import org.openjdk.jmh.annotations.*;
+import recorder.source.SyntheticFrameSource;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Measures {@code frameEncoder.process} of the TechSmith screen capture codec,
+ * set up as in {@code BrowserRecorder.createMovieWriter}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+    /**
+     * Number of distinct frames, that are encoded in a loop.
+     */
+    static final int FRAMES = 8;
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"24", "16", "8"})
+    public int depth;
+
+    @Param({"15"})
+    public int frameRate;
+
+    @Param({"0.0", "0.1", "1.0"})
+    public double changeRatio;
+
+    private BufferedImage[] frames;
+    private Codec encoder;
+    private Buffer in;
+    private Buffer out;
+    private int frameIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        Dimension size = RecorderFixture.parseResolution(resolution);
+        Format screenFormat = RecorderFixture.screenFormat(depth, frameRate);
+        encoder = RecorderFixture.createEncoder(
+                RecorderFixture.videoInputFormat(screenFormat, size),
+                RecorderFixture.videoOutputFormat(screenFormat, size));
+        frames = createFrames(size, depth, changeRatio);
+        in = new Buffer();
+        in.format = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE);
+        out = new Buffer();
+    }
+
+    /**
+     * Renders a sequence of synthetic frames in the recorded color depth.
+     */
+    static BufferedImage[] createFrames(Dimension size, int depth, double changeRatio) throws IOException {
+        SyntheticFrameSource source = RecorderFixture.createSource(size, changeRatio);
+        BufferedImage[] frames = new BufferedImage[FRAMES];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = RecorderFixture.createVideoImage(size, depth);
+            Graphics2D g = RecorderFixture.createVideoGraphics(frames[i]);
+            g.drawImage(source.capture(), 0, 0, null);
+            g.dispose();
+        }
+        return frames;
+    }
+
+    @Benchmark
+    public Buffer encode() {
+        in.data = frames[frameIndex++ % FRAMES];
+        in.sequenceNumber = frameIndex;
+        encoder.process(in, out);
+        return out;
+    }
+}
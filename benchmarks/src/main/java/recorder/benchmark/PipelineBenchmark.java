@@ -0,0 +1,106 @@
+package recorder.benchmark;
+
+import org.monte.media.Buffer;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.FormatKeys.MediaType;
+import org.monte.media.MovieWriter;
+import org.monte.media.math.Rational;
+import org.openjdk.jmh.annotations.*;
+import recorder.source.SyntheticFrameSource;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Measures a whole frame of the recording pipeline with synthetic frames:
+ * capture, copy into the video image, encoding and writing to disk.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"24", "16", "8"})
+    public int depth;
+
+    @Param({"15"})
+    public int frameRate;
+
+    @Param({"0.0", "0.1", "1.0"})
+    public double changeRatio;
+
+    private SyntheticFrameSource source;
+    private BufferedImage videoImg;
+    private Graphics2D videoGraphics;
+    private Codec encoder;
+    private Format videoOutputFormat;
+    private MovieWriter writer;
+    private File file;
+    private Buffer in;
+    private Buffer out;
+    private long sequenceNumber;
+
+    @Setup
+    public void setUp() throws IOException {
+        Dimension size = RecorderFixture.parseResolution(resolution);
+        Format screenFormat = RecorderFixture.screenFormat(depth, frameRate);
+        videoOutputFormat = RecorderFixture.videoOutputFormat(screenFormat, size);
+        encoder = RecorderFixture.createEncoder(
+                RecorderFixture.videoInputFormat(screenFormat, size), videoOutputFormat);
+        source = RecorderFixture.createSource(size, changeRatio);
+        videoImg = RecorderFixture.createVideoImage(size, depth);
+        videoGraphics = RecorderFixture.createVideoGraphics(videoImg);
+        in = new Buffer();
+        in.format = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE);
+        in.sampleDuration = Rational.valueOf(frameRate).inverse();
+        out = new Buffer();
+        openWriter();
+    }
+
+    private void openWriter() throws IOException {
+        file = File.createTempFile("pipeline-benchmark", ".avi");
+        writer = RecorderFixture.createWriter(file, videoOutputFormat);
+        encoder.reset();
+    }
+
+    private void closeWriter() throws IOException {
+        writer.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        closeWriter();
+        videoGraphics.dispose();
+    }
+
+    @Benchmark
+    public void frame() throws IOException {
+        if (writer.isDataLimitReached()) {
+            closeWriter();
+            openWriter();
+        }
+        videoGraphics.drawImage(source.capture(), 0, 0, null);
+        in.data = videoImg;
+        in.sequenceNumber = sequenceNumber++;
+        encoder.process(in, out);
+        writer.write(0, out);
+    }
+}
@@ -0,0 +1,125 @@
+package recorder.benchmark;
+
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.FormatKeys.MediaType;
+import org.monte.media.MovieWriter;
+import org.monte.media.Registry;
+import org.monte.media.avi.AVIWriter;
+import org.monte.media.color.Colors;
+import org.monte.media.math.Rational;
+import recorder.params.DefaultRecorderParams;
+import recorder.params.RecorderParams;
+import recorder.source.SyntheticFrameSource;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Builds the pieces of the recording pipeline the same way
+ * {@code BrowserRecorder} does, so that every stage can be measured on its own.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+final class RecorderFixture {
+
+    private RecorderFixture() {
+
+    }
+
+    /**
+     * Parses a resolution like "1920x1080".
+     */
+    static Dimension parseResolution(String value) {
+        int x = value.indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException("Resolution must look like 1920x1080: " + value);
+        }
+        return new Dimension(Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x + 1)));
+    }
+
+    static Format fileFormat() {
+        return DefaultRecorderParams.getOnlyVideo().getFileFormat();
+    }
+
+    static Format screenFormat(int depth, int frameRate) {
+        RecorderParams params = DefaultRecorderParams.getOnlyVideo();
+        return params.getScreenFormat().prepend(DepthKey, depth, FrameRateKey, Rational.valueOf(frameRate));
+    }
+
+    static Format videoInputFormat(Format screenFormat, Dimension size) {
+        return screenFormat.prepend(MediaTypeKey, MediaType.VIDEO,
+                EncodingKey, ENCODING_BUFFERED_IMAGE,
+                WidthKey, size.width,
+                HeightKey, size.height,
+                FrameRateKey, screenFormat.get(FrameRateKey));
+    }
+
+    static Format videoOutputFormat(Format screenFormat, Dimension size) {
+        return screenFormat.prepend(
+                FrameRateKey, screenFormat.get(FrameRateKey),
+                MimeTypeKey, fileFormat().get(MimeTypeKey),
+                WidthKey, size.width,
+                HeightKey, size.height);
+    }
+
+    static Codec createEncoder(Format videoInputFormat, Format videoOutputFormat) throws IOException {
+        Codec encoder = Registry.getInstance().getEncoder(videoOutputFormat);
+        if (encoder == null) {
+            throw new IOException("No encoder for format " + videoOutputFormat);
+        }
+        encoder.setInputFormat(videoInputFormat);
+        encoder.setOutputFormat(videoOutputFormat);
+        if (encoder.getOutputFormat() == null) {
+            throw new IOException("Unable to encode video frames in this output format:\n" + videoOutputFormat);
+        }
+        return encoder;
+    }
+
+    /**
+     * Creates the image, that the grabber composes frames into.
+     */
+    static BufferedImage createVideoImage(Dimension size, int depth) throws IOException {
+        switch (depth) {
+            case 24:
+                return new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+            case 16:
+                return new BufferedImage(size.width, size.height, BufferedImage.TYPE_USHORT_555_RGB);
+            case 8:
+                return new BufferedImage(size.width, size.height, BufferedImage.TYPE_BYTE_INDEXED, Colors.createMacColors());
+            default:
+                throw new IOException("Unsupported color depth " + depth);
+        }
+    }
+
+    static Graphics2D createVideoGraphics(BufferedImage videoImg) {
+        Graphics2D videoGraphics = videoImg.createGraphics();
+        videoGraphics.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
+        videoGraphics.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
+        videoGraphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        return videoGraphics;
+    }
+
+    static SyntheticFrameSource createSource(Dimension size, double changeRatio) {
+        return new SyntheticFrameSource(size.width, size.height)
+                .setMotion(SyntheticFrameSource.Motion.SCROLL)
+                .setChangeRate(changeRatio);
+    }
+
+    /**
+     * Creates a movie writer with a single video track.
+     */
+    static MovieWriter createWriter(File file, Format videoOutputFormat) throws IOException {
+        MovieWriter w = Registry.getInstance().getWriter(fileFormat(), file);
+        w.addTrack(videoOutputFormat);
+        if (videoOutputFormat.get(DepthKey) == 8 && w instanceof AVIWriter) {
+            ((AVIWriter) w).setPalette(0, Colors.createMacColors());
+        }
+        return w;
+    }
+}
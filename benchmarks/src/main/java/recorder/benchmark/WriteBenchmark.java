@@ -0,0 +1,99 @@
+package recorder.benchmark;
+
+import org.monte.media.Buffer;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.FormatKeys.MediaType;
+import org.monte.media.MovieWriter;
+import org.monte.media.math.Rational;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Measures {@code MovieWriter.write} of already encoded frames to disk.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"24", "16", "8"})
+    public int depth;
+
+    @Param({"15"})
+    public int frameRate;
+
+    @Param({"0.1", "1.0"})
+    public double changeRatio;
+
+    private Buffer[] encodedFrames;
+    private Format videoOutputFormat;
+    private MovieWriter writer;
+    private File file;
+    private int frameIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        Dimension size = RecorderFixture.parseResolution(resolution);
+        Format screenFormat = RecorderFixture.screenFormat(depth, frameRate);
+        videoOutputFormat = RecorderFixture.videoOutputFormat(screenFormat, size);
+        Codec encoder = RecorderFixture.createEncoder(
+                RecorderFixture.videoInputFormat(screenFormat, size), videoOutputFormat);
+
+        BufferedImage[] frames = EncodeBenchmark.createFrames(size, depth, changeRatio);
+        encodedFrames = new Buffer[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            Buffer in = new Buffer();
+            in.format = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE);
+            in.data = frames[i];
+            in.sampleDuration = Rational.valueOf(frameRate).inverse();
+            encodedFrames[i] = new Buffer();
+            encoder.process(in, encodedFrames[i]);
+            encodedFrames[i].data = ((byte[]) encodedFrames[i].data).clone();
+        }
+        openWriter();
+    }
+
+    private void openWriter() throws IOException {
+        file = File.createTempFile("write-benchmark", ".avi");
+        writer = RecorderFixture.createWriter(file, videoOutputFormat);
+        frameIndex = 0;
+    }
+
+    private void closeWriter() throws IOException {
+        writer.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        closeWriter();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        if (writer.isDataLimitReached()) {
+            closeWriter();
+            openWriter();
+        }
+        writer.write(0, encodedFrames[frameIndex++ % encodedFrames.length]);
+    }
+}
@@ -0,0 +1,155 @@
+package recorder;
+
+import org.monte.media.Buffer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of audio buffers. The audio grabber reads samples into a buffer taken
+ * with {@link #acquire(int)}, the writer hands it back with
+ * {@link #release(Buffer)} after the movie writer has consumed it. <p> New
+ * data arrays have the size of the largest chunk, that has been requested.
+ * A pooled buffer, that is too small for a request, is replaced with a new
+ * one of that size, so after a larger chunk the pool converges to arrays,
+ * that fit every request. In steady state the audio path does not allocate
+ * any arrays, which {@link #getAllocations()} shows. <p> Only buffers, that
+ * the pool has created, are taken back, and a buffer, that is already in
+ * the pool, is not added a second time.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class AudioChunkPool {
+    /**
+     * Default number of pooled buffers. The writer queue rarely holds more
+     * than a few audio chunks of half a second.
+     */
+    public static final int DEFAULT_MAX_POOLED_CHUNKS = 16;
+
+    /**
+     * A buffer of the pool with its data array.
+     */
+    private static final class Chunk extends TimedBuffer {
+        final byte[] array;
+        final AtomicBoolean pooled = new AtomicBoolean();
+
+        Chunk(byte[] array) {
+            this.array = array;
+            this.data = array;
+        }
+    }
+
+    private final BlockingQueue<Chunk> buffers;
+    /**
+     * Size of the largest chunk, that has been requested.
+     */
+    private final AtomicInteger chunkSize = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+
+    public AudioChunkPool() {
+        this(DEFAULT_MAX_POOLED_CHUNKS);
+    }
+
+    public AudioChunkPool(int maxPooledChunks) {
+        this.buffers = new ArrayBlockingQueue<Chunk>(Math.max(1, maxPooledChunks));
+    }
+
+    /**
+     * Takes a buffer out of the pool or creates a new one. The buffer has no
+     * flags and a {@code byte[]} of at least {@code size} bytes in
+     * {@code data}, the content of the array and the time are undefined.
+     */
+    public TimedBuffer acquire(int size) {
+        acquisitions.incrementAndGet();
+        int chunk;
+        while ((chunk = chunkSize.get()) < size && !chunkSize.compareAndSet(chunk, size)) {
+            // another thread has raised the chunk size
+        }
+        Chunk buf = buffers.poll();
+        if (buf != null) {
+            buf.pooled.set(false);
+        }
+        if (buf != null && buf.array.length >= size) {
+            buf.clearFlags();
+            buf.data = buf.array;
+            buf.offset = 0;
+            buf.length = 0;
+            buf.header = null;
+            buf.sampleCount = 1;
+            return buf;
+        }
+        // A buffer, that is too small, is dropped and replaced with this one
+        int length = Math.max(size, chunkSize.get());
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(length);
+        return new Chunk(new byte[length]);
+    }
+
+    /**
+     * Hands a buffer back to the pool. Buffers, that don't come from the
+     * pool or are already in the pool, are ignored. If the pool is full,
+     * the buffer is dropped.
+     */
+    public void release(Buffer buf) {
+        if (!(buf instanceof Chunk)) {
+            return;
+        }
+        Chunk chunk = (Chunk) buf;
+        if (chunk.pooled.compareAndSet(false, true)) {
+            if (buffers.offer(chunk)) {
+                releases.incrementAndGet();
+            } else {
+                chunk.pooled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers taken from the pool.
+     */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Returns the number of data arrays, that the pool has allocated.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Returns the number of bytes, that the pool has allocated.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Returns the number of buffers, that have been taken back into the pool.
+     */
+    public long getReleases() {
+        return releases.get();
+    }
+
+    /**
+     * Returns the number of buffers in the pool.
+     */
+    public int getPooledChunks() {
+        return buffers.size();
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public void clear() {
+        buffers.clear();
+    }
+}
@@ -0,0 +1,426 @@
+package recorder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Measures the level of captured PCM samples over short windows. <p> Samples
+ * are fed with {@link #process(byte[], int, int)} as they are read from the
+ * line, in pieces of any size. After every window the meter publishes the
+ * root-mean-square level and the peak of each channel. The peak hold keeps
+ * the highest peak for the hold time, then falls back to the current peak.
+ * <p> Signed and unsigned PCM with 8, 16, 24 and 32 bits in both byte orders
+ * and 32-bit float PCM are supported, with any number of channels. Samples
+ * are reduced to 16 bits and summed in integer arithmetic. <p> One thread may
+ * process samples while other threads read the levels.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class AudioMeter {
+    /**
+     * Default length of a measuring window in milliseconds.
+     */
+    public static final int DEFAULT_WINDOW = 50;
+    /**
+     * Default peak hold time in milliseconds.
+     */
+    public static final int DEFAULT_PEAK_HOLD = 1500;
+
+    private static final int S8 = 0, S16LE = 1, S16BE = 2, S24LE = 3, S24BE = 4, S32LE = 5, S32BE = 6, F32LE = 7, F32BE = 8;
+
+    private final int layout;
+    private final int channels;
+    private final int frameSize;
+    private final int flip;
+    private final boolean silenceBug;
+    private final int windowFrames;
+    private final long peakHoldFrames;
+
+    // window accumulators, used by the processing thread only
+    private final long[] sums;
+    private final int[] peaks;
+    private int frames;
+    private byte[] partialFrame;
+    private int partialLength;
+
+    // published values
+    private final float[] levels;
+    private final float[] peakLevels;
+    private final float[] peakHolds;
+    private final long[] peakHoldStart;
+    private long processedFrames;
+    private volatile long windows;
+
+    public AudioMeter(AudioFormat format) {
+        this(format, DEFAULT_WINDOW, DEFAULT_PEAK_HOLD);
+    }
+
+    /**
+     * @param format - format of the samples
+     * @param window - length of a measuring window in milliseconds
+     * @param peakHold - peak hold time in milliseconds
+     * @throws IllegalArgumentException if the format is not PCM
+     */
+    public AudioMeter(AudioFormat format, int window, int peakHold) {
+        this.layout = layoutOf(format);
+        this.channels = Math.max(1, format.getChannels());
+        this.frameSize = channels * bytesPerSample(layout);
+        if (format.getFrameSize() > 0 && format.getFrameSize() != frameSize) {
+            throw new IllegalArgumentException("Unsupported frame size " + format);
+        }
+        this.flip = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding()) ? 0x80 : 0;
+        this.silenceBug = layout == S8 && flip == 0;
+        float rate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        this.windowFrames = Math.max(1, (int) (rate * window / 1000));
+        this.peakHoldFrames = Math.max(0, (long) (rate * peakHold / 1000));
+        this.sums = new long[channels];
+        this.peaks = new int[channels];
+        this.partialFrame = new byte[frameSize];
+        this.levels = new float[channels];
+        this.peakLevels = new float[channels];
+        this.peakHolds = new float[channels];
+        this.peakHoldStart = new long[channels];
+    }
+
+    /**
+     * Returns true if the meter supports the format.
+     */
+    public static boolean isSupported(AudioFormat format) {
+        try {
+            layoutOf(format);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static int layoutOf(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        boolean big = format.isBigEndian();
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            switch (bits) {
+                case 8:
+                    return S8;
+                case 16:
+                    return big ? S16BE : S16LE;
+                case 24:
+                    return big ? S24BE : S24LE;
+                case 32:
+                    return big ? S32BE : S32LE;
+            }
+        } else if ("PCM_FLOAT".equals(encoding.toString()) && bits == 32) {
+            return big ? F32BE : F32LE;
+        }
+        throw new IllegalArgumentException("Unsupported audio format " + format);
+    }
+
+    /**
+     * Measures samples. The samples may start or end in the middle of a frame.
+     */
+    public void process(byte[] data, int offset, int length) {
+        if (partialLength > 0) {
+            int n = Math.min(length, frameSize - partialLength);
+            System.arraycopy(data, offset, partialFrame, partialLength, n);
+            partialLength += n;
+            offset += n;
+            length -= n;
+            if (partialLength < frameSize) {
+                return;
+            }
+            partialLength = 0;
+            measure(partialFrame, 0, 1);
+        }
+        int count = length / frameSize;
+        while (count > 0) {
+            int n = Math.min(count, windowFrames - frames);
+            measure(data, offset, n);
+            offset += n * frameSize;
+            count -= n;
+        }
+        int rest = length % frameSize;
+        if (rest > 0) {
+            System.arraycopy(data, offset, partialFrame, 0, rest);
+            partialLength = rest;
+        }
+    }
+
+    /**
+     * Adds frames of the current window, publishes the levels when the
+     * window is complete.
+     */
+    private void measure(byte[] d, int off, int n) {
+        accumulate(d, off, n, layout, channels, flip, silenceBug, sums, peaks);
+        frames += n;
+        processedFrames += n;
+        if (frames >= windowFrames) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        for (int c = 0; c < channels; c++) {
+            float peak = peaks[c] / 32768f;
+            levels[c] = (float) (Math.sqrt((double) sums[c] / frames) / 32768);
+            peakLevels[c] = peak;
+            if (peak >= peakHolds[c] || processedFrames - peakHoldStart[c] > peakHoldFrames) {
+                peakHolds[c] = peak;
+                peakHoldStart[c] = processedFrames;
+            }
+            sums[c] = 0;
+            peaks[c] = 0;
+        }
+        frames = 0;
+        windows++;
+    }
+
+    /**
+     * Adds the squares and the peaks of {@code n} frames to the accumulators.
+     * Every sample is reduced to a signed 16-bit value. Each layout has its
+     * own loop, so the loops contain no branches except of the channel
+     * rotation. 16-bit mono and stereo, the formats of the sound cards, take
+     * the unrolled loops of {@link #accumulate16}.
+     */
+    private static void accumulate(byte[] d, int i, int n, int layout, int channels, int flip,
+                                   boolean silenceBug, long[] sums, int[] peaks) {
+        if ((layout == S16LE || layout == S16BE) && channels <= 2) {
+            accumulate16(d, i, n, layout == S16BE ? 0 : 1, channels, flip, sums, peaks);
+            return;
+        }
+        int end = i + n * channels * bytesPerSample(layout);
+        int c = 0;
+        int v;
+        switch (layout) {
+            case S8:
+                for (; i < end; i++) {
+                    v = (byte) (d[i] ^ flip);
+                    if (silenceBug && v == -128) {
+                        v = 0;
+                    }
+                    v <<= 8;
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            case S16LE:
+                for (; i < end; i += 2) {
+                    v = ((byte) (d[i + 1] ^ flip) << 8) | (d[i] & 0xff);
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            case S16BE:
+                for (; i < end; i += 2) {
+                    v = ((byte) (d[i] ^ flip) << 8) | (d[i + 1] & 0xff);
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            case S24LE:
+            case S32LE:
+                int step = bytesPerSample(layout);
+                for (i += step - 2; i < end; i += step) {
+                    v = ((byte) (d[i + 1] ^ flip) << 8) | (d[i] & 0xff);
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            case S24BE:
+            case S32BE:
+                for (; i < end; i += bytesPerSample(layout)) {
+                    v = ((byte) (d[i] ^ flip) << 8) | (d[i + 1] & 0xff);
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            case F32LE:
+                for (; i < end; i += 4) {
+                    v = floatToShort((d[i + 3] << 24) | ((d[i + 2] & 0xff) << 16) | ((d[i + 1] & 0xff) << 8) | (d[i] & 0xff));
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+            default:
+                for (; i < end; i += 4) {
+                    v = floatToShort((d[i] << 24) | ((d[i + 1] & 0xff) << 16) | ((d[i + 2] & 0xff) << 8) | (d[i + 3] & 0xff));
+                    sums[c] += v * v;
+                    peaks[c] = Math.max(peaks[c], Math.abs(v));
+                    if (++c == channels) {
+                        c = 0;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds 16-bit mono or stereo frames. Four samples are handled per
+     * iteration, the squares and peaks are kept in local variables of each
+     * channel and are stored once, so the loop has no channel rotation and no
+     * array stores. A square fits into an int, the sum of two squares is
+     * added as a long.
+     *
+     * @param hi - offset of the high byte in a sample, 0 for big endian
+     */
+    private static void accumulate16(byte[] d, int i, int n, int hi, int channels, int flip,
+                                     long[] sums, int[] peaks) {
+        int lo = 1 - hi;
+        int end = i + n * channels * 2;
+        int end4 = end - 7;
+        long sum0 = 0, sum1 = 0;
+        int peak0 = 0, peak1 = 0;
+        int a, b, e, f;
+        if (channels == 1) {
+            for (; i < end4; i += 8) {
+                a = ((byte) (d[i + hi] ^ flip) << 8) | (d[i + lo] & 0xff);
+                b = ((byte) (d[i + 2 + hi] ^ flip) << 8) | (d[i + 2 + lo] & 0xff);
+                e = ((byte) (d[i + 4 + hi] ^ flip) << 8) | (d[i + 4 + lo] & 0xff);
+                f = ((byte) (d[i + 6 + hi] ^ flip) << 8) | (d[i + 6 + lo] & 0xff);
+                sum0 += (long) (a * a) + (b * b);
+                sum1 += (long) (e * e) + (f * f);
+                peak0 = Math.max(peak0, Math.max(Math.abs(a), Math.abs(b)));
+                peak1 = Math.max(peak1, Math.max(Math.abs(e), Math.abs(f)));
+            }
+        } else {
+            for (; i < end4; i += 8) {
+                a = ((byte) (d[i + hi] ^ flip) << 8) | (d[i + lo] & 0xff);
+                b = ((byte) (d[i + 2 + hi] ^ flip) << 8) | (d[i + 2 + lo] & 0xff);
+                e = ((byte) (d[i + 4 + hi] ^ flip) << 8) | (d[i + 4 + lo] & 0xff);
+                f = ((byte) (d[i + 6 + hi] ^ flip) << 8) | (d[i + 6 + lo] & 0xff);
+                sum0 += (long) (a * a) + (e * e);
+                sum1 += (long) (b * b) + (f * f);
+                peak0 = Math.max(peak0, Math.max(Math.abs(a), Math.abs(e)));
+                peak1 = Math.max(peak1, Math.max(Math.abs(b), Math.abs(f)));
+            }
+        }
+        // the rest is less than four samples and starts with the first channel
+        for (int c = 0; i < end; i += 2) {
+            a = ((byte) (d[i + hi] ^ flip) << 8) | (d[i + lo] & 0xff);
+            if (c == 0) {
+                sum0 += a * a;
+                peak0 = Math.max(peak0, Math.abs(a));
+            } else {
+                sum1 += a * a;
+                peak1 = Math.max(peak1, Math.abs(a));
+            }
+            if (++c == channels) {
+                c = 0;
+            }
+        }
+        if (channels == 1) {
+            sums[0] += sum0 + sum1;
+            peaks[0] = Math.max(peaks[0], Math.max(peak0, peak1));
+        } else {
+            sums[0] += sum0;
+            sums[1] += sum1;
+            peaks[0] = Math.max(peaks[0], peak0);
+            peaks[1] = Math.max(peaks[1], peak1);
+        }
+    }
+
+    private static int bytesPerSample(int layout) {
+        switch (layout) {
+            case S8:
+                return 1;
+            case S16LE:
+            case S16BE:
+                return 2;
+            case S24LE:
+            case S24BE:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    private static int floatToShort(int bits) {
+        float value = Float.intBitsToFloat(bits);
+        if (value != value) {
+            return 0;
+        }
+        return (int) (Math.max(-1f, Math.min(1f, value)) * 32767);
+    }
+
+    /**
+     * Measures a whole buffer as a single window.
+     *
+     * @param levels - receives the root-mean-square level of each channel
+     */
+    public static void measure(byte[] data, int offset, int length, AudioFormat format, float[] levels) {
+        int layout = layoutOf(format);
+        int channels = Math.max(1, format.getChannels());
+        int n = length / (channels * bytesPerSample(layout));
+        long[] sums = new long[channels];
+        int[] peaks = new int[channels];
+        int flip = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding()) ? 0x80 : 0;
+        accumulate(data, offset, n, layout, channels, flip, layout == S8 && flip == 0, sums, peaks);
+        for (int c = 0; c < Math.min(channels, levels.length); c++) {
+            levels[c] = n == 0 ? 0 : (float) (Math.sqrt((double) sums[c] / n) / 32768);
+        }
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns the number of completed windows.
+     */
+    public long getWindowCount() {
+        return windows;
+    }
+
+    /**
+     * Returns the root-mean-square level of the last window.
+     *
+     * @return A value in the range [0.0,1.0] or AudioSystem.NOT_SPECIFIED if
+     * the channel does not exist or no window has been completed
+     */
+    public float getLevel(int channel) {
+        return get(levels, channel);
+    }
+
+    /**
+     * Returns the peak of the last window.
+     *
+     * @return A value in the range [0.0,1.0] or AudioSystem.NOT_SPECIFIED
+     */
+    public float getPeak(int channel) {
+        return get(peakLevels, channel);
+    }
+
+    /**
+     * Returns the highest peak during the peak hold time.
+     *
+     * @return A value in the range [0.0,1.0] or AudioSystem.NOT_SPECIFIED
+     */
+    public float getPeakHold(int channel) {
+        return get(peakHolds, channel);
+    }
+
+    private float get(float[] values, int channel) {
+        if (windows == 0 || channel < 0 || channel >= channels) {
+            return AudioSystem.NOT_SPECIFIED;
+        }
+        return values[channel];
+    }
+}
@@ -29,21 +29,37 @@ import org.monte.media.avi.AVIWriter;
 import org.monte.media.beans.AbstractStateModel;
 import org.monte.media.color.Colors;
 import org.monte.media.converter.CodecChain;
-import org.monte.media.converter.ScaleImageCodec;
+import org.monte.media.io.ByteArrayImageOutputStream;
 import org.monte.media.math.Rational;
 import org.monte.media.quicktime.QuickTimeWriter;
+import recorder.io.AVIRecovery;
+import recorder.io.ChannelImageOutputStream;
+import recorder.io.DirectBufferPool;
+import recorder.io.IndexingMovieWriter;
+import recorder.io.SeekIndex;
+import recorder.io.SegmentPlaylist;
+import recorder.io.SyncPolicy;
+import recorder.metrics.RecorderMetrics;
+import recorder.metrics.RecorderMetricsSnapshot;
 import recorder.params.RecorderParams;
+import recorder.source.FrameSource;
+import recorder.source.WindowFrameSource;
 
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
 import javax.sound.sampled.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import static java.lang.Math.max;
@@ -81,7 +97,11 @@ public class BrowserRecorder extends AbstractStateModel {
     /**
      * The writer for the movie file.
      */
-    private MovieWriter w;
+    private volatile MovieWriter w;
+    /**
+     * The current file with its writer.
+     */
+    private RolloverManager.MovieFile movieFile;
     /**
      * The start time of the recording.
      */
@@ -91,36 +111,70 @@ public class BrowserRecorder extends AbstractStateModel {
      */
     protected volatile long recordingStopTime;
     /**
-     * The start time of the current movie file.
+     * The start and stop time of the recording on the monotonic clock of
+     * {@link System#nanoTime()}. All media time stamps are relative to the
+     * start time.
+     */
+    private long recordingStartNanos;
+    private volatile long recordingStopNanos;
+    /**
+     * The start time of the current movie file in nanoseconds.
      */
-    private long fileStartTime;
+    private long fileStartNanos;
+    /**
+     * Number of media bytes in the current movie file.
+     */
+    private long fileBytes;
+    /**
+     * Opens and closes the movie files in the background.
+     */
+    private RolloverManager rolloverManager;
+    /**
+     * Set by the writer, when the current file is full. The encoder encodes
+     * the next frame as key frame, so that the next file can start with it.
+     */
+    private volatile boolean keyFrameRequested;
+    /**
+     * True if the current file is full and waits for a key frame. Only used
+     * by the writer.
+     */
+    private boolean rolloverPending;
     /**
      * Timer for screen captures.
      */
-    private ScheduledThreadPoolExecutor screenCaptureTimer;
+    private CaptureScheduler screenCaptureTimer;
+    /**
+     * Range of the screen capture frame rate, the frame rate of the screen
+     * format if 0.
+     */
+    private double minFrameRate;
+    private double maxFrameRate;
     /**
      * Thread for audio capture.
      */
     private ScheduledThreadPoolExecutor audioCaptureTimer;
     /**
-     * Thread for file writing.
+     * Stage, that encodes the captured video frames.
+     */
+    private PipelineStage<Buffer> encoderStage;
+    /**
+     * Stage, that writes the encoded video frames and the audio samples
+     * into the movie file.
      */
-    private volatile Thread writerThread;
+    private PipelineStage<Buffer> writerStage;
     /**
-     * Object for thread synchronization.
+     * Counters of the screen capture.
      */
-    private ArrayBlockingQueue<Buffer> writerQueue;
+    private StageStatistics captureStatistics;
     /**
      * This codec encodes a video frame.
      */
     private Codec frameEncoder;
     /**
-     * outputTime and ffrDuration are needed for conversion of the video stream
-     * from variable frame rate to fixed frame rate.
+     * Converts the video stream from variable frame rate to fixed frame rate,
+     * null if the file format supports a variable frame rate.
      */
-    // TODO FIXME - Do this with a CodecChain.
-    private Rational outputTime;
-    private Rational ffrDuration;
+    private FixedFrameRateCodec frameRateConverter;
     private ArrayList<File> recordedFiles;
     /**
      * Id of the video track.
@@ -135,15 +189,104 @@ public class BrowserRecorder extends AbstractStateModel {
      */
     private AudioGrabber audioGrabber;
     private BrowserGrabber browserGrabber;
-    private ScheduledFuture audioFuture;
-    private ScheduledFuture screenFuture;
-    private int browserProcessID;
+    private Future<?> audioFuture;
+    /**
+     * Engine, whose threads run the recording, null if the recorder runs its
+     * own threads.
+     */
+    private final RecordingEngine engine;
+    /**
+     * Pool, that encodes, scales and converts the bands of the frames. The
+     * pool of the engine, or a pool of the recorder, whose threads end, while
+     * the recorder is idle.
+     */
+    private final ForkJoinPool bandPool;
+    /**
+     * Creates the threads of the writer, the audio reader and the file
+     * closer, null for platform threads.
+     */
+    private final ThreadFactory waitingThreadFactory;
+    /**
+     * The source of the video frames.
+     */
+    private FrameSource frameSource;
+    /**
+     * Pool of the captured and composed frame images.
+     */
+    private FramePool framePool;
+    /**
+     * Pool of the audio buffers.
+     */
+    private final AudioChunkPool audioChunkPool = new AudioChunkPool();
+    /**
+     * Size of the tiles for change detection, 0 if disabled.
+     */
+    private int changeDetectionTileSize;
+    /**
+     * Counters and latencies of the recording.
+     */
+    private final RecorderMetrics metrics = new RecorderMetrics();
+    /**
+     * Size of the buffers of the buffered output, 0 if the movie writer
+     * writes the file itself.
+     */
+    private final int outputBufferSize;
+    /**
+     * Pool of the buffers of the buffered output, that are reused by the
+     * streams of all movie files.
+     */
+    private final DirectBufferPool outputBufferPool = new DirectBufferPool();
+    /**
+     * When the buffered output forces a movie file to the storage device.
+     */
+    private final SyncPolicy syncPolicy;
+    private final long syncInterval;
+    /**
+     * Maximal time in milliseconds of a file in crash-safe mode, 0 if
+     * crash-safe mode is disabled.
+     */
+    private final long segmentDuration;
+    private final boolean seekIndex;
+    private final boolean playlist;
+    private final int segmentRetention;
+    /**
+     * The segments of the recording, null if there is no playlist and no
+     * retention limit.
+     */
+    private volatile SegmentPlaylist segments;
+    /**
+     * Time in milliseconds, that ring mode keeps in memory, 0 if the
+     * recording goes to files.
+     */
+    private final long ringDuration;
+    private final int ringBufferSize;
+    private final boolean parallelEncoding;
+    private final ScaleQuality scaleQuality;
+    private final boolean grayscale;
+    /**
+     * The last seconds of the recording in ring mode, null otherwise.
+     */
+    private volatile FrameRing ring;
+    /**
+     * True from the request of a key frame for the ring until the key frame
+     * arrives.
+     */
+    private boolean ringKeyFramePending;
     /**
      * Where to store the movie.
      */
     protected File movieFolder;
     private long maxRecordingTime = 60 * 60 * 1000;
     private long maxFileSize = Long.MAX_VALUE;
+    /**
+     * Fraction of the maximal file size, at which the next file is opened.
+     */
+    private static final double PREPARE_AHEAD = 0.9;
+    /**
+     * Time in nanoseconds before the maximal recording time of a file, at
+     * which the next file is opened.
+     */
+    private static final long PREPARE_LEAD_TIME = TimeUnit.SECONDS.toNanos(5);
     /**
      * Audio mixer used for audio input. Set to null for default audio input.
      */
@@ -155,26 +298,148 @@ public class BrowserRecorder extends AbstractStateModel {
      * @param recorderParams - instance of RecorderParams class
      */
     public BrowserRecorder(RecorderParams recorderParams) throws IOException, AWTException {
+        this(recorderParams, null);
+    }
+
+    /**
+     * Creates a browser recorder, that runs on the threads of an engine.
+     *
+     * @param recorderParams - instance of RecorderParams class
+     * @param engine - the engine, null for own threads
+     */
+    BrowserRecorder(RecorderParams recorderParams, RecordingEngine engine) throws IOException, AWTException {
+        this.engine = engine;
+        this.bandPool = engine != null ? engine.getBandPool()
+                : RecordingEngine.newBandPool("BrowserRecorder-Band", Runtime.getRuntime().availableProcessors());
+        this.waitingThreadFactory = recorderParams.isVirtualThreads() ? VirtualThreads.newThreadFactory("BrowserRecorder-") : null;
         this.fileFormat = recorderParams.getFileFormat();
         this.screenFormat = recorderParams.getScreenFormat();
         this.audioFormat = recorderParams.getAudioFormat();
         this.recordedFiles = new ArrayList<File>();
         this.captureArea = recorderParams.getCaptureArea();
+        this.framePool = new FramePool(recorderParams.getFramePoolSize());
+        this.changeDetectionTileSize = recorderParams.getChangeDetectionTileSize();
+        this.minFrameRate = recorderParams.getMinFrameRate();
+        this.maxFrameRate = recorderParams.getMaxFrameRate();
+        this.outputBufferSize = recorderParams.getOutputBufferSize();
+        this.syncPolicy = recorderParams.getSyncPolicy();
+        this.syncInterval = recorderParams.getSyncInterval();
+        this.segmentDuration = recorderParams.getSegmentDuration();
+        this.seekIndex = recorderParams.isSeekIndex();
+        this.playlist = recorderParams.isPlaylist();
+        this.segmentRetention = recorderParams.getSegmentRetention();
+        this.ringDuration = recorderParams.getRingDuration();
+        this.ringBufferSize = recorderParams.getRingBufferSize();
+        this.parallelEncoding = recorderParams.isParallelEncoding();
+        this.scaleQuality = recorderParams.getScaleQuality();
+        this.grayscale = recorderParams.isGrayscale();
+        this.frameSource = recorderParams.getFrameSource();
+        if (this.frameSource == null) {
+            WindowFrameSource windowFrameSource = new WindowFrameSource(framePool, recorderParams.getWindowRefreshInterval());
+            windowFrameSource.setCaptureThreads(recorderParams.getCaptureThreads());
+            this.frameSource = windowFrameSource;
+        }
+        if (this.frameSource instanceof WindowFrameSource) {
+            WindowFrameSource windowFrameSource = (WindowFrameSource) this.frameSource;
+            if (engine != null) {
+                windowFrameSource.setExecutors(bandPool, engine.getClock(), engine.getEncodePool());
+            }
+            metrics.setWindowCaptureTime(windowFrameSource.getWindowCaptureLatency());
+        }
         setMovieFolder(recorderParams.getMovieFolder());
     }
 
     /**
      * Set processID of windows, that needs to be recording.
      * Recording will go for all visible windows of that process.
+     * Has no effect, if frames come from a custom {@link FrameSource}.
      * @param processID - processID
      */
     public void setCaptureWindowProcessID(int processID) {
-        this.browserProcessID = processID;
-        if(browserGrabber != null) {
-            browserGrabber.setWindowProcessID();
+        if (frameSource instanceof WindowFrameSource) {
+            ((WindowFrameSource) frameSource).setProcessID(processID);
         }
     }
 
+    /**
+     * Returns the source of the video frames.
+     */
+    public FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    /**
+     * Returns the pool of the frame images.
+     */
+    public FramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * Returns the pool of the audio buffers.
+     */
+    public AudioChunkPool getAudioChunkPool() {
+        return audioChunkPool;
+    }
+
+    /**
+     * Returns the number of video frames, that were the same as the previous
+     * frame and therefore were not encoded as new content.
+     */
+    public long getSkippedFrameCount() {
+        return metrics.getFramesSkipped();
+    }
+
+    /**
+     * Returns the metrics of the recording. The recorder registers them as
+     * an MBean while it records.
+     */
+    public RecorderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a copy of the current metrics of the recording.
+     */
+    public RecorderMetricsSnapshot getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Returns the scheduler of the screen captures with the achieved frame
+     * rate, the dropped ticks and the capture latency, null if the recorder
+     * has not been started yet.
+     */
+    public CaptureScheduler getCaptureScheduler() {
+        return screenCaptureTimer;
+    }
+
+    /**
+     * Returns the counters of the screen capture stage, null if the recorder
+     * has not been started yet.
+     */
+    public StageStatistics getCaptureStatistics() {
+        return captureStatistics;
+    }
+
+    /**
+     * Returns the counters of the video encoding stage, null if the recorder
+     * has not been started yet.
+     */
+    public StageStatistics getEncoderStatistics() {
+        PipelineStage<Buffer> stage = encoderStage;
+        return stage == null ? null : stage.getStatistics();
+    }
+
+    /**
+     * Returns the counters of the file writing stage, null if the recorder
+     * has not been started yet.
+     */
+    public StageStatistics getWriterStatistics() {
+        PipelineStage<Buffer> stage = writerStage;
+        return stage == null ? null : stage.getStatistics();
+    }
+
     public void setMovieFolder(File movieFolder) {
         this.movieFolder = movieFolder;
         if (this.movieFolder == null) {
@@ -186,34 +451,222 @@ public class BrowserRecorder extends AbstractStateModel {
         }
     }
 
-    protected MovieWriter createMovieWriter() throws IOException {
-        File f = createMovieFile(fileFormat);
-        recordedFiles.add(f);
+    /**
+     * Creates a movie writer for a file with a video track and, if audio is
+     * recorded, an audio track. <p> Called in the background, while the
+     * previous file is still written.
+     *
+     * @param file - the movie file
+     * @return the writer
+     * @throws IOException if the file can't be created, or if a seek index
+     * is written and no writer of the file format writes to a stream
+     */
+    protected MovieWriter createMovieWriter(File file) throws IOException {
+        ImageOutputStream out = outputBufferSize > 0 || seekIndex ? openStream(file) : null;
+        MovieWriter mw = out != null ? openWriter(out) : null;
+        if (mw == null) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (seekIndex) {
+                throw new IOException("No writer for format " + fileFormat + " writes the seek index");
+            }
+            mw = Registry.getInstance().getWriter(fileFormat, file);
+        }
+        if (mw == null) {
+            throw new IOException("No writer for format " + fileFormat);
+        }
+        try {
+            addTracks(mw);
+            if (segmentDuration > 0 && mw instanceof AVIWriter) {
+                writeRecoveryHeader(file);
+            }
+            if (seekIndex) {
+                mw = new IndexingMovieWriter(mw, out, file, videoTrack, mw instanceof AVIWriter,
+                        outputBufferSize > 0 ? syncPolicy : SyncPolicy.NONE);
+            }
+        } catch (IOException e) {
+            closeQuietly(mw, out);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(mw, out);
+            throw e;
+        }
+        return mw;
+    }
+
+    /**
+     * Closes a movie writer, that failed to start, and its stream. The
+     * failure of the start is reported instead of failures to close.
+     */
+    private static void closeQuietly(MovieWriter mw, ImageOutputStream out) {
+        try {
+            mw.close();
+        } catch (Exception e) {
+            // The writer has no tracks or a broken file
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The writer has closed the stream already
+            }
+        }
+    }
+
+    /**
+     * Adds the video track and, if audio is recorded, the audio track to a
+     * movie writer.
+     */
+    private void addTracks(MovieWriter mw) throws IOException {
+        int track = mw.addTrack(getVideoOutputFormat());
+        if (audioFormat != null) {
+            mw.addTrack(audioFormat);
+        }
+
+        // TODO FIXME - There should be no need for format-specific code.
+        if (screenFormat.get(DepthKey) == 8) {
+            if (mw instanceof AVIWriter) {
+                AVIWriter aviw = (AVIWriter) mw;
+                aviw.setPalette(track, getPalette());
+            } else if (mw instanceof QuickTimeWriter) {
+                QuickTimeWriter qtw = (QuickTimeWriter) mw;
+                qtw.setVideoColorTable(track, getPalette());
+            }
+        }
+    }
+
+    /**
+     * Returns the palette of an 8 bit recording.
+     */
+    private IndexColorModel getPalette() {
+        return grayscale ? DepthConverter.createGrayColors() : Colors.createMacColors();
+    }
+
+    /**
+     * Writes the header file of a movie file for {@link AVIRecovery}. The
+     * header file is a closed AVI file with the tracks of the movie file
+     * and a dummy sample per track. It is deleted, when the movie file has
+     * been closed.
+     */
+    private void writeRecoveryHeader(File file) throws IOException {
+        AVIWriter header = new AVIWriter(AVIRecovery.getHeaderFile(file));
+        try {
+            addTracks(header);
+            byte[] sample = new byte[1];
+            for (int i = 0; i < header.getTrackCount(); i++) {
+                header.writeSample(i, sample, 0, sample.length, true);
+            }
+        } finally {
+            header.close();
+        }
+    }
+
+    /**
+     * Called after a movie file has been closed, or discarded.
+     */
+    private void movieFileClosed(File file) {
+        File header = AVIRecovery.getHeaderFile(file);
+        if (header.exists() && !header.delete()) {
+            header.deleteOnExit();
+        }
+        // The seek index of a discarded file
+        File index = SeekIndex.getIndexFile(file);
+        if (!file.exists() && index.exists() && !index.delete()) {
+            index.deleteOnExit();
+        }
+        SegmentPlaylist s = segments;
+        if (s != null) {
+            try {
+                s.segmentClosed(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-        MovieWriter mw = w = Registry.getInstance().getWriter(fileFormat, f);
+    /**
+     * Adds the current file to the segments, before it is closed.
+     */
+    private void segmentFinished(RolloverManager.MovieFile movieFile) {
+        SegmentPlaylist s = segments;
+        if (s != null) {
+            s.segmentFinished(movieFile.getFile(), movieFile.getWriter().getDuration(videoTrack).doubleValue());
+        }
+    }
+
+    /**
+     * Returns the playlist of the segments of the last recording, null if
+     * no playlist has been written.
+     */
+    public File getPlaylistFile() {
+        SegmentPlaylist s = segments;
+        return s != null ? s.getFile() : null;
+    }
+
+    /**
+     * Opens the stream of a movie file. With an output buffer, the file is
+     * written through a {@link ChannelImageOutputStream}, that syncs the
+     * file according to the sync policy, when the writer closes it.
+     */
+    private ImageOutputStream openStream(File file) throws IOException {
+        if (outputBufferSize > 0) {
+            return new ChannelImageOutputStream(file, outputBufferSize, syncPolicy, syncInterval,
+                    metrics.getOutputStatistics(), outputBufferPool, waitingThreadFactory,
+                    engine != null ? engine.getIOPool() : null);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't overwrite " + file);
+        }
+        return new FileImageOutputStream(file);
+    }
 
-        // Create the video encoder
-        Rational videoRate = screenFormat.get(FrameRateKey);
-        ffrDuration = videoRate.inverse();
-        Format videoInputFormat = screenFormat.prepend(MediaTypeKey, MediaType.VIDEO,
+    /**
+     * Creates a movie writer of the file format, that writes to a stream.
+     *
+     * @return the writer, null if no writer of the file format takes a stream
+     */
+    private MovieWriter openWriter(ImageOutputStream out) {
+        for (String writerClass : Registry.getInstance().getWriterClasses(fileFormat)) {
+            try {
+                return (MovieWriter) Class.forName(writerClass).getConstructor(ImageOutputStream.class).newInstance(out);
+            } catch (Exception e) {
+                // The writer can't write to a stream, try the next one
+            }
+        }
+        return null;
+    }
+
+    private Format getVideoInputFormat() {
+        return screenFormat.prepend(MediaTypeKey, MediaType.VIDEO,
                 EncodingKey, ENCODING_BUFFERED_IMAGE,
                 WidthKey, captureArea.width,
                 HeightKey, captureArea.height,
-                FrameRateKey, videoRate);
-        Format videoOutputFormat = screenFormat.prepend(
-                FrameRateKey, videoRate,
+                FrameRateKey, screenFormat.get(FrameRateKey));
+    }
+
+    private Format getVideoOutputFormat() {
+        return screenFormat.prepend(
+                FrameRateKey, screenFormat.get(FrameRateKey),
                 MimeTypeKey, fileFormat.get(MimeTypeKey),
                 WidthKey, captureArea.width,
                 HeightKey, captureArea.height);
+    }
 
-        videoTrack = w.addTrack(videoOutputFormat);
-        if (audioFormat != null) {
-            audioTrack = w.addTrack(audioFormat);
-        }
-
-        Codec encoder = Registry.getInstance().getEncoder(w.getFormat(videoTrack));
+    /**
+     * Creates the video encoder for the format of the video track. The
+     * encoder is used for all files of the recording, a file starts with a
+     * key frame.
+     */
+    private void createEncoder(MovieWriter mw) throws IOException {
+        Format videoInputFormat = getVideoInputFormat();
+        Format videoOutputFormat = getVideoOutputFormat();
+        Format trackFormat = mw.getFormat(videoTrack);
+        Codec encoder = parallelEncoding && ParallelTechSmithCodec.supports(trackFormat)
+                ? new ParallelTechSmithCodec(bandPool) : Registry.getInstance().getEncoder(trackFormat);
         if (encoder == null) {
-            throw new IOException("No encoder for format " + w.getFormat(videoTrack));
+            throw new IOException("No encoder for format " + trackFormat);
         }
         frameEncoder = encoder;
         frameEncoder.setInputFormat(videoInputFormat);
@@ -227,25 +680,33 @@ public class BrowserRecorder extends AbstractStateModel {
         // performing the frame encoding.
         if (!videoInputFormat.intersectKeys(WidthKey, HeightKey).matches(
                 videoOutputFormat.intersectKeys(WidthKey, HeightKey))) {
-            ScaleImageCodec sic = new ScaleImageCodec();
+            FastScaleImageCodec sic = new FastScaleImageCodec(scaleQuality, bandPool);
             sic.setInputFormat(videoInputFormat);
             sic.setOutputFormat(videoOutputFormat.intersectKeys(WidthKey, HeightKey).append(videoInputFormat));
             frameEncoder = new CodecChain(sic, frameEncoder);
         }
 
-        // TODO FIXME - There should be no need for format-specific code.
-        if (screenFormat.get(DepthKey) == 8) {
-            if (w instanceof AVIWriter) {
-                AVIWriter aviw = (AVIWriter) w;
-                aviw.setPalette(videoTrack, Colors.createMacColors());
-            } else if (w instanceof QuickTimeWriter) {
-                QuickTimeWriter qtw = (QuickTimeWriter) w;
-                qtw.setVideoColorTable(videoTrack, Colors.createMacColors());
-            }
+        // Encode every frame once and repeat it for the missing frame slots,
+        // if the file format does not support a variable frame rate. The
+        // frame slots continue over all files of the recording.
+        if (trackFormat.get(FixedFrameRateKey, false)) {
+            frameRateConverter = new FixedFrameRateCodec(frameEncoder, screenFormat.get(FrameRateKey), 0);
+            frameEncoder = frameRateConverter;
+        } else {
+            frameRateConverter = null;
         }
+    }
 
-        fileStartTime = System.currentTimeMillis();
-        return mw;
+    /**
+     * Makes a movie file the current file of the recording.
+     */
+    private void startFile(RolloverManager.MovieFile movieFile) {
+        recordedFiles.add(movieFile.getFile());
+        this.movieFile = movieFile;
+        w = movieFile.getWriter();
+        fileStartNanos = System.nanoTime();
+        fileBytes = 0;
+        rolloverPending = false;
     }
 
     /**
@@ -276,8 +737,127 @@ public class BrowserRecorder extends AbstractStateModel {
 
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd_'at'_HH.mm.ss");
 
-        return new File(movieFolder,//
-                "BrowserRecording_" + dateFormat.format(new Date()) + "." + Registry.getInstance().getExtension(fileFormat));
+        String name = "BrowserRecording_" + dateFormat.format(new Date());
+        String extension = "." + Registry.getInstance().getExtension(fileFormat);
+        File file = new File(movieFolder, name + extension);
+        // Files of a recording, that rolls over quickly, get the same date
+        for (int i = 2; file.exists(); i++) {
+            file = new File(movieFolder, name + "_" + i + extension);
+        }
+        return file;
+    }
+
+    /**
+     * Opens the first file of a recording to files.
+     */
+    private void startFiles() throws IOException {
+        ring = null;
+        RolloverManager.WriterFactory writerFactory = new RolloverManager.WriterFactory() {
+            public File createMovieFile() throws IOException {
+                return BrowserRecorder.this.createMovieFile(fileFormat);
+            }
+
+            public MovieWriter createMovieWriter(File file) throws IOException {
+                return BrowserRecorder.this.createMovieWriter(file);
+            }
+
+            public void movieFileClosed(File file) {
+                BrowserRecorder.this.movieFileClosed(file);
+            }
+        };
+        rolloverManager = engine != null ? new RolloverManager(writerFactory, engine.getIOPool())
+                : new RolloverManager(writerFactory, waitingThreadFactory);
+        segments = null;
+        try {
+            startFile(rolloverManager.openNext());
+            if (segmentDuration > 0 && (playlist || segmentRetention > 0)) {
+                segments = new SegmentPlaylist(playlist ? SegmentPlaylist.getPlaylistFile(movieFile.getFile()) : null,
+                        segmentRetention, getMaxSegmentDuration());
+            }
+            createEncoder(w);
+        } catch (IOException e) {
+            stopWriter();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the longest duration of a segment in milliseconds. A segment
+     * ends with the first key frame after the segment duration. The writer
+     * requests the key frame, when it gets the first frame after the segment
+     * duration, so the frames, that are queued for the writer and the
+     * encoder, are written before it, at most a key-frame interval.
+     */
+    private long getMaxSegmentDuration() {
+        double frameRate = screenFormat.get(FrameRateKey).doubleValue();
+        double minRate = minFrameRate > 0 ? minFrameRate : frameRate;
+        int queuedFrames = getWriterQueueSize() + BrowserGrabber.FRAME_SLOTS + 1;
+        int keyFrameInterval = screenFormat.get(KeyFrameIntervalKey, queuedFrames);
+        int frames = keyFrameInterval > 0 ? Math.min(keyFrameInterval, queuedFrames) : queuedFrames;
+        return segmentDuration + (long) Math.ceil(frames * 1000 / minRate);
+    }
+
+    /**
+     * Returns the number of buffers, that the writer queue holds.
+     */
+    private int getWriterQueueSize() {
+        return screenFormat.get(FrameRateKey).intValue() + 1;
+    }
+
+    /**
+     * Sets up ring mode. The formats of the tracks are taken from a writer,
+     * that is never written.
+     */
+    private void startRing() throws IOException {
+        segments = null;
+        MovieWriter probe = openWriter(new ByteArrayImageOutputStream());
+        if (probe == null) {
+            throw new IOException("Ring mode needs a writer for streams of format " + fileFormat);
+        }
+        try {
+            addTracks(probe);
+            createEncoder(probe);
+        } finally {
+            probe.close();
+        }
+        ring = new FrameRing(videoTrack, ringDuration, ringBufferSize);
+        ringKeyFramePending = false;
+    }
+
+    /**
+     * Returns the last seconds of the recording in ring mode, null if the
+     * recording goes to files.
+     */
+    public FrameRing getFrameRing() {
+        return ring;
+    }
+
+    /**
+     * Writes the last seconds of the recording in ring mode into a movie
+     * file. Can be called while recording and after the recording has been
+     * stopped, until the next start.
+     *
+     * @param file - the movie file
+     * @return the number of samples written
+     * @throws IllegalStateException if the recorder is not in ring mode
+     */
+    public int dump(File file) throws IOException {
+        FrameRing r = ring;
+        if (r == null) {
+            throw new IllegalStateException("The recorder is not in ring mode");
+        }
+        FrameRing.Snapshot snapshot = r.snapshot();
+        if (snapshot.size() == 0) {
+            throw new IOException("No frames recorded yet");
+        }
+        MovieWriter mw = createMovieWriter(file);
+        try {
+            snapshot.writeTo(mw);
+        } finally {
+            mw.close();
+            movieFileClosed(file);
+        }
+        return snapshot.size();
     }
 
     /**
@@ -313,12 +893,19 @@ public class BrowserRecorder extends AbstractStateModel {
     public void start() throws IOException {
         stop();
         recordedFiles.clear();
-        createMovieWriter();
+        metrics.reset();
+        keyFrameRequested = false;
+        if (ringDuration > 0) {
+            startRing();
+        } else {
+            startFiles();
+        }
         try {
             recordingStartTime = System.currentTimeMillis();
+            recordingStartNanos = System.nanoTime();
             recordingStopTime = Long.MAX_VALUE;
+            recordingStopNanos = Long.MAX_VALUE;
 
-            outputTime = new Rational(0, 0);
             startWriter();
             try {
                 startScreenCapture();
@@ -341,6 +928,8 @@ public class BrowserRecorder extends AbstractStateModel {
                     throw ioe;
                 }
             }
+            metrics.setStages(captureStatistics, writerStage.getStatistics());
+            metrics.register();
             setState(State.RECORDING, null);
         } catch (IOException e) {
             stop();
@@ -352,16 +941,68 @@ public class BrowserRecorder extends AbstractStateModel {
      * Starts screen capture.
      */
     private void startScreenCapture() throws AWTException, IOException {
-        screenCaptureTimer = new ScheduledThreadPoolExecutor(1);
-        int delay = max(1, (int) (1000 / screenFormat.get(FrameRateKey).doubleValue()));
-        browserGrabber = new BrowserGrabber(this, recordingStartTime);
-        screenFuture = screenCaptureTimer.scheduleAtFixedRate(browserGrabber, delay, delay, TimeUnit.MILLISECONDS);
-        browserGrabber.setFuture(screenFuture);
-        browserGrabber.setWindowProcessID();
+        double frameRate = screenFormat.get(FrameRateKey).doubleValue();
+        double minRate = minFrameRate > 0 ? minFrameRate : frameRate;
+        double maxRate = maxFrameRate > 0 ? maxFrameRate : frameRate;
+        final BrowserGrabber grabber = browserGrabber = new BrowserGrabber(this, recordingStartNanos);
+        captureStatistics = grabber.getStatistics();
+        encoderStage = new PipelineStage<Buffer>("BrowserRecorder-Encoder", BrowserGrabber.FRAME_SLOTS,
+                engine != null ? engine.getEncodePool() : null) {
+            @Override
+            protected void process(Buffer buf) throws Exception {
+                BufferedImage frame = (BufferedImage) buf.data;
+                try {
+                    write(buf);
+                } finally {
+                    grabber.recycle(frame);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable t) {
+                t.printStackTrace();
+                recordingFailed(t.getMessage() == null ? t.toString() : t.getMessage());
+            }
+        };
+        encoderStage.start();
+        screenCaptureTimer = new CaptureScheduler(browserGrabber, "BrowserRecorder-Capture",
+                frameRate, Math.min(minRate, maxRate), max(minRate, maxRate),
+                engine != null ? engine.getClock() : null, engine != null ? engine.getEncodePool() : null);
+        browserGrabber.setScheduler(screenCaptureTimer);
+        screenCaptureTimer.start();
+    }
+
+    /**
+     * Format of the captured video frames.
+     */
+    private static final Format VIDEO_FORMAT = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE);
+
+    /**
+     * A video image, that is handed from the grabber to the encoder, and
+     * back.
+     */
+    private static class VideoFrame {
+        final BufferedImage image;
+        final Graphics2D graphics;
+        final TimedBuffer buffer = new TimedBuffer();
+        /**
+         * The changes of the image, null if change detection is disabled.
+         */
+        DirtyTiles dirtyTiles;
+
+        VideoFrame(BufferedImage image, Graphics2D graphics) {
+            this.image = image;
+            this.graphics = graphics;
+        }
     }
 
     private static class BrowserGrabber implements Runnable {
 
+        /**
+         * Number of video images. The grabber composes the next frame into
+         * one image, while the encoder reads the other one.
+         */
+        static final int FRAME_SLOTS = 2;
         /**
          * Holds the screen capture.
          */
@@ -369,32 +1010,44 @@ public class BrowserRecorder extends AbstractStateModel {
         private BrowserRecorder recorder;
         private Rectangle captureArea;
         /**
-         *
+         * Where the frames come from.
+         */
+        private FrameSource frameSource;
+        private FramePool framePool;
+        /**
+         * Detects unchanged frames, null if change detection is disabled.
          */
-        private CaptureWindow captureWindow;
-        private int windowProcessID;
+        private FrameDiffer frameDiffer;
         /**
-         * Holds the composed image (screen capture and super-imposed mouse
-         * cursor). This is the image that is written into the video track of
-         * the file.
+         * Holds the composed images (screen capture and super-imposed mouse
+         * cursor) with the graphics objects for drawing into them and the
+         * buffers, that hand them to the encoder. These are the images that
+         * are written into the video track of the file.
          */
-        private BufferedImage videoImg;
+        private final Map<BufferedImage, VideoFrame> videoFrames = new IdentityHashMap<BufferedImage, VideoFrame>();
         /**
-         * Graphics object for drawing into {@code videoImg}.
+         * Video frames, that are not used by the encoder.
          */
-        private Graphics2D videoGraphics;
+        private final BlockingQueue<VideoFrame> freeVideoFrames = new ArrayBlockingQueue<VideoFrame>(FRAME_SLOTS);
+        private final StageStatistics statistics = new StageStatistics("BrowserRecorder-Capture", null);
         /**
-         * The time the previous screen frame was captured.
+         * The time the previous screen frame was captured in nanoseconds
+         * since the start of the recording.
          */
-        private Rational prevScreenCaptureTime;
+        private long prevScreenCaptureTime;
         private int videoTrack;
         private long startTime;
         private volatile long stopTime = Long.MAX_VALUE;
-        private ScheduledFuture future;
+        private CaptureScheduler scheduler;
         private long sequenceNumber;
+        /**
+         * Converts the captures to 8 bit images, null if the images are
+         * drawn with Java2D.
+         */
+        private DepthConverter depthConverter;
 
-        public void setFuture(ScheduledFuture future) {
-            this.future = future;
+        public void setScheduler(CaptureScheduler scheduler) {
+            this.scheduler = scheduler;
         }
 
         public synchronized void setStopTime(long newValue) {
@@ -405,32 +1058,71 @@ public class BrowserRecorder extends AbstractStateModel {
             return this.stopTime;
         }
 
+        /**
+         * Returns true if the time in nanoseconds of {@link System#nanoTime()}
+         * is before the stop time.
+         */
+        private boolean isBeforeStopTime(long time) {
+            long stop = getStopTime();
+            return stop == Long.MAX_VALUE || time - stop < 0;
+        }
+
+        /**
+         * @param startTime - start of the recording in nanoseconds of {@link System#nanoTime()}
+         */
         public BrowserGrabber(BrowserRecorder recorder, long startTime) throws AWTException, IOException {
             this.recorder = recorder;
             this.captureArea = recorder.captureArea;
-            this.captureWindow = new CaptureWindow();
+            this.frameSource = recorder.frameSource;
+            this.framePool = recorder.framePool;
             this.videoTrack = recorder.videoTrack;
-            this.prevScreenCaptureTime = new Rational(startTime, 1000);
+            this.prevScreenCaptureTime = 0;
             this.startTime = startTime;
 
             Format screenFormat = recorder.screenFormat;
-            if (screenFormat.get(DepthKey, 24) == 24) {
-                videoImg = new BufferedImage(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_INT_RGB);
-            } else if (screenFormat.get(DepthKey) == 16) {
-                videoImg = new BufferedImage(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_USHORT_555_RGB);
-            } else if (screenFormat.get(DepthKey) == 8) {
-                videoImg = new BufferedImage(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_BYTE_INDEXED, Colors.createMacColors());
-            } else {
-                throw new IOException("Unsupported color depth " + screenFormat.get(DepthKey));
+            for (int i = 0; i < FRAME_SLOTS; i++) {
+                BufferedImage videoImg;
+                if (screenFormat.get(DepthKey, 24) == 24) {
+                    videoImg = framePool.acquire(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_INT_RGB);
+                } else if (screenFormat.get(DepthKey) == 16) {
+                    videoImg = framePool.acquire(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_USHORT_555_RGB);
+                } else if (screenFormat.get(DepthKey) == 8) {
+                    videoImg = new BufferedImage(this.captureArea.width, this.captureArea.height, BufferedImage.TYPE_BYTE_INDEXED, recorder.getPalette());
+                } else {
+                    throw new IOException("Unsupported color depth " + screenFormat.get(DepthKey));
+                }
+                Graphics2D videoGraphics = videoImg.createGraphics();
+                videoGraphics.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
+                videoGraphics.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
+                videoGraphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+                if (i == 0) {
+                    depthConverter = DepthConverter.create(videoImg, recorder.bandPool);
+                }
+                VideoFrame frame = new VideoFrame(videoImg, videoGraphics);
+                videoFrames.put(videoImg, frame);
+                freeVideoFrames.add(frame);
+            }
+            if (recorder.changeDetectionTileSize > 0) {
+                frameDiffer = new FrameDiffer(this.captureArea.width, this.captureArea.height, recorder.changeDetectionTileSize);
+                for (VideoFrame frame : videoFrames.values()) {
+                    frame.dirtyTiles = frameDiffer.createDirtyTiles();
+                }
             }
-            videoGraphics = videoImg.createGraphics();
-            videoGraphics.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
-            videoGraphics.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
-            videoGraphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
         }
 
-        public void setWindowProcessID() {
-            this.windowProcessID = recorder.browserProcessID;
+        public StageStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * Hands a video image back to the grabber, after the encoder has
+         * finished with it.
+         */
+        public void recycle(BufferedImage videoImg) {
+            VideoFrame frame = videoFrames.get(videoImg);
+            if (frame != null) {
+                freeVideoFrames.offer(frame);
+            }
         }
 
         public void run() {
@@ -444,14 +1136,16 @@ public class BrowserRecorder extends AbstractStateModel {
 
         /**
          * Grabs a screen, generates video images with pending mouse captures
-         * and writes them into the movie file.
+         * and hands them to the encoder. If the encoder still holds all video
+         * images, the frame is dropped and the next frame lasts longer.
          */
         private void grabWindow() throws IOException, InterruptedException {
             // Capture the screen
             BufferedImage previousScreenCapture = screenCapture;
-            long timeBeforeCapture = System.currentTimeMillis();
+            long timeBeforeCapture = System.nanoTime();
             try {
-                screenCapture = captureWindow.capture(InterfaceOperations.getHWNDsByPID(windowProcessID));
+                screenCapture = frameSource.capture();
+                recorder.metrics.recordCaptureTime(System.nanoTime() - timeBeforeCapture);
             } catch (IllegalMonitorStateException e) {
                 //IOException ioe= new IOException("Could not grab screen");
                 //ioe.initCause(e);
@@ -459,34 +1153,71 @@ public class BrowserRecorder extends AbstractStateModel {
                 // Screen capture failed due to a synchronization error
                 return;
             }
-            long timeAfterCapture = System.currentTimeMillis();
+            long timeAfterCapture = System.nanoTime() - startTime;
             if (previousScreenCapture == null) {
                 previousScreenCapture = screenCapture;
             }
-            videoGraphics.drawImage(previousScreenCapture, 0, 0, null);
-
-            Buffer buf = new Buffer();
-            buf.format = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE);
+            boolean writeFrame = isBeforeStopTime(startTime + prevScreenCaptureTime);
+            VideoFrame frame = writeFrame ? freeVideoFrames.poll() : null;
+            if (frame != null && (depthConverter == null || !depthConverter.convert(previousScreenCapture, frame.image))) {
+                frame.graphics.drawImage(previousScreenCapture, 0, 0, null);
+            }
+            if (previousScreenCapture != screenCapture) {
+                frameSource.release(previousScreenCapture);
+            }
 
-            if (prevScreenCaptureTime.compareTo(new Rational(getStopTime(), 1000)) < 0) {
+            if (writeFrame && frame == null) {
+                statistics.recordDropped();
+            } else if (writeFrame) {
+                BufferedImage videoImg = frame.image;
+                TimedBuffer buf = frame.buffer;
+                buf.clearFlags();
+                buf.format = VIDEO_FORMAT;
                 buf.data = videoImg;
-                buf.sampleDuration = new Rational(timeAfterCapture, 1000).subtract(prevScreenCaptureTime);
-                buf.timeStamp = prevScreenCaptureTime.subtract(new Rational(startTime, 1000));
+                buf.time = prevScreenCaptureTime;
+                buf.duration = timeAfterCapture - prevScreenCaptureTime;
+                buf.timeStamp = null;
+                buf.sampleDuration = null;
                 buf.track = videoTrack;
                 buf.sequenceNumber = sequenceNumber++;
-                buf.header = null; // no mouse position has been recorded for this frame
-                recorder.write(buf);
-                prevScreenCaptureTime = new Rational(timeAfterCapture, 1000);
+                buf.header = null;
+                if (frameDiffer != null) {
+                    DirtyTiles dirtyTiles = frameDiffer.compare(videoImg, frame.dirtyTiles);
+                    if (dirtyTiles.isEmpty()) {
+                        buf.setFlag(SAME_DATA);
+                        recorder.metrics.frameSkipped();
+                    }
+                    buf.header = dirtyTiles;
+                }
+                recorder.encoderStage.put(buf);
+                prevScreenCaptureTime = timeAfterCapture;
             }
+            statistics.record(System.nanoTime() - timeBeforeCapture);
 
-            if (timeBeforeCapture > getStopTime()) {
-                future.cancel(false);
+            if (!isBeforeStopTime(timeBeforeCapture) && timeBeforeCapture != getStopTime()) {
+                scheduler.cancel();
             }
         }
 
+        /**
+         * Releases the video images. The encoder must not use them any more.
+         */
         public void close() {
-            videoGraphics.dispose();
-            videoImg.flush();
+            for (VideoFrame frame : videoFrames.values()) {
+                frame.graphics.dispose();
+                if (frame.image.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
+                    frame.image.flush();
+                } else {
+                    framePool.release(frame.image);
+                }
+            }
+            videoFrames.clear();
+            freeVideoFrames.clear();
+            if (screenCapture != null) {
+                frameSource.release(screenCapture);
+                screenCapture = null;
+            }
+            frameSource.close();
         }
     }
 
@@ -494,12 +1225,31 @@ public class BrowserRecorder extends AbstractStateModel {
      * Starts audio capture.
      */
     private void startAudioCapture() throws LineUnavailableException {
-        audioCaptureTimer = new ScheduledThreadPoolExecutor(1);
-        audioGrabber = new AudioGrabber(mixer, audioFormat, audioTrack, recordingStartTime, writerQueue);
-        audioFuture = audioCaptureTimer.scheduleWithFixedDelay(audioGrabber, 0, 10, TimeUnit.MILLISECONDS);
+        // On the threads of an engine, the grabber must not block a pool
+        // thread while it waits for the samples
+        audioGrabber = new AudioGrabber(mixer, audioFormat, audioTrack, recordingStartNanos, writerStage, audioChunkPool,
+                metrics, engine == null);
+        if (engine != null) {
+            audioFuture = engine.schedulePeriodic(audioGrabber, 10, TimeUnit.MILLISECONDS);
+        } else {
+            audioCaptureTimer = waitingThreadFactory != null
+                    ? new ScheduledThreadPoolExecutor(1, waitingThreadFactory)
+                    : new ScheduledThreadPoolExecutor(1);
+            audioFuture = audioCaptureTimer.scheduleWithFixedDelay(audioGrabber, 0, 10, TimeUnit.MILLISECONDS);
+        }
         audioGrabber.setFuture(audioFuture);
     }
 
+    /**
+     * Returns the meter of the captured audio with the levels, peaks and peak
+     * holds of all channels, null if no audio is captured or the audio format
+     * can't be measured.
+     */
+    public AudioMeter getAudioMeter() {
+        AudioGrabber ag = audioGrabber;
+        return ag != null ? ag.getMeter() : null;
+    }
+
     /**
      * Returns the audio level of the left channel or of the mono channel.
      *
@@ -527,26 +1277,54 @@ public class BrowserRecorder extends AbstractStateModel {
     }
 
     /**
-     * This runnable grabs audio samples and enqueues them into the specified
-     * BlockingQueue. This runnable must be called twice a second.
+     * This runnable grabs audio samples and puts them into the specified
+     * writer stage. This runnable must be called twice a second.
      */
     private static class AudioGrabber implements Runnable {
 
         final private TargetDataLine line;
-        final private BlockingQueue<Buffer> queue;
+        final private PipelineStage<Buffer> stage;
+        final private AudioChunkPool chunkPool;
+        final private RecorderMetrics metrics;
         final private int audioTrack;
         final private long startTime;
+        final private AudioFormat lineFormat;
+        final private Format bufferFormat;
+        final private int bufferSize;
+        final private Rational sampleDuration;
+        final private Rational frameRate;
         private volatile long stopTime = Long.MAX_VALUE;
         private long totalSampleCount;
-        private ScheduledFuture future;
+        private Future<?> future;
         private long sequenceNumber;
-        private float audioLevelLeft = AudioSystem.NOT_SPECIFIED;
-        private float audioLevelRight = AudioSystem.NOT_SPECIFIED;
+        /**
+         * Measures the captured samples, null if the format is not supported.
+         */
+        private final AudioMeter meter;
+        /**
+         * Number of bytes, that are read and measured at once.
+         */
+        private final int readSize;
+        private final int frameSize;
+        /**
+         * True if a run waits until a buffer is full, false if it reads the
+         * available samples and fills the buffer over several runs.
+         */
+        private final boolean blocking;
+        private TimedBuffer pendingBuffer;
+        private int pendingCount;
 
-        public AudioGrabber(Mixer mixer, Format audioFormat, int audioTrack, long startTime, BlockingQueue<Buffer> queue)
-                throws LineUnavailableException {
+        /**
+         * @param startTime - start of the recording in nanoseconds of {@link System#nanoTime()}
+         * @param blocking - true if a run waits until a buffer is full
+         */
+        public AudioGrabber(Mixer mixer, Format audioFormat, int audioTrack, long startTime, PipelineStage<Buffer> stage,
+                            AudioChunkPool chunkPool, RecorderMetrics metrics, boolean blocking) throws LineUnavailableException {
             this.audioTrack = audioTrack;
-            this.queue = queue;
+            this.blocking = blocking;
+            this.stage = stage;
+            this.chunkPool = chunkPool;
+            this.metrics = metrics;
             this.startTime = startTime;
             DataLine.Info lineInfo = new DataLine.Info(
                     TargetDataLine.class, AudioFormatKeys.toAudioFormat(audioFormat));
@@ -574,14 +1352,37 @@ public class BrowserRecorder extends AbstractStateModel {
             }
             line.open();
             line.start();
+
+            lineFormat = line.getFormat();
+            bufferFormat = fromAudioFormat(lineFormat).append(SilenceBugKey, true);
+            // For even sample rates, we select a buffer size that can
+            // hold half a second of audio. This allows audio/video interlave
+            // twice a second, as recommended for AVI and QuickTime movies.
+            // For odd sample rates, we have to select a buffer size that can hold
+            // one second of audio.
+            int size = lineFormat.getFrameSize() * (int) lineFormat.getSampleRate();
+            if (((int) lineFormat.getSampleRate() & 1) == 0) {
+                size /= 2;
+            }
+            bufferSize = size;
+            sampleDuration = Rational.valueOf(lineFormat.getSampleRate()).inverse();
+            frameRate = Rational.valueOf(lineFormat.getFrameRate());
+            frameSize = lineFormat.getSampleSizeInBits() / 8 * lineFormat.getChannels();
+            meter = AudioMeter.isSupported(lineFormat) ? new AudioMeter(lineFormat) : null;
+            readSize = Math.min(bufferSize, lineFormat.getFrameSize()
+                    * Math.max(1, (int) (lineFormat.getFrameRate() * AudioMeter.DEFAULT_WINDOW / 1000)));
         }
 
-        public void setFuture(ScheduledFuture future) {
+        public void setFuture(Future<?> future) {
             this.future = future;
         }
 
         public void close() {
             line.close();
+            if (pendingBuffer != null) {
+                chunkPool.release(pendingBuffer);
+                pendingBuffer = null;
+            }
         }
 
         public synchronized void setStopTime(long newValue) {
@@ -593,134 +1394,123 @@ public class BrowserRecorder extends AbstractStateModel {
         }
 
         public void run() {
-            Buffer buf = new Buffer();
-            AudioFormat lineFormat = line.getFormat();
-            buf.format = fromAudioFormat(lineFormat).append(SilenceBugKey, true);
-
-            // For even sample rates, we select a buffer size that can
-            // hold half a second of audio. This allows audio/video interlave
-            // twice a second, as recommended for AVI and QuickTime movies.
-            // For odd sample rates, we have to select a buffer size that can hold
-            // one second of audio.
-            int bufferSize = lineFormat.getFrameSize() * (int) lineFormat.getSampleRate();
-            if (((int) lineFormat.getSampleRate() & 1) == 0) {
-                bufferSize /= 2;
+            if (pendingBuffer == null) {
+                pendingBuffer = chunkPool.acquire(bufferSize);
+                pendingBuffer.format = bufferFormat;
+                pendingCount = 0;
+            }
+            byte bdat[] = (byte[]) pendingBuffer.data;
+            // A full line buffer has lost samples since the previous read
+            if (line.available() >= line.getBufferSize()) {
+                metrics.audioUnderrun();
+            }
+            // Read in small pieces, so that the audio levels stay current
+            int count = pendingCount;
+            int readCount = 0;
+            while (count < bufferSize) {
+                int size = Math.min(readSize, bufferSize - count);
+                if (!blocking) {
+                    size = Math.min(size, line.available() / frameSize * frameSize);
+                    if (size == 0) {
+                        break;
+                    }
+                }
+                int n = line.read(bdat, count, size);
+                if (n <= 0) {
+                    break;
+                }
+                if (meter != null) {
+                    meter.process(bdat, count, n);
+                }
+                count += n;
+                readCount += n;
+            }
+            metrics.audioRead(readCount);
+            pendingCount = count;
+            boolean stopping = getStopTime() != Long.MAX_VALUE;
+            // Without blocking, the line is drained after the stop time, when
+            // it has no more samples
+            boolean drained = !blocking && stopping && readCount == 0;
+            if (count < bufferSize) {
+                if (blocking && !stopping) {
+                    metrics.audioUnderrun();
+                }
+                // Without blocking, the buffer is filled over several runs
+                if (!blocking && !drained
+                        && !(stopping && totalSampleCount + count / frameSize >= getStopSampleCount())) {
+                    return;
+                }
+            }
+            TimedBuffer buf = pendingBuffer;
+            pendingBuffer = null;
+            pendingCount = 0;
+            if (drained) {
+                future.cancel(false);
             }
-
-            byte bdat[] = new byte[bufferSize];
-            buf.data = bdat;
-            Rational sampleRate = Rational.valueOf(lineFormat.getSampleRate());
-            Rational frameRate = Rational.valueOf(lineFormat.getFrameRate());
-            int count = line.read(bdat, 0, bdat.length);
             if (count > 0) {
-                computeAudioLevel(bdat, count, lineFormat);
-                buf.sampleCount = count / (lineFormat.getSampleSizeInBits() / 8 * lineFormat.getChannels());
-                buf.sampleDuration = sampleRate.inverse();
+                buf.sampleCount = count / frameSize;
+                buf.sampleDuration = sampleDuration;
                 buf.offset = 0;
                 buf.sequenceNumber = sequenceNumber++;
                 buf.length = count;
                 buf.track = audioTrack;
-                buf.timeStamp = new Rational(totalSampleCount, 1).divide(frameRate);
+                buf.timeStamp = null;
 
                 // Check if recording should be stopped
-                Rational stopTS = new Rational(getStopTime() - startTime, 1000);
-                if (buf.timeStamp.add(buf.sampleDuration.multiply(buf.sampleCount)).compareTo(stopTS) > 0) {
+                long stopSampleCount = getStopSampleCount();
+                if (totalSampleCount + buf.sampleCount > stopSampleCount) {
                     // we recorderd too much => truncate the buffer
-                    buf.sampleCount = Math.max(0, (int) Math.ceil(stopTS.subtract(buf.timeStamp).divide(buf.sampleDuration).floatValue()));
-                    buf.length = buf.sampleCount * (lineFormat.getSampleSizeInBits() / 8 * lineFormat.getChannels());
+                    buf.sampleCount = (int) Math.max(0, stopSampleCount - totalSampleCount);
+                    buf.length = buf.sampleCount * frameSize;
 
                     future.cancel(false);
                 }
+                buf.time = getSampleTime(totalSampleCount);
+                buf.duration = getSampleTime(totalSampleCount + buf.sampleCount) - buf.time;
+                totalSampleCount += buf.sampleCount;
                 if (buf.sampleCount > 0) {
                     try {
-                        queue.put(buf);
+                        stage.put(buf);
+                        return;
                     } catch (InterruptedException ex) {
                         // nothing to do
                     }
                 }
-                totalSampleCount += buf.sampleCount;
             }
+            chunkPool.release(buf);
         }
 
         /**
-         * Calculates the root-mean-square average of continuous samples. For
-         * four samples, the formula looks like this:
-         * <pre>
-         * rms = sqrt( (x0^2 + x1^2 + x2^2 + x3^2) / 4)
-         * </pre> Resources:
-         * http://www.jsresources.org/faq_audio.html#calculate_power
-         *
-         * @param data - byte array with data
-         * @param length - array lenght
-         * @param format - audio format
+         * Returns the time of a sample in nanoseconds since the start of the
+         * recording.
          */
-        private void computeAudioLevel(byte[] data, int length, AudioFormat format) {
-            audioLevelLeft = audioLevelRight = AudioSystem.NOT_SPECIFIED;
-            if (format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)) {
-                switch (format.getSampleSizeInBits()) {
-                    case 8:
-                        switch (format.getChannels()) {
-                            case 1:
-                                audioLevelLeft = computeAudioLevelSigned8(data, 0, length, format.getFrameSize());
-                                break;
-                            case 2:
-                                audioLevelLeft = computeAudioLevelSigned8(data, 0, length, format.getFrameSize());
-                                audioLevelRight = computeAudioLevelSigned8(data, 1, length, format.getFrameSize());
-                                break;
-                        }
-                        break;
-                    case 16:
-                        if (format.isBigEndian()) {
-                            switch (format.getChannels()) {
-                                case 1:
-                                    audioLevelLeft = computeAudioLevelSigned16BE(data, 0, length, format.getFrameSize());
-                                    break;
-                                case 2:
-                                    audioLevelLeft = computeAudioLevelSigned16BE(data, 0, length, format.getFrameSize());
-                                    audioLevelRight = computeAudioLevelSigned16BE(data, 2, length, format.getFrameSize());
-                                    break;
-                            }
-                        } else {
-                            switch (format.getChannels()) {
-                                case 1:
-                                    break;
-                                case 2:
-                                    break;
-                            }
-                        }
-                        break;
-                }
-            }
+        private long getSampleTime(long sample) {
+            long frames = sample * frameRate.getDenominator();
+            long numerator = frameRate.getNumerator();
+            return frames / numerator * 1000000000L + frames % numerator * 1000000000L / numerator;
         }
 
-        private float computeAudioLevelSigned16BE(byte[] data, int offset, int length, int stride) {
-            double sum = 0;
-            for (int i = offset; i < length; i += stride) {
-                int value = ((data[i]) << 8) | (data[i + 1] & 0xff);
-                sum += value * value;
+        /**
+         * Returns the number of samples from the start to the stop time.
+         */
+        private long getStopSampleCount() {
+            long stop = getStopTime();
+            if (stop == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
             }
-            double rms = Math.sqrt(sum / ((length - offset) / stride));
-            return (float) (rms / 32768);
+            return (long) Math.ceil((stop - startTime) / 1e9 * frameRate.doubleValue());
         }
 
-        private float computeAudioLevelSigned8(byte[] data, int offset, int length, int stride) {
-            double sum = 0;
-            for (int i = offset; i < length; i += stride) {
-                int value = data[i];
-
-                // TODO FIXME - The java audio system records silence as -128 instead of 0.
-                if (value!=-128) sum += value * value;
-            }
-            double rms = Math.sqrt(sum / ((length) / stride));
-            return (float) (rms / 128);
+        public AudioMeter getMeter() {
+            return meter;
         }
 
         public float getAudioLevelLeft() {
-            return audioLevelLeft;
+            return meter != null ? meter.getLevel(0) : AudioSystem.NOT_SPECIFIED;
         }
 
         public float getAudioLevelRight() {
-            return audioLevelRight;
+            return meter != null ? meter.getLevel(1) : AudioSystem.NOT_SPECIFIED;
         }
     }
 
@@ -728,27 +1518,20 @@ public class BrowserRecorder extends AbstractStateModel {
      * Starts file writing.
      */
     private void startWriter() {
-        writerQueue = new ArrayBlockingQueue<Buffer>(screenFormat.get(FrameRateKey).intValue() + 1);
-        writerThread = new Thread() {
+        writerStage = new PipelineStage<Buffer>("BrowserRecorder-Writer", getWriterQueueSize(),
+                engine != null ? engine.getIOPool() : null, waitingThreadFactory) {
             @Override
-            public void run() {
-                try {
-                    while (writerThread == this || !writerQueue.isEmpty()) {
-                        try {
-                            Buffer buf = writerQueue.take();
-                            doWrite(buf);
-                        } catch (InterruptedException ex) {
-                            // We have been interrupted, terminate
-                            break;
-                        }
-                    }
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    recordingFailed(e.getMessage()==null?e.toString():e.getMessage());
-                }
+            protected void process(Buffer buf) throws IOException {
+                doWrite(buf);
+            }
+
+            @Override
+            protected void failed(Throwable e) {
+                e.printStackTrace();
+                recordingFailed(e.getMessage()==null?e.toString():e.getMessage());
             }
         };
-        writerThread.start();
+        writerStage.start();
     }
 
     private void recordingFailed(final String msg) {
@@ -773,36 +1556,37 @@ public class BrowserRecorder extends AbstractStateModel {
     public void stop() throws IOException {
         if (state == State.RECORDING) {
             recordingStopTime = System.currentTimeMillis();
-            if (screenCaptureTimer != null) {
-                browserGrabber.setStopTime(recordingStopTime);
+            recordingStopNanos = System.nanoTime();
+            if (browserGrabber != null) {
+                browserGrabber.setStopTime(recordingStopNanos);
             }
-            if (audioCaptureTimer != null) {
-                audioGrabber.setStopTime(recordingStopTime);
+            if (audioGrabber != null) {
+                audioGrabber.setStopTime(recordingStopNanos);
             }
             try {
-                if (screenCaptureTimer != null) {
-                    try {
-                        screenFuture.get();
-                    } catch (InterruptedException ignore) {
-                    } catch (CancellationException ignore) {
-                    } catch (ExecutionException ignore) {
+                if (browserGrabber != null) {
+                    // the grabber cancels the scheduler after the stop time
+                    long timeout = 5000 + (long) (2000 / screenCaptureTimer.getMinFrameRate());
+                    if (!screenCaptureTimer.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                        screenCaptureTimer.cancel();
+                        screenCaptureTimer.awaitTermination(5000, TimeUnit.MILLISECONDS);
                     }
-                    screenCaptureTimer.shutdown();
-                    screenCaptureTimer.awaitTermination(5000, TimeUnit.MILLISECONDS);
-                    screenCaptureTimer = null;
+                    encoderStage.stop();
                     browserGrabber.close();
                     browserGrabber = null;
                 }
-                if (audioCaptureTimer != null) {
+                if (audioGrabber != null) {
                     try {
                         audioFuture.get();
                     } catch (InterruptedException ignore) {
                     } catch (CancellationException ignore) {
                     } catch (ExecutionException ignore) {
                     }
-                    audioCaptureTimer.shutdown();
-                    audioCaptureTimer.awaitTermination(5000, TimeUnit.MILLISECONDS);
-                    audioCaptureTimer = null;
+                    if (audioCaptureTimer != null) {
+                        audioCaptureTimer.shutdown();
+                        audioCaptureTimer.awaitTermination(5000, TimeUnit.MILLISECONDS);
+                        audioCaptureTimer = null;
+                    }
                     audioGrabber.close();
                     audioGrabber = null;
                 }
@@ -810,90 +1594,110 @@ public class BrowserRecorder extends AbstractStateModel {
                 // nothing to do
             }
             stopWriter();
+            metrics.unregister();
             setState(State.DONE, null);
         }
     }
 
     private void stopWriter() throws IOException {
-        Thread pendingWriterThread = writerThread;
-        writerThread = null;
-
         try {
-            if (pendingWriterThread != null) {
-                pendingWriterThread.interrupt();
-                pendingWriterThread.join();
+            if (writerStage != null) {
+                writerStage.stop();
             }
         } catch (InterruptedException ex) {
             // nothing to do
             ex.printStackTrace();
         }
-        if (w != null) {
-            w.close();
-            w = null;
+        try {
+            if (w != null) {
+                segmentFinished(movieFile);
+                w.close();
+                w = null;
+                movieFileClosed(movieFile.getFile());
+                movieFile = null;
+            }
+        } finally {
+            if (rolloverManager != null) {
+                rolloverManager.shutdown();
+                rolloverManager = null;
+            }
+        }
+        SegmentPlaylist s = segments;
+        if (s != null) {
+            s.finish();
         }
     }
 
     /**
      * Writes a buffer into the movie. Since the file system may not be
      * immediately available at all times, we do this asynchronously. <p> The
-     * buffer is copied and passed to the writer queue, which is consumed by the
-     * writer thread. See method startWriter(). <p> AVI does not support a
-     * variable frame rate for the video track. Since we can not capture frames
-     * at a fixed frame rate we have to resend the same captured screen multiple
-     * times to the writer. <p> This method is called asynchronously from
-     * different threads. <p> You can override this method if you wish to
-     * process the media data.
+     * buffer is encoded or copied and passed to the writer stage, which is
+     * consumed by the writer thread. See method startWriter(). <p> AVI does not
+     * support a variable frame rate for the video track. Since we can not
+     * capture frames at a fixed frame rate, a captured screen is encoded once
+     * and the writer repeats it for the missing frames. <p> Video frames are written from
+     * the encoder thread, the image in {@code buffer.data} is reused for a
+     * later frame as soon as this method returns. <p> You can override this
+     * method if you wish to process the media data.
      *
      *
      * @param buf A buffer with un-encoded media data. If
      * {@code buf.track==videoTrack}, then the buffer contains a
-     * {@code BufferedImage} in {@code buffer.data} and a {@code Point} in
-     * {@code buffer.header} with the recorded mouse location. The header is
-     * null if the mouse is outside the capture area, or mouse recording has not
-     * been enabled.
+     * {@code BufferedImage} in {@code buffer.data} and {@link DirtyTiles} in
+     * {@code buffer.header} with the regions, that changed since the previous
+     * frame. The header is null if change detection has been disabled. Frames
+     * without changes are flagged with {@code SAME_DATA}.
+     * The grabbers pass {@link TimedBuffer}s, whose {@code timeStamp} and
+     * {@code sampleDuration} may be null, the writer stage sets them from the
+     * time in nanoseconds.
      *
      * @throws IOException
      */
     protected void write(Buffer buf) throws IOException, InterruptedException {
-        MovieWriter writer = this.w;
-        if (writer == null) {
+        if (this.w == null && ring == null) {
             return;
         }
         if (buf.track == videoTrack) {
-            if (!writer.getFormat(videoTrack).get(FixedFrameRateKey, false)) {
-                // variable frame rate is supported => easy
-                Buffer wbuf = new Buffer();
-                frameEncoder.process(buf, wbuf);
-                writerQueue.put(wbuf);
-            } else {// variable frame rate not supported => convert to fixed frame rate
-
-                // TODO FIXME - Use CodecChain for this
-
-                Rational inputTime = buf.timeStamp.add(buf.sampleDuration);
-                boolean isFirst = true;
-                while (outputTime.compareTo(inputTime) < 0) {
-                    buf.timeStamp = outputTime;
-                    buf.sampleDuration = ffrDuration;
-                    if (isFirst) {
-                        isFirst = false;
-                    } else {
-                        buf.setFlag(SAME_DATA);
-                    }
-                    Buffer wbuf = new Buffer();
-                    if (frameEncoder.process(buf, wbuf) != Codec.CODEC_OK) {
-                        throw new IOException("Codec failed or could not process frame in a single step.");
+            // With a fixed frame rate, the encoder may emit a run of repeated
+            // frames after the encoded frame.
+            if (keyFrameRequested) {
+                // a reset encoder starts with a key frame
+                frameEncoder.reset();
+                keyFrameRequested = false;
+            }
+            int status = Codec.CODEC_OK;
+            long encodeTime = 0;
+            do {
+                boolean repeat = (status & Codec.CODEC_INPUT_NOT_CONSUMED) != 0;
+                TimedBuffer wbuf = new TimedBuffer();
+                long time = System.nanoTime();
+                status = frameEncoder.process(buf, wbuf);
+                encodeTime += System.nanoTime() - time;
+                if (status == Codec.CODEC_FAILED) {
+                    throw new IOException("Codec failed to process frame.");
+                }
+                if (frameRateConverter == null) {
+                    // The buffers of a codec chain don't carry the time in
+                    // nanoseconds
+                    wbuf.setTimeTo(buf);
+                }
+                if (wbuf.isFlag(BufferFlag.DISCARD)) {
+                    metrics.frameDiscarded();
+                } else {
+                    if (repeat) {
+                        metrics.framesDuplicated(wbuf.sampleCount);
                     }
-                    writerQueue.put(wbuf);
-                    outputTime = outputTime.add(ffrDuration);
+                    writerStage.put(wbuf);
                 }
-            }
+            } while ((status & Codec.CODEC_INPUT_NOT_CONSUMED) != 0);
+            metrics.recordEncodeTime(encodeTime);
         } else {
-            Buffer wbuf = new Buffer();
+            Buffer wbuf = audioChunkPool.acquire(buf.length);
             wbuf.setMetaTo(buf);
-            wbuf.data = ((byte[]) buf.data).clone();
+            System.arraycopy((byte[]) buf.data, buf.offset, (byte[]) wbuf.data, 0, buf.length);
             wbuf.length = buf.length;
-            wbuf.offset = buf.offset;
-            writerQueue.put(wbuf);
+            wbuf.offset = 0;
+            writerStage.put(wbuf);
         }
     }
 
@@ -905,33 +1709,70 @@ public class BrowserRecorder extends AbstractStateModel {
      * @throws IOException
      */
     private void doWrite(Buffer buf) throws IOException {
+        if (buf instanceof TimedBuffer) {
+            ((TimedBuffer) buf).setMediaTime();
+        }
+        FrameRing r = ring;
+        if (r != null) {
+            writeRing(r, buf);
+            return;
+        }
         MovieWriter mw = w;
-        // Close file on a separate thread if file is full or an hour
-        // has passed.
+        // Start a new file if the file is full or an hour has passed. The
+        // next file is opened ahead of time, and the full file is closed in
+        // the background.
         // The if-statement must ensure that we only start a new video file
         // at a key-frame.
         // TODO FIXME - this assumes that all audio frames are key-frames
         // TODO FIXME - this does not guarantee that audio and video track have
         // TODO FIXME - the same duration
-        long now = System.currentTimeMillis();
-        if (buf.track == videoTrack && buf.isFlag(BufferFlag.KEYFRAME)
-                && (mw.isDataLimitReached() || now - fileStartTime > maxRecordingTime)) {
-            final MovieWriter closingWriter = mw;
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        closingWriter.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-
-                }
-            }.start();
-            mw = createMovieWriter();
-
+        long fileTime = System.nanoTime() - fileStartNanos;
+        long maxFileTime = TimeUnit.MILLISECONDS.toNanos(segmentDuration > 0
+                ? Math.min(segmentDuration, maxRecordingTime) : maxRecordingTime);
+        if (mw.isDataLimitReached() || fileBytes >= maxFileSize || fileTime > maxFileTime) {
+            if (buf.track == videoTrack && buf.isFlag(BufferFlag.KEYFRAME)) {
+                long stallStart = System.nanoTime();
+                segmentFinished(movieFile);
+                rolloverManager.close(movieFile);
+                startFile(rolloverManager.openNext());
+                mw = w;
+                metrics.fileStarted(true);
+                metrics.recordRolloverStall(System.nanoTime() - stallStart);
+            } else if (!rolloverPending) {
+                rolloverPending = true;
+                keyFrameRequested = true;
+            }
+        } else if (fileBytes >= PREPARE_AHEAD * maxFileSize
+                || fileTime >= maxFileTime - Math.min(PREPARE_LEAD_TIME, maxFileTime / 10)) {
+            rolloverManager.prepareNext();
         }
         mw.write(buf.track, buf);
+        fileBytes += buf.length;
+        metrics.bytesWritten(buf.length);
+        if (buf.track != videoTrack) {
+            // the writer has copied the audio samples
+            audioChunkPool.release(buf);
+        }
+    }
+
+    /**
+     * Keeps a buffer in the ring instead of writing it. Asks the encoder for
+     * a key frame, when the ring needs one.
+     */
+    private void writeRing(FrameRing r, Buffer buf) {
+        if (buf.track == videoTrack) {
+            if (buf.isFlag(BufferFlag.KEYFRAME)) {
+                ringKeyFramePending = false;
+            } else if (!ringKeyFramePending && r.isKeyFrameDue()) {
+                ringKeyFramePending = true;
+                keyFrameRequested = true;
+            }
+        }
+        r.add(buf);
+        if (buf.track != videoTrack) {
+            // the ring has copied the audio samples
+            audioChunkPool.release(buf);
+        }
     }
 
     /**
@@ -950,8 +1791,8 @@ public class BrowserRecorder extends AbstractStateModel {
     }
 
     /**
-     * Maximal file size. If this size is exceeded, the recorder creates a new
-     * file.
+     * Maximal file size in bytes of media data. If this size is exceeded, the
+     * recorder creates a new file, that starts with the next key frame.
      */
     public long getMaxFileSize() {
         return maxFileSize;
@@ -0,0 +1,360 @@
+package recorder;
+
+import recorder.metrics.LatencyHistogram;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the screen capture at a frame rate on a monotonic clock. <p> A capture,
+ * that takes longer than a frame, is an overrun. The ticks, that were missed
+ * during an overrun, are dropped instead of being run in a burst, and the next
+ * capture is aligned to the original tick grid. <p> If the minimal frame rate
+ * is lower than the maximal one, the scheduler lowers the frame rate while
+ * the captures take most of a frame and raises it again, when there is
+ * headroom. <p> The scheduler runs the captures either on its own thread, or
+ * on a pool, that is shared by many recordings. In the latter case a shared
+ * clock hands each due capture to the pool, so that waiting for the next
+ * capture doesn't hold a thread.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class CaptureScheduler {
+    /**
+     * Fraction of a frame, that a capture may take before the frame rate is
+     * lowered.
+     */
+    private static final double HIGH_LOAD = 0.85;
+    /**
+     * Fraction of a frame, that a capture may take to raise the frame rate.
+     */
+    private static final double LOW_LOAD = 0.5;
+    /**
+     * Number of ticks with low load, before the frame rate is raised.
+     */
+    private static final int RAISE_AFTER = 30;
+    /**
+     * Weight of the last capture in the average capture time.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final Runnable task;
+    private final String name;
+    private final ScheduledExecutorService clock;
+    private final Executor executor;
+    private final double minFrameRate;
+    private final double maxFrameRate;
+    private volatile double frameRate;
+    private volatile double frameRateLimit = Double.POSITIVE_INFINITY;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile long ticks;
+    private volatile long droppedTicks;
+    private volatile long overruns;
+    private volatile long startTime;
+    private volatile long lastTickTime;
+    private volatile boolean cancelled;
+    private Thread thread;
+    /**
+     * True from the start on a pool until the last capture has finished.
+     */
+    private boolean active;
+    private ScheduledFuture<?> pendingTick;
+    /**
+     * State of the tick loop, only used by the capture, that is running.
+     */
+    private long period;
+    private long next;
+    private double averageTime;
+    private int lowLoadTicks;
+    private final Runnable dispatchTask = new Runnable() {
+        public void run() {
+            dispatch();
+        }
+    };
+    private final Runnable tickTask = new Runnable() {
+        public void run() {
+            runTick();
+        }
+    };
+
+    /**
+     * @param task - the capture
+     * @param name - name of the capture thread
+     * @param frameRate - initial frame rate
+     * @param minFrameRate - minimal frame rate
+     * @param maxFrameRate - maximal frame rate
+     */
+    public CaptureScheduler(Runnable task, String name, double frameRate, double minFrameRate, double maxFrameRate) {
+        this(task, name, frameRate, minFrameRate, maxFrameRate, null, null);
+    }
+
+    /**
+     * @param task - the capture
+     * @param name - name of the capture thread
+     * @param frameRate - initial frame rate
+     * @param minFrameRate - minimal frame rate
+     * @param maxFrameRate - maximal frame rate
+     * @param clock - clock, that hands the due captures to the pool, null for an own thread
+     * @param executor - pool, that runs the captures
+     */
+    public CaptureScheduler(Runnable task, String name, double frameRate, double minFrameRate, double maxFrameRate,
+                            ScheduledExecutorService clock, Executor executor) {
+        if ((clock == null) != (executor == null)) {
+            throw new IllegalArgumentException("Clock and executor must be given together");
+        }
+        if (!(frameRate > 0) || !(minFrameRate > 0) || minFrameRate > maxFrameRate) {
+            throw new IllegalArgumentException("Illegal frame rates " + frameRate + " in [" + minFrameRate + "," + maxFrameRate + "]");
+        }
+        this.task = task;
+        this.name = name;
+        this.clock = clock;
+        this.executor = executor;
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.frameRate = Math.max(minFrameRate, Math.min(maxFrameRate, frameRate));
+    }
+
+    public synchronized void start() {
+        if (thread != null || active) {
+            return;
+        }
+        cancelled = false;
+        period = periodOf(frameRate);
+        startTime = System.nanoTime();
+        next = startTime + period;
+        averageTime = 0;
+        lowLoadTicks = 0;
+        if (clock != null) {
+            active = true;
+            scheduleTick(period);
+            return;
+        }
+        thread = new Thread(name) {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        thread.start();
+    }
+
+    private void loop() {
+        while (!cancelled) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            tick();
+        }
+    }
+
+    /**
+     * Runs a capture and computes the time of the next one.
+     */
+    private void tick() {
+        long tickStart = System.nanoTime();
+        task.run();
+        long tickEnd = System.nanoTime();
+        long time = tickEnd - tickStart;
+        latency.record(time);
+        ticks++;
+        lastTickTime = tickEnd;
+
+        next += period;
+        if (tickEnd - next >= 0) {
+            long missed = (tickEnd - next) / period + 1;
+            droppedTicks += missed;
+            overruns++;
+            next += missed * period;
+        }
+
+        averageTime = ticks == 1 ? time : averageTime + SMOOTHING * (time - averageTime);
+        double maxRate = Math.min(maxFrameRate, frameRateLimit);
+        double minRate = Math.min(minFrameRate, maxRate);
+        double rate = frameRate;
+        if (rate > maxRate || (minRate == maxRate && rate < maxRate)) {
+            rate = maxRate;
+        } else if (minRate < maxRate) {
+            if (averageTime > HIGH_LOAD * period && rate > minRate) {
+                rate = Math.max(minRate, Math.min(rate * 0.8, HIGH_LOAD * 1e9 / averageTime));
+                lowLoadTicks = 0;
+            } else if (averageTime < LOW_LOAD * period && rate < maxRate) {
+                if (++lowLoadTicks >= RAISE_AFTER) {
+                    rate = Math.min(maxRate, rate * 1.1);
+                    lowLoadTicks = 0;
+                }
+            } else {
+                lowLoadTicks = 0;
+            }
+        }
+        if (rate != frameRate) {
+            frameRate = rate;
+            next += periodOf(rate) - period;
+            period = periodOf(rate);
+        }
+    }
+
+    /**
+     * Hands the due capture from the clock to the pool.
+     */
+    private void dispatch() {
+        try {
+            executor.execute(tickTask);
+        } catch (RejectedExecutionException e) {
+            finish();
+        }
+    }
+
+    private void runTick() {
+        if (!cancelled) {
+            tick();
+        }
+        scheduleTick(next - System.nanoTime());
+    }
+
+    private synchronized void scheduleTick(long delay) {
+        if (cancelled) {
+            finish();
+            return;
+        }
+        try {
+            pendingTick = clock.schedule(dispatchTask, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        pendingTick = null;
+        active = false;
+        notifyAll();
+    }
+
+    private static long periodOf(double frameRate) {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / frameRate));
+    }
+
+    /**
+     * Stops the captures. A running capture is finished. May be called from
+     * the capture itself.
+     */
+    public void cancel() {
+        cancelled = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        synchronized (this) {
+            if (pendingTick != null && pendingTick.cancel(false)) {
+                finish();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Waits until the scheduler has been cancelled and the last capture has
+     * finished.
+     *
+     * @return true if the capture thread has terminated
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (active) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            t = thread;
+        }
+        if (t != null) {
+            t.join(Math.max(1, unit.toMillis(timeout)));
+            return !t.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current target frame rate.
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public double getMinFrameRate() {
+        return minFrameRate;
+    }
+
+    public double getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    /**
+     * Limits the frame rate from outside, e.g. to share a budget of frames
+     * between recordings. The limit may be below the minimal frame rate.
+     * Takes effect after the next capture.
+     *
+     * @param frameRateLimit - maximal frame rate, {@code Double.POSITIVE_INFINITY} for no limit
+     */
+    public void setFrameRateLimit(double frameRateLimit) {
+        if (!(frameRateLimit > 0)) {
+            throw new IllegalArgumentException("Illegal frame rate limit " + frameRateLimit);
+        }
+        this.frameRateLimit = frameRateLimit;
+    }
+
+    public double getFrameRateLimit() {
+        return frameRateLimit;
+    }
+
+    /**
+     * Returns the number of captures per second since the start.
+     */
+    public double getAchievedFrameRate() {
+        long n = ticks;
+        long elapsed = lastTickTime - startTime;
+        return n == 0 || elapsed <= 0 ? 0 : n * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the number of captures, that have been run.
+     */
+    public long getTickCount() {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of ticks, that were skipped because a capture
+     * overran them.
+     */
+    public long getDroppedTickCount() {
+        return droppedTicks;
+    }
+
+    /**
+     * Returns the number of captures, that took longer than a frame.
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    /**
+     * Returns the histogram of the capture durations.
+     */
+    public LatencyHistogram getCaptureLatency() {
+        return latency;
+    }
+}
@@ -0,0 +1,136 @@
+package recorder;
+
+import com.sun.jna.platform.win32.WinDef.HWND;
+import recorder.metrics.LatencyHistogram;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a native surface and an image for every captured window, so that
+ * capturing a window does not allocate anything as long as the window keeps
+ * its size. <p> The image of a window is reused for the next capture of the
+ * same window. Different windows may be captured concurrently.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class CaptureSurfaceCache {
+
+    private static class Entry {
+        final int width;
+        final int height;
+        final WindowSurface surface;
+        final BufferedImage image;
+        final int[] pixels;
+        volatile long captureTime;
+
+        Entry(WindowSurface surface, int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.surface = surface;
+            this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    private final WindowSurface.Factory factory;
+    private final Map<HWND, Entry> entries = new ConcurrentHashMap<HWND, Entry>();
+    private final LatencyHistogram captureLatency = new LatencyHistogram();
+
+    public CaptureSurfaceCache(WindowSurface.Factory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Captures the window into its cached image.
+     *
+     * @return the image of the window or null if the window can't be captured
+     */
+    public BufferedImage capture(HWND hWnd, int width, int height) {
+        long start = System.nanoTime();
+        Entry entry = entries.get(hWnd);
+        if (entry != null && (entry.width != width || entry.height != height)) {
+            entries.remove(hWnd);
+            entry.surface.dispose();
+            entry = null;
+        }
+        if (entry == null) {
+            try {
+                entry = new Entry(factory.create(hWnd, width, height), width, height);
+            } catch (RuntimeException e) {
+                return null;
+            }
+            entries.put(hWnd, entry);
+        }
+        if (!entry.surface.copyTo(entry.pixels)) {
+            entries.remove(hWnd);
+            entry.surface.dispose();
+            return null;
+        }
+        entry.captureTime = System.nanoTime() - start;
+        captureLatency.record(entry.captureTime);
+        return entry.image;
+    }
+
+    /**
+     * Disposes the surfaces of all windows, that are not in {@code hWnds}.
+     */
+    public void retain(HWND[] hWnds) {
+        for (Iterator<Map.Entry<HWND, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<HWND, Entry> e = i.next();
+            if (!contains(hWnds, e.getKey())) {
+                e.getValue().surface.dispose();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Disposes all surfaces.
+     */
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            entry.surface.dispose();
+        }
+        entries.clear();
+    }
+
+    /**
+     * Returns the duration of the last capture of every cached window in nanoseconds.
+     */
+    public Map<HWND, Long> getCaptureTimes() {
+        Map<HWND, Long> times = new HashMap<HWND, Long>();
+        for (Map.Entry<HWND, Entry> e : entries.entrySet()) {
+            times.put(e.getKey(), e.getValue().captureTime);
+        }
+        return times;
+    }
+
+    /**
+     * Returns the histogram of the capture durations of single windows.
+     */
+    public LatencyHistogram getCaptureLatency() {
+        return captureLatency;
+    }
+
+    /**
+     * Returns the number of cached surfaces.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static boolean contains(HWND[] hWnds, HWND hWnd) {
+        for (HWND h : hWnds) {
+            if (hWnd.equals(h)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,21 +1,22 @@
 package recorder;
 
-import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.platform.win32.GDI32;
 import com.sun.jna.platform.win32.User32;
 import com.sun.jna.platform.win32.WinDef.DWORD;
-import com.sun.jna.platform.win32.WinDef.HBITMAP;
 import com.sun.jna.platform.win32.WinDef.HDC;
 import com.sun.jna.platform.win32.WinDef.HWND;
 import com.sun.jna.platform.win32.WinGDI;
-import com.sun.jna.platform.win32.WinGDI.BITMAPINFO;
-import com.sun.jna.platform.win32.WinNT.HANDLE;
 import com.sun.jna.platform.win32.WinUser;
 import com.sun.jna.win32.W32APIOptions;
+import recorder.metrics.LatencyHistogram;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Copyright (c) Nikolay Soloviev. All rights reserved.
@@ -30,44 +31,95 @@ public class CaptureWindow {
         defaultImage.setRGB(0, 0, new Color(127,127,127).getRGB());
     }
 
-    public BufferedImage capture(HWND hWnd, int width, int height) {
-        BufferedImage image;
+    /**
+     * Native surfaces and images of the captured windows.
+     */
+    private final CaptureSurfaceCache surfaces;
+    /**
+     * Pool of the composed images.
+     */
+    private final FramePool framePool;
+    /**
+     * Number of windows, that are captured at the same time.
+     */
+    private int parallelism = 1;
+    /**
+     * Workers for the parallel capture, null if windows are captured one
+     * after another.
+     */
+    private ThreadPoolExecutor captureExecutor;
+    /**
+     * Workers, that are shared with other recordings, null if the capture
+     * window starts its own workers.
+     */
+    private ExecutorService sharedExecutor;
 
-        try {
-            HDC hdcWindow = User32.INSTANCE.GetDC(hWnd);
-            HDC hdcMemDC = GDI32.INSTANCE.CreateCompatibleDC(hdcWindow);
+    public CaptureWindow() {
+        this(GdiWindowSurface.FACTORY, new FramePool());
+    }
 
-            HBITMAP hBitmap = GDI32.INSTANCE.CreateCompatibleBitmap(hdcWindow, width, height);
+    public CaptureWindow(FramePool framePool) {
+        this(GdiWindowSurface.FACTORY, framePool);
+    }
 
-            HANDLE hOld = GDI32.INSTANCE.SelectObject(hdcMemDC, hBitmap);
-            GDI32Extra.INSTANCE.BitBlt(hdcMemDC, 0, 0, width, height, hdcWindow, 0, 0, WinGDIExtra.SRCCOPY);
+    public CaptureWindow(WindowSurface.Factory surfaceFactory, FramePool framePool) {
+        this.surfaces = new CaptureSurfaceCache(surfaceFactory);
+        this.framePool = framePool;
+    }
 
-            GDI32.INSTANCE.SelectObject(hdcMemDC, hOld);
-            GDI32.INSTANCE.DeleteDC(hdcMemDC);
+    /**
+     * Sets the number of windows, that are captured at the same time.
+     * With 1, all windows are captured on the calling thread.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        shutdownCaptureExecutor();
+    }
 
-            BITMAPINFO bmi = new BITMAPINFO();
-            bmi.bmiHeader.biWidth = width;
-            bmi.bmiHeader.biHeight = -height;
-            bmi.bmiHeader.biPlanes = 1;
-            bmi.bmiHeader.biBitCount = 32;
-            bmi.bmiHeader.biCompression = WinGDI.BI_RGB;
+    public int getParallelism() {
+        return parallelism;
+    }
 
-            Memory buffer = new Memory(width * height * 4);
-            GDI32.INSTANCE.GetDIBits(hdcWindow, hBitmap, 0, height, buffer, bmi, WinGDI.DIB_RGB_COLORS);
+    /**
+     * Sets the workers for the parallel capture, that are shared with other
+     * recordings. The number of windows, that are captured at the same time,
+     * is bounded by the workers, the parallelism only enables the parallel
+     * capture.
+     *
+     * @param executor - the workers, null to start workers of its own
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.sharedExecutor = executor;
+        shutdownCaptureExecutor();
+    }
 
-            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            image.setRGB(0, 0, width, height, buffer.getIntArray(0, width * height), 0, width);
+    /**
+     * Returns the duration of the last capture of every captured window in nanoseconds.
+     */
+    public Map<HWND, Long> getWindowCaptureTimes() {
+        return surfaces.getCaptureTimes();
+    }
 
-            GDI32.INSTANCE.DeleteObject(hBitmap);
-            User32.INSTANCE.ReleaseDC(hWnd, hdcWindow);
-        }
-        catch (Exception e) {
-            image = defaultImage;
-        }
+    /**
+     * Returns the histogram of the capture durations of single windows.
+     */
+    public LatencyHistogram getWindowCaptureLatency() {
+        return surfaces.getCaptureLatency();
+    }
 
-        return image;
+    /**
+     * Captures the window. The returned image is reused by the next capture
+     * of the same window.
+     */
+    public BufferedImage capture(HWND hWnd, int width, int height) {
+        BufferedImage image = surfaces.capture(hWnd, width, height);
+        return image != null ? image : defaultImage;
     }
 
+    /**
+     * Captures the windows and composes them in z-order. The returned image
+     * should be handed back with {@link #release(BufferedImage)}.
+     */
     public BufferedImage capture(HWND[] hWnds) {
         BufferedImage image;
         BufferedImage newImage;
@@ -94,7 +146,11 @@ public class CaptureWindow {
             }
         }
 
-        image = new BufferedImage(maxWidth, maxHeight, BufferedImage.TYPE_INT_RGB);
+        BufferedImage[] windowImages = hWnds.length > 1 ? captureInParallel(hWnds, windowsRect) : null;
+
+        image = framePool.acquire(maxWidth, maxHeight, BufferedImage.TYPE_INT_RGB);
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
+        Graphics g = image.getGraphics();
 
         for (int i = hWnds.length-1; i >= 0; i--) {
             int width = windowsRect[i].right - windowsRect[i].left;
@@ -104,16 +160,121 @@ public class CaptureWindow {
                 continue;
             }
 
-            newImage = capture(hWnds[i], width, height);
-            image.getGraphics().drawImage(newImage, windowsRect[i].left, windowsRect[i].top, null);
+            newImage = windowImages != null ? windowImages[i] : capture(hWnds[i], width, height);
+            g.drawImage(newImage, windowsRect[i].left, windowsRect[i].top, null);
         }
+        g.dispose();
+        surfaces.retain(hWnds);
 
         return image;
     }
 
+    /**
+     * Captures the windows on the capture workers, the calling thread
+     * captures the top-most window itself.
+     *
+     * @return images of the windows or null if parallel capture is disabled
+     */
+    private BufferedImage[] captureInParallel(final HWND[] hWnds, final WinUser.RECT[] windowsRect) {
+        ExecutorService executor = getCaptureExecutor();
+        if (executor == null) {
+            return null;
+        }
+        final BufferedImage[] windowImages = new BufferedImage[hWnds.length];
+        Future<?>[] futures = new Future<?>[hWnds.length];
+        for (int i = hWnds.length - 1; i > 0; i--) {
+            final int width = windowsRect[i].right - windowsRect[i].left;
+            final int height = windowsRect[i].bottom - windowsRect[i].top;
+            if (width < 1 || height < 1) {
+                continue;
+            }
+            final int index = i;
+            futures[i] = executor.submit(new Runnable() {
+                public void run() {
+                    windowImages[index] = capture(hWnds[index], width, height);
+                }
+            });
+        }
+        int width = windowsRect[0].right - windowsRect[0].left;
+        int height = windowsRect[0].bottom - windowsRect[0].top;
+        if (width >= 1 && height >= 1) {
+            windowImages[0] = capture(hWnds[0], width, height);
+        }
+        // The workers use the cached surfaces, so all of them are waited for
+        // even if the thread is interrupted
+        boolean interrupted = false;
+        for (int i = 1; i < futures.length; i++) {
+            if (futures[i] == null) {
+                continue;
+            }
+            while (true) {
+                try {
+                    futures[i].get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // the window is drawn with the default image
+                    break;
+                }
+            }
+            if (windowImages[i] == null) {
+                windowImages[i] = defaultImage;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return windowImages;
+    }
+
+    private synchronized ExecutorService getCaptureExecutor() {
+        if (parallelism <= 1) {
+            return null;
+        }
+        if (sharedExecutor != null) {
+            return sharedExecutor;
+        }
+        if (captureExecutor == null) {
+            captureExecutor = new ThreadPoolExecutor(parallelism, parallelism, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "CaptureWindow");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            captureExecutor.allowCoreThreadTimeOut(true);
+        }
+        return captureExecutor;
+    }
+
+    private synchronized void shutdownCaptureExecutor() {
+        if (captureExecutor != null) {
+            captureExecutor.shutdown();
+            captureExecutor = null;
+        }
+    }
+
+    /**
+     * Hands a composed image back to the pool.
+     */
+    public void release(BufferedImage image) {
+        framePool.release(image);
+    }
+
+    /**
+     * Releases the native surfaces of all captured windows.
+     */
+    public void close() {
+        shutdownCaptureExecutor();
+        surfaces.clear();
+    }
+
     public interface GDI32Extra extends GDI32 {
         GDI32Extra INSTANCE = (GDI32Extra) Native.loadLibrary("gdi32", GDI32Extra.class, W32APIOptions.DEFAULT_OPTIONS);
         boolean BitBlt(HDC hObject, int nXDest, int nYDest, int nWidth, int nHeight, HDC hObjectSource, int nXSrc, int nYSrc, DWORD dwRop);
+        boolean GdiFlush();
     }
 
     public interface WinGDIExtra extends WinGDI {
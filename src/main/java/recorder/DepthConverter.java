@@ -0,0 +1,262 @@
+package recorder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts captured 24 bit frames to the 8 bit images of a reduced depth
+ * recording. <p> Drawing a frame into a {@code TYPE_BYTE_INDEXED} image with
+ * Java2D searches the palette for every pixel. The converter works on the
+ * rasters instead: pixels are looked up in a table, that maps every color
+ * with 6 bits per channel to the nearest palette entry and is computed once
+ * per palette. A palette of 256 grays is converted by luminance without a
+ * table. The rows can be split across the threads of a fork-join pool. <p>
+ * 16 bit images are not converted, Java2D draws into them with a native
+ * loop, that is faster than packing the pixels in Java.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class DepthConverter {
+    /**
+     * Bits per channel of the inverse palette table.
+     */
+    private static final int LOOKUP_BITS = 6;
+    /**
+     * Minimal number of rows, that a thread converts.
+     */
+    private static final int MIN_BAND_HEIGHT = 64;
+
+    private enum Kind {
+        PALETTE, GRAY
+    }
+
+    /**
+     * The palette and the inverse table of the last converter, that used a
+     * palette.
+     */
+    private static int[] cachedPalette;
+    private static byte[] cachedLookup;
+
+    private final Kind kind;
+    private final byte[] lookup;
+    private final ForkJoinPool pool;
+
+    private DepthConverter(Kind kind, byte[] lookup, ForkJoinPool pool) {
+        this.kind = kind;
+        this.lookup = lookup;
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a converter for images of the type of the target image.
+     *
+     * @param target - an image of the recording
+     * @param pool - the pool, that converts the rows, null to convert on the calling thread
+     * @return the converter, null if the image is not an 8 bit image
+     */
+    public static DepthConverter create(BufferedImage target, ForkJoinPool pool) {
+        SampleModel sampleModel = target.getSampleModel();
+        if (target.getType() == BufferedImage.TYPE_BYTE_INDEXED
+                && sampleModel instanceof PixelInterleavedSampleModel
+                && sampleModel.getNumBands() == 1
+                && target.getRaster().getDataBuffer() instanceof DataBufferByte) {
+            IndexColorModel colors = (IndexColorModel) target.getColorModel();
+            if (isGray(colors)) {
+                return new DepthConverter(Kind.GRAY, null, pool);
+            }
+            return new DepthConverter(Kind.PALETTE, getLookup(colors), pool);
+        }
+        return null;
+    }
+
+    /**
+     * Creates a palette of 256 shades of gray.
+     */
+    public static IndexColorModel createGrayColors() {
+        byte[] gray = new byte[256];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) i;
+        }
+        return new IndexColorModel(8, 256, gray, gray, gray);
+    }
+
+    private static boolean isGray(IndexColorModel colors) {
+        if (colors.getMapSize() != 256) {
+            return false;
+        }
+        for (int i = 0; i < 256; i++) {
+            if ((colors.getRGB(i) & 0xffffff) != i * 0x010101) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the table, that maps a color to the nearest palette entry.
+     */
+    private static synchronized byte[] getLookup(IndexColorModel colors) {
+        int[] palette = new int[colors.getMapSize()];
+        colors.getRGBs(palette);
+        if (cachedLookup != null && Arrays.equals(palette, cachedPalette)) {
+            return cachedLookup;
+        }
+        int levels = 1 << LOOKUP_BITS;
+        int shift = 8 - LOOKUP_BITS;
+        int[] r = new int[palette.length];
+        int[] g = new int[palette.length];
+        int[] b = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            r[i] = (palette[i] >> 16) & 0xff;
+            g[i] = (palette[i] >> 8) & 0xff;
+            b[i] = palette[i] & 0xff;
+        }
+        byte[] lookup = new byte[levels * levels * levels];
+        int n = 0;
+        for (int ri = 0; ri < levels; ri++) {
+            // The center of the colors, that map to the entry
+            int red = (ri << shift) + (1 << shift >> 1);
+            for (int gi = 0; gi < levels; gi++) {
+                int green = (gi << shift) + (1 << shift >> 1);
+                for (int bi = 0; bi < levels; bi++) {
+                    int blue = (bi << shift) + (1 << shift >> 1);
+                    int best = 0;
+                    int bestDistance = Integer.MAX_VALUE;
+                    for (int i = 0; i < palette.length; i++) {
+                        int dr = red - r[i];
+                        int dg = green - g[i];
+                        int db = blue - b[i];
+                        int distance = dr * dr + dg * dg + db * db;
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = i;
+                        }
+                    }
+                    lookup[n++] = (byte) best;
+                }
+            }
+        }
+        cachedPalette = palette;
+        cachedLookup = lookup;
+        return lookup;
+    }
+
+    /**
+     * Converts a frame into an image of the recording. Like
+     * {@link java.awt.Graphics#drawImage}, the frame is drawn at the top left
+     * corner, and the parts of the image, that it doesn't cover, are left
+     * as they are.
+     *
+     * @param source - the captured frame
+     * @param target - an image of the type, that the converter was created for
+     * @return false if the frame doesn't have integer pixels, the frame must be drawn then
+     */
+    public boolean convert(BufferedImage source, BufferedImage target) {
+        if ((source.getType() != BufferedImage.TYPE_INT_RGB && source.getType() != BufferedImage.TYPE_INT_ARGB)
+                || !(source.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(source.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return false;
+        }
+        int width = Math.min(source.getWidth(), target.getWidth());
+        int height = Math.min(source.getHeight(), target.getHeight());
+        WritableRaster src = source.getRaster();
+        WritableRaster dst = target.getRaster();
+        int bands = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), height / MIN_BAND_HEIGHT));
+        if (bands == 1) {
+            convertRows(src, dst, width, 0, height);
+        } else {
+            pool.invoke(new RowTask(src, dst, width, height, 0, bands, bands));
+        }
+        return true;
+    }
+
+    /**
+     * Converts a range of bands, splits the range until there is one band
+     * per task.
+     */
+    private final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final WritableRaster src;
+        private final WritableRaster dst;
+        private final int width;
+        private final int height;
+        private final int from;
+        private final int to;
+        private final int bands;
+
+        RowTask(WritableRaster src, WritableRaster dst, int width, int height, int from, int to, int bands) {
+            this.src = src;
+            this.dst = dst;
+            this.width = width;
+            this.height = height;
+            this.from = from;
+            this.to = to;
+            this.bands = bands;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(src, dst, width, height, from, mid, bands),
+                        new RowTask(src, dst, width, height, mid, to, bands));
+            } else {
+                convertRows(src, dst, width, (int) ((long) height * from / bands),
+                        (int) ((long) height * (from + 1) / bands));
+            }
+        }
+    }
+
+    /**
+     * Converts the rows [y0,y1).
+     */
+    private void convertRows(WritableRaster src, WritableRaster dst, int width, int y0, int y1) {
+        DataBufferInt srcBuffer = (DataBufferInt) src.getDataBuffer();
+        int[] p = srcBuffer.getData();
+        int srcStride = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        int srcOffset = srcBuffer.getOffset() - src.getSampleModelTranslateX() - src.getSampleModelTranslateY() * srcStride;
+        DataBufferByte dstBuffer = (DataBufferByte) dst.getDataBuffer();
+        byte[] q = dstBuffer.getData();
+        int dstStride = ((PixelInterleavedSampleModel) dst.getSampleModel()).getScanlineStride();
+        int dstOffset = dstBuffer.getOffset() - dst.getSampleModelTranslateX() - dst.getSampleModelTranslateY() * dstStride;
+        for (int y = y0; y < y1; y++) {
+            if (kind == Kind.GRAY) {
+                gray(p, srcOffset + y * srcStride, q, dstOffset + y * dstStride, width);
+            } else {
+                lookup(p, srcOffset + y * srcStride, q, dstOffset + y * dstStride, width, lookup);
+            }
+        }
+    }
+
+    // The rows are converted by small methods, that the JIT compiles on
+    // their own instead of replacing a long running loop on the stack
+
+    private static void gray(int[] p, int xy, byte[] q, int uv, int width) {
+        for (int x = 0; x < width; x++) {
+            int v = p[xy + x];
+            // Rec. 601 luma with weights in 1/256
+            q[uv + x] = (byte) ((77 * ((v >> 16) & 0xff) + 150 * ((v >> 8) & 0xff) + 29 * (v & 0xff) + 128) >> 8);
+        }
+    }
+
+    private static void lookup(int[] p, int xy, byte[] q, int uv, int width, byte[] lookup) {
+        final int shift = 8 - LOOKUP_BITS;
+        final int mask = (1 << LOOKUP_BITS) - 1;
+        for (int x = 0; x < width; x++) {
+            int v = p[xy + x];
+            q[uv + x] = lookup[((v >> (16 + shift)) & mask) << (2 * LOOKUP_BITS)
+                    | ((v >> (8 + shift)) & mask) << LOOKUP_BITS | (v >> shift) & mask];
+        }
+    }
+}
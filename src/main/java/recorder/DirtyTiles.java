@@ -0,0 +1,157 @@
+package recorder;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tiles of a frame, that changed compared to the previous frame.
+ * Filled by {@link FrameDiffer} and passed along with the frame in
+ * {@code Buffer.header}, so that encoders can skip unchanged regions. The
+ * tiles belong to the frame and are overwritten, when the frame is reused.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class DirtyTiles {
+    private final int tileSize;
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final boolean[] dirty;
+    private int dirtyCount;
+
+    DirtyTiles(int width, int height, int tileSize, int columns, int rows) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.dirty = new boolean[columns * rows];
+    }
+
+    boolean[] getDirty() {
+        return dirty;
+    }
+
+    void setDirtyCount(int dirtyCount) {
+        this.dirtyCount = dirtyCount;
+    }
+
+    /**
+     * Creates clean tiles of the same size.
+     */
+    DirtyTiles createLike() {
+        return new DirtyTiles(width, height, tileSize, columns, rows);
+    }
+
+    /**
+     * Returns true if the other tiles have the same size.
+     */
+    boolean isLike(DirtyTiles other) {
+        return other.width == width && other.height == height && other.tileSize == tileSize;
+    }
+
+    /**
+     * Marks all tiles as unchanged.
+     */
+    void clear() {
+        Arrays.fill(dirty, false);
+        dirtyCount = 0;
+    }
+
+    /**
+     * Marks the tiles, that changed in other tiles of the same size, as
+     * changed.
+     *
+     * @return false if the other tiles have another size, nothing is marked then
+     */
+    boolean add(DirtyTiles other) {
+        if (!isLike(other)) {
+            return false;
+        }
+        int n = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            dirty[i] |= other.dirty[i];
+            if (dirty[i]) {
+                n++;
+            }
+        }
+        dirtyCount = n;
+        return true;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public boolean isDirty(int column, int row) {
+        return dirty[row * columns + column];
+    }
+
+    /**
+     * Returns true if any tile in the row of tiles changed.
+     */
+    public boolean isRowDirty(int row) {
+        for (int i = row * columns, end = i + columns; i < end; i++) {
+            if (dirty[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * Returns true if nothing changed.
+     */
+    public boolean isEmpty() {
+        return dirtyCount == 0;
+    }
+
+    /**
+     * Returns true if every tile changed.
+     */
+    public boolean isFull() {
+        return dirtyCount == dirty.length;
+    }
+
+    /**
+     * Returns the changed regions of the frame. Horizontally adjacent dirty
+     * tiles are merged into one rectangle.
+     */
+    public List<Rectangle> getDirtyRectangles() {
+        List<Rectangle> rectangles = new ArrayList<Rectangle>();
+        for (int row = 0; row < rows; row++) {
+            int column = 0;
+            while (column < columns) {
+                if (!dirty[row * columns + column]) {
+                    column++;
+                    continue;
+                }
+                int start = column;
+                while (column < columns && dirty[row * columns + column]) {
+                    column++;
+                }
+                int x = start * tileSize;
+                int y = row * tileSize;
+                rectangles.add(new Rectangle(x, y,
+                        Math.min(width, column * tileSize) - x, Math.min(height, y + tileSize) - y));
+            }
+        }
+        return rectangles;
+    }
+}
@@ -0,0 +1,351 @@
+package recorder;
+
+import org.monte.media.AbstractVideoCodec;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Scales the captured frames to the size of the video. <p> Unlike
+ * {@link org.monte.media.converter.ScaleImageCodec}, that draws every frame
+ * with Java2D, frames with integer pixels are filtered directly on their
+ * {@code int[]} raster with fixed-point weights. The weights are computed
+ * once per size, the scaled image is reused from frame to frame, and the
+ * rows are split across the threads of a fork-join pool. Other images are
+ * scaled with Java2D.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FastScaleImageCodec extends AbstractVideoCodec {
+    /**
+     * Number of fraction bits of a weight.
+     */
+    private static final int WEIGHT_BITS = 14;
+    /**
+     * Fraction bits, that are dropped after the horizontal pass, so that
+     * the vertical pass doesn't overflow.
+     */
+    private static final int HORIZONTAL_SHIFT = 7;
+    private static final int FINAL_SHIFT = 2 * WEIGHT_BITS - HORIZONTAL_SHIFT;
+    /**
+     * Minimal number of rows, that a thread scales.
+     */
+    private static final int MIN_BAND_HEIGHT = 32;
+
+    /**
+     * Source pixels and weights of the pixels of one axis of the scaled
+     * image. Pixel i is the weighted sum of the source pixels
+     * {@code index[start[i]..start[i + 1])}.
+     */
+    private static final class Filter {
+        final int[] start;
+        final int[] index;
+        final int[] weight;
+
+        Filter(int[] start, int[] index, int[] weight) {
+            this.start = start;
+            this.index = index;
+            this.weight = weight;
+        }
+    }
+
+    private final ScaleQuality quality;
+    private final ForkJoinPool pool;
+    private Filter horizontal;
+    private Filter vertical;
+    private int srcWidth;
+    private int srcHeight;
+    private BufferedImage output;
+    /**
+     * Accumulators of the threads, one row of the scaled image each.
+     */
+    private int[][] rows = new int[0][];
+
+    public FastScaleImageCodec() {
+        this(ScaleQuality.QUALITY, null);
+    }
+
+    /**
+     * @param quality - how the frames are filtered
+     * @param pool - the pool, that scales the rows, null to scale on the calling thread
+     */
+    public FastScaleImageCodec(ScaleQuality quality, ForkJoinPool pool) {
+        super(new Format[]{new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                        EncodingKey, ENCODING_BUFFERED_IMAGE)},
+                new Format[]{new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                        EncodingKey, ENCODING_BUFFERED_IMAGE)});
+        this.name = "Fast Scale Image";
+        this.quality = quality != null ? quality : ScaleQuality.QUALITY;
+        this.pool = pool;
+    }
+
+    public ScaleQuality getQuality() {
+        return quality;
+    }
+
+    @Override
+    public Format setOutputFormat(Format f) {
+        if (!f.containsKey(WidthKey) || !f.containsKey(HeightKey)) {
+            throw new IllegalArgumentException("Output format must specify width and height.");
+        }
+        return super.setOutputFormat(f.prepend(DepthKey, 24));
+    }
+
+    public int process(Buffer in, Buffer out) {
+        out.setMetaTo(in);
+        out.format = outputFormat;
+        // The dirty tiles of the header are regions of the source image
+        out.header = null;
+        if (in.isFlag(BufferFlag.DISCARD)) {
+            return CODEC_OK;
+        }
+        BufferedImage imgIn = (BufferedImage) in.data;
+        if (imgIn == null) {
+            out.setFlag(BufferFlag.DISCARD);
+            return CODEC_FAILED;
+        }
+        int width = outputFormat.get(WidthKey);
+        int height = outputFormat.get(HeightKey);
+        if (output == null || output.getWidth() != width || output.getHeight() != height
+                || output.getType() != imgIn.getType()
+                || (imgIn.getColorModel() instanceof IndexColorModel && output.getColorModel() != imgIn.getColorModel())) {
+            output = imgIn.getColorModel() instanceof IndexColorModel
+                    ? new BufferedImage(width, height, imgIn.getType(), (IndexColorModel) imgIn.getColorModel())
+                    : new BufferedImage(width, height, imgIn.getType());
+        }
+        if (isIntRGB(imgIn)) {
+            scale(imgIn, output);
+        } else {
+            draw(imgIn, output);
+        }
+        out.data = output;
+        return CODEC_OK;
+    }
+
+    /**
+     * Returns true, if the image keeps one pixel in an int of its raster.
+     */
+    private static boolean isIntRGB(BufferedImage image) {
+        return (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * Scales with Java2D.
+     */
+    private void draw(BufferedImage imgIn, BufferedImage imgOut) {
+        Graphics2D g = imgOut.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, quality == ScaleQuality.SPEED
+                ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.drawImage(imgIn, 0, 0, imgOut.getWidth(), imgOut.getHeight(), null);
+        g.dispose();
+    }
+
+    private void scale(BufferedImage imgIn, BufferedImage imgOut) {
+        int width = imgOut.getWidth();
+        int height = imgOut.getHeight();
+        if (horizontal == null || srcWidth != imgIn.getWidth() || srcHeight != imgIn.getHeight()
+                || horizontal.start.length != width + 1 || vertical.start.length != height + 1) {
+            srcWidth = imgIn.getWidth();
+            srcHeight = imgIn.getHeight();
+            horizontal = createFilter(srcWidth, width, quality);
+            vertical = createFilter(srcHeight, height, quality);
+        }
+        int bands = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), height / MIN_BAND_HEIGHT));
+        if (rows.length != bands || rows[0].length != width * 3) {
+            rows = new int[bands][width * 3];
+        }
+        WritableRaster src = imgIn.getRaster();
+        WritableRaster dst = imgOut.getRaster();
+        Image source = new Image(src);
+        Image target = new Image(dst);
+        if (bands == 1) {
+            scaleRows(source, target, 0, height, rows[0]);
+        } else {
+            pool.invoke(new RowTask(source, target, 0, bands));
+        }
+    }
+
+    /**
+     * The pixels of an image with integer pixels.
+     */
+    private static final class Image {
+        final int[] pixels;
+        final int offset;
+        final int scanlineStride;
+
+        Image(WritableRaster raster) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            pixels = buffer.getData();
+            scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            offset = buffer.getOffset() - raster.getSampleModelTranslateX()
+                    - raster.getSampleModelTranslateY() * scanlineStride;
+        }
+    }
+
+    /**
+     * Scales a range of bands, splits the range until there is one band
+     * per task.
+     */
+    private final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Image source;
+        private final Image target;
+        private final int from;
+        private final int to;
+
+        RowTask(Image source, Image target, int from, int to) {
+            this.source = source;
+            this.target = target;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(source, target, from, mid), new RowTask(source, target, mid, to));
+            } else {
+                int height = vertical.start.length - 1;
+                scaleRows(source, target, (int) ((long) height * from / rows.length),
+                        (int) ((long) height * (from + 1) / rows.length), rows[from]);
+            }
+        }
+    }
+
+    /**
+     * Scales the rows [y0,y1) of the scaled image.
+     *
+     * @param acc - accumulator for the red, green and blue sums of a row
+     */
+    private void scaleRows(Image source, Image target, int y0, int y1, int[] acc) {
+        int[] src = source.pixels;
+        int[] dst = target.pixels;
+        int[] xStart = horizontal.start;
+        int[] xIndex = horizontal.index;
+        int[] xWeight = horizontal.weight;
+        int width = xStart.length - 1;
+        int round = 1 << (FINAL_SHIFT - 1);
+        // Bilinear filters always have two taps per pixel
+        boolean bilinear = quality == ScaleQuality.SPEED;
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+            for (int t = vertical.start[y], tEnd = vertical.start[y + 1]; t < tEnd; t++) {
+                int row = source.offset + vertical.index[t] * source.scanlineStride;
+                int wy = vertical.weight[t];
+                if (bilinear) {
+                    for (int x = 0, a = 0, k = 0; x < width; x++, a += 3, k += 2) {
+                        int p0 = src[row + xIndex[k]];
+                        int p1 = src[row + xIndex[k + 1]];
+                        int w0 = xWeight[k];
+                        int w1 = xWeight[k + 1];
+                        acc[a] += ((((p0 >> 16) & 0xff) * w0 + ((p1 >> 16) & 0xff) * w1) >> HORIZONTAL_SHIFT) * wy;
+                        acc[a + 1] += ((((p0 >> 8) & 0xff) * w0 + ((p1 >> 8) & 0xff) * w1) >> HORIZONTAL_SHIFT) * wy;
+                        acc[a + 2] += (((p0 & 0xff) * w0 + (p1 & 0xff) * w1) >> HORIZONTAL_SHIFT) * wy;
+                    }
+                    continue;
+                }
+                for (int x = 0, a = 0; x < width; x++, a += 3) {
+                    int r = 0;
+                    int g = 0;
+                    int b = 0;
+                    for (int k = xStart[x], kEnd = xStart[x + 1]; k < kEnd; k++) {
+                        int px = src[row + xIndex[k]];
+                        int w = xWeight[k];
+                        r += ((px >> 16) & 0xff) * w;
+                        g += ((px >> 8) & 0xff) * w;
+                        b += (px & 0xff) * w;
+                    }
+                    acc[a] += (r >> HORIZONTAL_SHIFT) * wy;
+                    acc[a + 1] += (g >> HORIZONTAL_SHIFT) * wy;
+                    acc[a + 2] += (b >> HORIZONTAL_SHIFT) * wy;
+                }
+            }
+            int xy = target.offset + y * target.scanlineStride;
+            for (int x = 0, a = 0; x < width; x++, a += 3) {
+                dst[xy + x] = 0xff000000
+                        | ((acc[a] + round) >> FINAL_SHIFT) << 16
+                        | ((acc[a + 1] + round) >> FINAL_SHIFT) << 8
+                        | (acc[a + 2] + round) >> FINAL_SHIFT;
+            }
+        }
+    }
+
+    /**
+     * Computes the weights of the source pixels for one axis.
+     *
+     * @param srcSize - number of source pixels
+     * @param dstSize - number of scaled pixels
+     */
+    static Filter createFilter(int srcSize, int dstSize, ScaleQuality quality) {
+        double scale = (double) srcSize / dstSize;
+        int maxTaps = quality == ScaleQuality.SPEED ? 2 : (int) Math.ceil(scale) + 1;
+        int[] start = new int[dstSize + 1];
+        int[] index = new int[dstSize * maxTaps];
+        int[] weight = new int[dstSize * maxTaps];
+        double[] fraction = new double[maxTaps];
+        int n = 0;
+        for (int i = 0; i < dstSize; i++) {
+            start[i] = n;
+            int first;
+            int taps;
+            if (quality == ScaleQuality.SPEED) {
+                double center = (i + 0.5) * scale - 0.5;
+                first = (int) Math.floor(center);
+                double f = center - first;
+                if (first < 0) {
+                    first = 0;
+                    f = 0;
+                } else if (first >= srcSize - 1) {
+                    first = srcSize - 1;
+                    f = 0;
+                }
+                fraction[0] = 1 - f;
+                fraction[1] = f;
+                taps = 2;
+            } else {
+                double left = i * scale;
+                double right = Math.min(srcSize, (i + 1) * scale);
+                first = (int) left;
+                taps = Math.max(1, (int) Math.ceil(right) - first);
+                for (int k = 0; k < taps; k++) {
+                    double overlap = Math.min(right, first + k + 1) - Math.max(left, first + k);
+                    fraction[k] = overlap / (right - left);
+                }
+            }
+            // Round the weights and give the rounding error to the largest,
+            // so that they add up to exactly one
+            int sum = 0;
+            int largest = n;
+            for (int k = 0; k < taps; k++) {
+                index[n] = Math.min(first + k, srcSize - 1);
+                weight[n] = (int) Math.round(fraction[k] * (1 << WEIGHT_BITS));
+                sum += weight[n];
+                if (weight[n] > weight[largest]) {
+                    largest = n;
+                }
+                n++;
+            }
+            weight[largest] += (1 << WEIGHT_BITS) - sum;
+        }
+        start[dstSize] = n;
+        return new Filter(start, index, weight);
+    }
+}
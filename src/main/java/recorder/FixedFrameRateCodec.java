@@ -0,0 +1,287 @@
+package recorder;
+
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.math.Rational;
+
+/**
+ * Converts a video stream with a variable frame rate into a stream with a
+ * fixed frame rate. <p> A frame is encoded once by the wrapped encoder, and
+ * written into the first frame slot, that it covers. The remaining slots are
+ * emitted as a single run of empty samples, which the movie writer stores as
+ * repeats of the previous frame, so catching up after a stall costs one
+ * buffer. Frames, that don't cover any slot, are discarded before they reach
+ * the encoder. The encoder doesn't see the changes of a discarded frame, so
+ * the next frame, that is encoded, is never flagged with {@code SAME_DATA},
+ * and the {@link DirtyTiles} of the discarded frames are added to its tiles.
+ * <p> The time of a {@link TimedBuffer} is taken in nanoseconds, and the
+ * output gets the time of its slot in nanoseconds, the constant frame
+ * duration is the only {@link Rational}, that is set. Other buffers get the
+ * time of the slot as {@code timeStamp}.
+ * <p> After emitting an encoded frame with further slots pending,
+ * {@link #process(Buffer, Buffer)} returns {@code CODEC_INPUT_NOT_CONSUMED}
+ * and the caller has to call it again to get the repeat run.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FixedFrameRateCodec implements Codec {
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Codec encoder;
+    /**
+     * Frame rate of the output stream, {@code rateNumerator / rateDenominator}
+     * frames per second.
+     */
+    private final long rateNumerator;
+    private final long rateDenominator;
+    private final Rational frameDuration;
+    /**
+     * Index of the next frame slot.
+     */
+    private long nextSlot;
+    private Format repeatFormat;
+    private int pendingRepeats;
+    private long encodedFrames;
+    private long repeatedFrames;
+    private long discardedFrames;
+    /**
+     * True if a frame with changes has been discarded since the last
+     * encoded frame.
+     */
+    private boolean changesDiscarded;
+    /**
+     * The tiles, that changed in the discarded frames, valid only if
+     * {@link #discardedTilesKnown} is true.
+     */
+    private DirtyTiles discardedTiles;
+    private boolean discardedTilesKnown;
+
+    /**
+     * @param encoder - encoder of the frames
+     * @param frameRate - frame rate of the output stream
+     * @param firstSlot - index of the first frame slot, the slots start at time 0
+     */
+    public FixedFrameRateCodec(Codec encoder, Rational frameRate, long firstSlot) {
+        if (frameRate.isLessOrEqualZero()) {
+            throw new IllegalArgumentException("Illegal frame rate " + frameRate);
+        }
+        this.encoder = encoder;
+        this.rateNumerator = frameRate.getNumerator();
+        this.rateDenominator = frameRate.getDenominator();
+        this.frameDuration = frameRate.inverse();
+        this.nextSlot = firstSlot;
+    }
+
+    public Format[] getInputFormats() {
+        return encoder.getInputFormats();
+    }
+
+    public Format[] getOutputFormats(Format input) {
+        return encoder.getOutputFormats(input);
+    }
+
+    public Format setInputFormat(Format input) {
+        return encoder.setInputFormat(input);
+    }
+
+    public Format getInputFormat() {
+        return encoder.getInputFormat();
+    }
+
+    public Format setOutputFormat(Format output) {
+        return encoder.setOutputFormat(output);
+    }
+
+    public Format getOutputFormat() {
+        return encoder.getOutputFormat();
+    }
+
+    public int process(Buffer in, Buffer out) {
+        if (pendingRepeats > 0) {
+            emitRepeats(in, out);
+            return CODEC_OK;
+        }
+        if (in.isFlag(BufferFlag.DISCARD)) {
+            out.setMetaTo(in);
+            return CODEC_OK;
+        }
+        long end = in instanceof TimedBuffer ? ((TimedBuffer) in).time + ((TimedBuffer) in).duration
+                : toNanos(in.timeStamp) + toNanos(in.sampleDuration);
+        long slots = slotAt(end) - nextSlot;
+        if (slots <= 0) {
+            if (!in.isFlag(BufferFlag.SAME_DATA)) {
+                discardChanges(in.header);
+            }
+            out.setMetaTo(in);
+            out.setFlag(BufferFlag.DISCARD);
+            discardedFrames++;
+            return CODEC_OK;
+        }
+        if (changesDiscarded) {
+            addDiscardedChanges(in);
+        }
+        int status = encoder.process(in, out);
+        if (status != CODEC_OK) {
+            return status;
+        }
+        setSlotTime(out, 1);
+        encodedFrames++;
+        repeatFormat = out.format;
+        nextSlot++;
+        pendingRepeats = (int) Math.min(Integer.MAX_VALUE, slots - 1);
+        return pendingRepeats > 0 ? CODEC_INPUT_NOT_CONSUMED : CODEC_OK;
+    }
+
+    /**
+     * Remembers the changes of a discarded frame.
+     *
+     * @param header - the header of the frame, the tiles are copied
+     */
+    private void discardChanges(Object header) {
+        DirtyTiles tiles = header instanceof DirtyTiles ? (DirtyTiles) header : null;
+        if (!changesDiscarded) {
+            changesDiscarded = true;
+            discardedTilesKnown = tiles != null;
+            if (tiles == null) {
+                return;
+            }
+            if (discardedTiles == null || !discardedTiles.isLike(tiles)) {
+                discardedTiles = tiles.createLike();
+            } else {
+                discardedTiles.clear();
+            }
+        }
+        discardedTilesKnown = discardedTilesKnown && tiles != null && discardedTiles.add(tiles);
+    }
+
+    /**
+     * Passes the changes of the discarded frames on with the next frame, that
+     * is encoded. The header is cleared, if the changed tiles are not known,
+     * so that the encoder compares the whole frame.
+     */
+    private void addDiscardedChanges(Buffer in) {
+        in.clearFlag(BufferFlag.SAME_DATA);
+        if (in.header instanceof DirtyTiles
+                && !(discardedTilesKnown && ((DirtyTiles) in.header).add(discardedTiles))) {
+            in.header = null;
+        }
+        changesDiscarded = false;
+    }
+
+    private void emitRepeats(Buffer in, Buffer out) {
+        out.clearFlag(BufferFlag.KEYFRAME);
+        out.clearFlag(BufferFlag.DISCARD);
+        out.setFlag(BufferFlag.SAME_DATA);
+        out.format = repeatFormat;
+        out.track = in.track;
+        out.sequenceNumber = in.sequenceNumber;
+        out.sampleCount = pendingRepeats;
+        setSlotTime(out, pendingRepeats);
+        out.data = NO_DATA;
+        out.offset = 0;
+        out.length = 0;
+        out.header = null;
+        nextSlot += pendingRepeats;
+        repeatedFrames += pendingRepeats;
+        pendingRepeats = 0;
+    }
+
+    /**
+     * Returns the index of the next frame slot.
+     */
+    public long getNextSlot() {
+        return nextSlot;
+    }
+
+    /**
+     * Sets the time of the next frame slots.
+     *
+     * @param count - number of the slots
+     */
+    private void setSlotTime(Buffer out, long count) {
+        out.sampleDuration = frameDuration;
+        if (out instanceof TimedBuffer) {
+            TimedBuffer timed = (TimedBuffer) out;
+            timed.time = slotNanos(nextSlot);
+            timed.duration = slotNanos(nextSlot + count) - timed.time;
+            timed.timeStamp = null;
+        } else {
+            out.timeStamp = slotTime(nextSlot);
+        }
+    }
+
+    /**
+     * Returns the time of a frame slot.
+     */
+    private Rational slotTime(long slot) {
+        return new Rational(slot * rateDenominator, rateNumerator);
+    }
+
+    /**
+     * Returns the start of a frame slot in nanoseconds.
+     */
+    private long slotNanos(long slot) {
+        long seconds = slot / rateNumerator;
+        long remainder = slot % rateNumerator;
+        return seconds * rateDenominator * 1000000000L + remainder * rateDenominator * 1000000000L / rateNumerator;
+    }
+
+    /**
+     * Returns the first frame slot, that starts at or after the given time.
+     */
+    private long slotAt(long nanos) {
+        long slot = (long) Math.ceil(nanos / 1e9 * rateNumerator / rateDenominator);
+        while (slot > 0 && slotNanos(slot - 1) >= nanos) {
+            slot--;
+        }
+        while (slotNanos(slot) < nanos) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static long toNanos(Rational time) {
+        long num = time.getNumerator();
+        long den = time.getDenominator();
+        long seconds = num / den;
+        long remainder = num % den;
+        if (den <= 1000000000L) {
+            return seconds * 1000000000L + remainder * 1000000000L / den;
+        }
+        return seconds * 1000000000L + (long) ((double) remainder / den * 1e9);
+    }
+
+    /**
+     * Returns the number of frames, that have been encoded.
+     */
+    public long getEncodedFrameCount() {
+        return encodedFrames;
+    }
+
+    /**
+     * Returns the number of frame slots, that repeat the previous frame.
+     */
+    public long getRepeatedFrameCount() {
+        return repeatedFrames;
+    }
+
+    /**
+     * Returns the number of frames, that have been discarded, because they
+     * didn't cover a frame slot.
+     */
+    public long getDiscardedFrameCount() {
+        return discardedFrames;
+    }
+
+    public String getName() {
+        return "Fixed frame rate, " + encoder.getName();
+    }
+
+    public void reset() {
+        encoder.reset();
+        pendingRepeats = 0;
+    }
+}
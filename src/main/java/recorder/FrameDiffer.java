@@ -0,0 +1,121 @@
+package recorder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.util.Arrays;
+
+/**
+ * Detects changes between consecutive frames. The frame is split into
+ * square tiles, and a hash of every tile is compared with the hash of the
+ * same tile in the previous frame. <p> The frames must have the same size
+ * and one of the image types, that the grabber records into. <p> A tile,
+ * that keeps its hash, is taken as unchanged without comparing the pixels.
+ * Every step of the hash is a bijection of the state for a given pixel, so
+ * a change of a single pixel of a tile always changes its hash; tiles with
+ * more changed pixels collide with a chance of about 2^-64. After a
+ * collision the tile keeps its previous content until it changes again or
+ * until the next key frame, which encoders write in full. This is accepted
+ * to avoid keeping and reading a copy of the previous frame.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FrameDiffer {
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int columns;
+    private final int rows;
+    private long[] previousHashes;
+    private final long[] hashes;
+
+    public FrameDiffer(int width, int height, int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Illegal tile size " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.hashes = new long[columns * rows];
+    }
+
+    /**
+     * Creates the tiles, that {@link #compare(BufferedImage, DirtyTiles)}
+     * fills. They can be reused for every frame, that is not used any more.
+     */
+    public DirtyTiles createDirtyTiles() {
+        return new DirtyTiles(width, height, tileSize, columns, rows);
+    }
+
+    /**
+     * Compares the frame with the frame of the previous call. The first frame
+     * is entirely dirty.
+     *
+     * @param tiles - tiles of this differ, that are overwritten with the result
+     * @return the tiles
+     */
+    public DirtyTiles compare(BufferedImage image, DirtyTiles tiles) {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException("Frame size " + image.getWidth() + "x" + image.getHeight()
+                    + " differs from " + width + "x" + height);
+        }
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferInt) && !(dataBuffer instanceof DataBufferUShort)
+                && !(dataBuffer instanceof DataBufferByte)) {
+            throw new IllegalArgumentException("Unsupported image type " + image.getType());
+        }
+        hash(dataBuffer);
+
+        boolean[] dirty = tiles.getDirty();
+        int dirtyCount = 0;
+        if (previousHashes == null) {
+            previousHashes = new long[hashes.length];
+            Arrays.fill(dirty, true);
+            dirtyCount = dirty.length;
+        } else {
+            for (int i = 0; i < hashes.length; i++) {
+                dirty[i] = hashes[i] != previousHashes[i];
+                if (dirty[i]) {
+                    dirtyCount++;
+                }
+            }
+        }
+        System.arraycopy(hashes, 0, previousHashes, 0, hashes.length);
+        tiles.setDirtyCount(dirtyCount);
+        return tiles;
+    }
+
+    /**
+     * Forgets the previous frame, the next frame is entirely dirty.
+     */
+    public void reset() {
+        previousHashes = null;
+    }
+
+    /**
+     * Hashes the tiles of a frame with one element per pixel. The elements
+     * are read through the data buffer, the call is inlined for the one
+     * buffer type of a recording.
+     */
+    private void hash(DataBuffer pixels) {
+        Arrays.fill(hashes, 0);
+        for (int y = 0; y < height; y++) {
+            int tileRow = (y / tileSize) * columns;
+            int xy = y * width;
+            for (int column = 0; column < columns; column++) {
+                long h = hashes[tileRow + column];
+                for (int end = Math.min(xy + tileSize, (y + 1) * width); xy < end; xy++) {
+                    h = (h ^ pixels.getElem(xy)) * PRIME;
+                }
+                hashes[tileRow + column] = h;
+            }
+        }
+    }
+}
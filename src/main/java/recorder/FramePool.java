@@ -0,0 +1,179 @@
+package recorder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Pool of frame images, keyed by size and image type. Images are taken with
+ * {@link #acquire(int, int, int)} and handed back with {@link #release(BufferedImage)}
+ * once nobody reads them any more. <p> The pool keeps at most
+ * {@code maxPooledBytes} of released images, the least recently used sizes
+ * are evicted first. An image, that is released while it is in the pool,
+ * is ignored, so that a second release doesn't hand it out twice.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FramePool {
+    /**
+     * Default limit of the pooled bytes, enough for a few full-HD frames.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static class Bucket {
+        final int width;
+        final int height;
+        final int type;
+        final ArrayDeque<BufferedImage> images = new ArrayDeque<BufferedImage>();
+        long lastUse;
+
+        Bucket(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+    }
+
+    private final long maxPooledBytes;
+    private final ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+    /**
+     * The images in the buckets.
+     */
+    private final Set<BufferedImage> pooled = Collections.newSetFromMap(new IdentityHashMap<BufferedImage, Boolean>());
+    private long pooledBytes;
+    private long useCounter;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public FramePool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    public FramePool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Takes an image out of the pool or creates a new one. The content of a
+     * pooled image is undefined.
+     *
+     * @param type - one of the predefined {@code BufferedImage} types without
+     * a custom color model
+     */
+    public synchronized BufferedImage acquire(int width, int height, int type) {
+        Bucket bucket = findBucket(width, height, type);
+        if (bucket != null && !bucket.images.isEmpty()) {
+            BufferedImage image = bucket.images.pollLast();
+            pooled.remove(image);
+            bucket.lastUse = ++useCounter;
+            pooledBytes -= sizeOf(image);
+            hits++;
+            return image;
+        }
+        misses++;
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Hands an image back to the pool.
+     */
+    public synchronized void release(BufferedImage image) {
+        if (image == null || pooled.contains(image)) {
+            return;
+        }
+        long size = sizeOf(image);
+        if (size > maxPooledBytes) {
+            evictions++;
+            return;
+        }
+        while (pooledBytes + size > maxPooledBytes) {
+            evictLeastRecentlyUsed();
+        }
+        Bucket bucket = findBucket(image.getWidth(), image.getHeight(), image.getType());
+        if (bucket == null) {
+            bucket = new Bucket(image.getWidth(), image.getHeight(), image.getType());
+            buckets.add(bucket);
+        }
+        bucket.images.addLast(image);
+        pooled.add(image);
+        bucket.lastUse = ++useCounter;
+        pooledBytes += size;
+    }
+
+    /**
+     * Drops all pooled images.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        pooled.clear();
+        pooledBytes = 0;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Number of acquired images, that came from the pool.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of acquired images, that had to be created.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of released images, that were dropped to stay within the limit.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private Bucket findBucket(int width, int height, int type) {
+        for (int i = 0, n = buckets.size(); i < n; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket.width == width && bucket.height == height && bucket.type == type) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Bucket oldest = null;
+        for (int i = 0, n = buckets.size(); i < n; i++) {
+            Bucket bucket = buckets.get(i);
+            if (!bucket.images.isEmpty() && (oldest == null || bucket.lastUse < oldest.lastUse)) {
+                oldest = bucket;
+            }
+        }
+        BufferedImage image = oldest.images.pollFirst();
+        pooled.remove(image);
+        pooledBytes -= sizeOf(image);
+        evictions++;
+        if (oldest.images.isEmpty()) {
+            buckets.remove(oldest);
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,331 @@
+package recorder;
+
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+import org.monte.media.MovieWriter;
+import org.monte.media.math.Rational;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last seconds of encoded video frames and audio samples in
+ * memory, so that they can be written to a movie later. <p> The sample data
+ * is kept in a direct buffer of a fixed size, outside of the Java heap. Only
+ * the small description of a sample is kept on the heap. The ring always
+ * starts with a video key frame: samples are dropped a whole key frame
+ * interval at a time, when they are older than the duration of the ring or
+ * when the buffer is full. The recorder asks for a key frame, when
+ * {@link #isKeyFrameDue()} says so, so that the ring doesn't keep much more
+ * than its duration. <p> One thread adds samples, other threads can copy the
+ * ring at any time.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FrameRing {
+    /**
+     * Key frames are requested after this fraction of the duration.
+     */
+    private static final int KEY_FRAMES_PER_DURATION = 4;
+    private static final int INITIAL_ENTRIES = 256;
+
+    private final int videoTrack;
+    private final long duration;
+    private final ByteBuffer data;
+    private final int capacity;
+
+    // Descriptions of the samples, entry i is at index i % entries.length
+    private int[] track = new int[INITIAL_ENTRIES];
+    private boolean[] keyFrame = new boolean[INITIAL_ENTRIES];
+    private int[] sampleCount = new int[INITIAL_ENTRIES];
+    private long[] time = new long[INITIAL_ENTRIES];
+    private long[] position = new long[INITIAL_ENTRIES];
+    private int[] length = new int[INITIAL_ENTRIES];
+    private Format[] format = new Format[INITIAL_ENTRIES];
+    private Rational[] sampleDuration = new Rational[INITIAL_ENTRIES];
+    private Object[] header = new Object[INITIAL_ENTRIES];
+
+    /**
+     * Number of the oldest entry and of the next entry.
+     */
+    private long first;
+    private long next;
+    /**
+     * Position of the next data in the stream of all data, that has been
+     * added. The data of an entry is at {@code position % capacity}, and
+     * it never wraps around the end of the buffer.
+     */
+    private long head;
+    /**
+     * Time of the newest key frame, Long.MIN_VALUE if there is none.
+     */
+    private long lastKeyFrameTime = Long.MIN_VALUE;
+    private long droppedSamples;
+
+    /**
+     * @param videoTrack - the track of the video frames
+     * @param duration - time in milliseconds, that the ring keeps at least
+     * @param capacity - size of the buffer for the sample data in bytes
+     */
+    public FrameRing(int videoTrack, long duration, int capacity) {
+        if (duration <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Illegal ring of " + duration + " ms and " + capacity + " bytes");
+        }
+        this.videoTrack = videoTrack;
+        this.duration = TimeUnit.MILLISECONDS.toNanos(duration);
+        this.capacity = capacity;
+        this.data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Returns the time in milliseconds, that the ring keeps at least.
+     */
+    public long getDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(duration);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of samples in the ring.
+     */
+    public synchronized int size() {
+        return (int) (next - first);
+    }
+
+    /**
+     * Returns the number of data bytes, that the samples in the ring take.
+     */
+    public synchronized long getBytes() {
+        return first == next ? 0 : head - position[index(first)];
+    }
+
+    /**
+     * Returns the number of samples, that could not be kept, because the
+     * buffer was too small or the ring didn't start with a key frame yet.
+     */
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Returns true, if the newest key frame is so old, that the recorder
+     * should encode the next frame as key frame.
+     */
+    public synchronized boolean isKeyFrameDue() {
+        return lastKeyFrameTime == Long.MIN_VALUE
+                || System.nanoTime() - lastKeyFrameTime >= duration / KEY_FRAMES_PER_DURATION;
+    }
+
+    /**
+     * Copies an encoded sample into the ring. The sample is dropped, if the
+     * ring is empty and the sample is not a video key frame.
+     */
+    public synchronized void add(Buffer buf) {
+        long now = System.nanoTime();
+        boolean isKeyFrame = buf.track == videoTrack && buf.isFlag(BufferFlag.KEYFRAME);
+        if (isKeyFrame) {
+            dropOlderThan(now - duration);
+        }
+        if ((first == next && !isKeyFrame) || buf.length > capacity) {
+            droppedSamples++;
+            return;
+        }
+        long start = head;
+        if (start % capacity + buf.length > capacity) {
+            start += capacity - start % capacity;
+        }
+        while (first < next && start + buf.length - position[index(first)] > capacity) {
+            if (!dropInterval()) {
+                // The buffer doesn't hold a single key frame interval
+                droppedSamples += next - first;
+                clear();
+                if (!isKeyFrame) {
+                    droppedSamples++;
+                    return;
+                }
+            }
+        }
+        if (next - first == track.length) {
+            grow();
+        }
+        int i = index(next);
+        track[i] = buf.track;
+        keyFrame[i] = isKeyFrame;
+        sampleCount[i] = buf.sampleCount;
+        time[i] = now;
+        position[i] = start;
+        length[i] = buf.length;
+        format[i] = buf.format;
+        sampleDuration[i] = buf.sampleDuration;
+        header[i] = buf.header;
+        data.position((int) (start % capacity));
+        data.put((byte[]) buf.data, buf.offset, buf.length);
+        head = start + buf.length;
+        next++;
+        if (isKeyFrame) {
+            lastKeyFrameTime = now;
+        }
+    }
+
+    /**
+     * Drops the key frame intervals, after which another key frame starts
+     * before the given time.
+     */
+    private void dropOlderThan(long time) {
+        long newFirst = first;
+        for (long e = first + 1; e < next; e++) {
+            int i = index(e);
+            if (this.time[i] > time) {
+                break;
+            }
+            if (keyFrame[i]) {
+                newFirst = e;
+            }
+        }
+        dropBefore(newFirst);
+    }
+
+    /**
+     * Drops the oldest key frame interval, false if it is the only one.
+     */
+    private boolean dropInterval() {
+        for (long e = first + 1; e < next; e++) {
+            if (keyFrame[index(e)]) {
+                dropBefore(e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropBefore(long newFirst) {
+        for (long e = first; e < newFirst; e++) {
+            int i = index(e);
+            format[i] = null;
+            sampleDuration[i] = null;
+            header[i] = null;
+        }
+        first = newFirst;
+    }
+
+    /**
+     * Drops all samples.
+     */
+    public synchronized void clear() {
+        dropBefore(next);
+        lastKeyFrameTime = Long.MIN_VALUE;
+    }
+
+    private int index(long entry) {
+        return (int) (entry % track.length);
+    }
+
+    private void grow() {
+        int n = track.length * 2;
+        int[] track = new int[n];
+        boolean[] keyFrame = new boolean[n];
+        int[] sampleCount = new int[n];
+        long[] time = new long[n];
+        long[] position = new long[n];
+        int[] length = new int[n];
+        Format[] format = new Format[n];
+        Rational[] sampleDuration = new Rational[n];
+        Object[] header = new Object[n];
+        for (long e = first; e < next; e++) {
+            int i = index(e);
+            int j = (int) (e % n);
+            track[j] = this.track[i];
+            keyFrame[j] = this.keyFrame[i];
+            sampleCount[j] = this.sampleCount[i];
+            time[j] = this.time[i];
+            position[j] = this.position[i];
+            length[j] = this.length[i];
+            format[j] = this.format[i];
+            sampleDuration[j] = this.sampleDuration[i];
+            header[j] = this.header[i];
+        }
+        this.track = track;
+        this.keyFrame = keyFrame;
+        this.sampleCount = sampleCount;
+        this.time = time;
+        this.position = position;
+        this.length = length;
+        this.format = format;
+        this.sampleDuration = sampleDuration;
+        this.header = header;
+    }
+
+    /**
+     * Copies the samples in the ring. The copy is on the heap, the ring can
+     * go on while the copy is written.
+     */
+    public synchronized Snapshot snapshot() {
+        int n = (int) (next - first);
+        Buffer[] buffers = new Buffer[n];
+        byte[] bytes = new byte[(int) getBytes()];
+        long base = n == 0 ? 0 : position[index(first)];
+        for (int k = 0; k < n; k++) {
+            int i = index(first + k);
+            Buffer buf = new Buffer();
+            buf.track = track[i];
+            buf.sampleCount = sampleCount[i];
+            buf.format = format[i];
+            buf.sampleDuration = sampleDuration[i];
+            buf.header = header[i];
+            buf.data = bytes;
+            buf.offset = (int) (position[i] - base);
+            buf.length = length[i];
+            if (keyFrame[i] || track[i] != videoTrack) {
+                buf.setFlag(BufferFlag.KEYFRAME);
+            }
+            data.position((int) (position[i] % capacity));
+            data.get(bytes, buf.offset, length[i]);
+            buffers[k] = buf;
+        }
+        return new Snapshot(buffers, n == 0 ? 0 : time[index(next - 1)] - time[index(first)]);
+    }
+
+    /**
+     * A copy of the samples in a ring.
+     */
+    public static final class Snapshot {
+        private final Buffer[] buffers;
+        private final long duration;
+
+        Snapshot(Buffer[] buffers, long duration) {
+            this.buffers = buffers;
+            this.duration = duration;
+        }
+
+        /**
+         * Returns the number of samples.
+         */
+        public int size() {
+            return buffers.length;
+        }
+
+        /**
+         * Returns the time in milliseconds between the first and the last
+         * sample.
+         */
+        public long getDuration() {
+            return TimeUnit.NANOSECONDS.toMillis(duration);
+        }
+
+        /**
+         * Writes the samples into a movie writer, that has the tracks of
+         * the recording.
+         */
+        public void writeTo(MovieWriter writer) throws IOException {
+            for (Buffer buf : buffers) {
+                writer.write(buf.track, buf);
+            }
+        }
+    }
+}
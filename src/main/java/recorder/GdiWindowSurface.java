@@ -0,0 +1,106 @@
+package recorder;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.GDI32;
+import com.sun.jna.platform.win32.User32;
+import com.sun.jna.platform.win32.WinDef.HBITMAP;
+import com.sun.jna.platform.win32.WinDef.HDC;
+import com.sun.jna.platform.win32.WinDef.HWND;
+import com.sun.jna.platform.win32.WinGDI;
+import com.sun.jna.platform.win32.WinGDI.BITMAPINFO;
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Window surface based on a GDI memory DC with a selected DIB section.
+ * The window is copied into the DIB section with BitBlt, and the bits of the
+ * DIB section are read straight into the pixels of the captured image.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class GdiWindowSurface implements WindowSurface {
+
+    public static final Factory FACTORY = new Factory() {
+        public WindowSurface create(HWND hWnd, int width, int height) {
+            return new GdiWindowSurface(hWnd, width, height);
+        }
+    };
+
+    private final HWND hWnd;
+    private final int width;
+    private final int height;
+    private HDC hdcMemDC;
+    private HBITMAP hBitmap;
+    private HANDLE hOld;
+    private Pointer bits;
+
+    public GdiWindowSurface(HWND hWnd, int width, int height) {
+        this.hWnd = hWnd;
+        this.width = width;
+        this.height = height;
+
+        HDC hdcWindow = User32.INSTANCE.GetDC(hWnd);
+        if (hdcWindow == null) {
+            throw new IllegalStateException("Can't get DC of window " + hWnd);
+        }
+        try {
+            hdcMemDC = GDI32.INSTANCE.CreateCompatibleDC(hdcWindow);
+
+            BITMAPINFO bmi = new BITMAPINFO();
+            bmi.bmiHeader.biWidth = width;
+            bmi.bmiHeader.biHeight = -height;
+            bmi.bmiHeader.biPlanes = 1;
+            bmi.bmiHeader.biBitCount = 32;
+            bmi.bmiHeader.biCompression = WinGDI.BI_RGB;
+
+            PointerByReference ppvBits = new PointerByReference();
+            hBitmap = GDI32.INSTANCE.CreateDIBSection(hdcWindow, bmi, WinGDI.DIB_RGB_COLORS, ppvBits, null, 0);
+            bits = ppvBits.getValue();
+            if (hdcMemDC == null || hBitmap == null || bits == null) {
+                dispose();
+                throw new IllegalStateException("Can't create DIB section " + width + "x" + height);
+            }
+            hOld = GDI32.INSTANCE.SelectObject(hdcMemDC, hBitmap);
+        } finally {
+            User32.INSTANCE.ReleaseDC(hWnd, hdcWindow);
+        }
+    }
+
+    public boolean copyTo(int[] pixels) {
+        HDC hdcWindow = User32.INSTANCE.GetDC(hWnd);
+        if (hdcWindow == null) {
+            return false;
+        }
+        boolean copied;
+        try {
+            copied = CaptureWindow.GDI32Extra.INSTANCE.BitBlt(hdcMemDC, 0, 0, width, height,
+                    hdcWindow, 0, 0, CaptureWindow.WinGDIExtra.SRCCOPY);
+        } finally {
+            User32.INSTANCE.ReleaseDC(hWnd, hdcWindow);
+        }
+        if (!copied) {
+            return false;
+        }
+        // BitBlt may be batched, the bits are only valid after a flush
+        CaptureWindow.GDI32Extra.INSTANCE.GdiFlush();
+        bits.read(0, pixels, 0, width * height);
+        return true;
+    }
+
+    public void dispose() {
+        if (hdcMemDC != null) {
+            if (hOld != null) {
+                GDI32.INSTANCE.SelectObject(hdcMemDC, hOld);
+                hOld = null;
+            }
+            GDI32.INSTANCE.DeleteDC(hdcMemDC);
+            hdcMemDC = null;
+        }
+        if (hBitmap != null) {
+            GDI32.INSTANCE.DeleteObject(hBitmap);
+            hBitmap = null;
+        }
+        bits = null;
+    }
+}
@@ -0,0 +1,519 @@
+package recorder;
+
+import org.monte.media.AbstractVideoCodec;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * TechSmith Screen Capture encoder for 24 bit frames, that encodes
+ * horizontal bands of a frame in parallel on a fork-join pool. <p> A TSCC
+ * frame is a zlib stream of run-length encoded lines. Every band encodes
+ * its lines on its own, and moves the cursor over its unchanged lines at
+ * the end, so the next band starts at its first line. The bands are
+ * compressed in parallel as well: every band is a sequence of deflate
+ * blocks, that ends on a byte boundary, and is compressed with the end of
+ * the previous band as dictionary. The blocks are joined into one zlib
+ * stream with a checksum, that is combined from the checksums of the bands.
+ * The result decodes to the same frame as the output of the single-threaded
+ * {@link org.monte.media.avi.TechSmithCodec}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class ParallelTechSmithCodec extends AbstractVideoCodec {
+    /**
+     * Minimal number of lines of a band.
+     */
+    private static final int MIN_BAND_HEIGHT = 32;
+    /**
+     * Size of the deflate window.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /**
+     * zlib header for the default compression level.
+     */
+    private static final int ZLIB_HEADER = 0x789c;
+    private static final byte[] SAME_FRAME = {0, 1};
+
+    /**
+     * A band of lines with its encoding buffers.
+     */
+    private static final class Band {
+        int firstLine;
+        int lines;
+        boolean changed;
+        byte[] rle = new byte[4096];
+        int rleLength;
+        byte[] deflated = new byte[4096];
+        int deflatedLength;
+        long adler;
+        final Adler32 checksum = new Adler32();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        void ensure(int n) {
+            if (rleLength + n > rle.length) {
+                byte[] larger = new byte[Math.max(rle.length * 2, rleLength + n)];
+                System.arraycopy(rle, 0, larger, 0, rleLength);
+                rle = larger;
+            }
+        }
+
+        void op(int a, int b) {
+            ensure(2);
+            rle[rleLength++] = (byte) a;
+            rle[rleLength++] = (byte) b;
+        }
+
+        void run(int count, int v) {
+            ensure(4);
+            rle[rleLength++] = (byte) count;
+            rle[rleLength++] = (byte) v;
+            rle[rleLength++] = (byte) (v >> 8);
+            rle[rleLength++] = (byte) (v >> 16);
+        }
+
+        void skip(int dx, int dy) {
+            while (dx > 0 || dy > 0) {
+                int x = Math.min(255, dx);
+                int y = Math.min(255, dy);
+                ensure(4);
+                rle[rleLength++] = 0;
+                rle[rleLength++] = 2;
+                rle[rleLength++] = (byte) x;
+                rle[rleLength++] = (byte) y;
+                dx -= x;
+                dy -= y;
+            }
+        }
+
+        /**
+         * Writes the pixels in [from,to) as literal runs.
+         */
+        void literal(int[] p, int from, int to) {
+            while (from < to) {
+                int n = Math.min(254, to - from);
+                if (n < 3) {
+                    for (int i = 0; i < n; i++) {
+                        run(1, p[from + i]);
+                    }
+                } else {
+                    ensure(2 + 3 * n);
+                    rle[rleLength++] = 0;
+                    rle[rleLength++] = (byte) n;
+                    for (int i = from, end = from + n; i < end; i++) {
+                        int v = p[i];
+                        rle[rleLength++] = (byte) v;
+                        rle[rleLength++] = (byte) (v >> 8);
+                        rle[rleLength++] = (byte) (v >> 16);
+                    }
+                }
+                from += n;
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int minBandHeight;
+    private int frameCounter;
+    private int[] previousPixels;
+    /**
+     * Sequence number of the frame in the previous pixels.
+     */
+    private long previousSequenceNumber = -1;
+    private Band[] bands = new Band[0];
+    private int bandedHeight;
+
+    /**
+     * @param pool - the pool, that encodes the bands
+     */
+    public ParallelTechSmithCodec(ForkJoinPool pool) {
+        this(pool, MIN_BAND_HEIGHT);
+    }
+
+    /**
+     * @param pool - the pool, that encodes the bands
+     * @param minBandHeight - minimal number of lines of a band
+     */
+    ParallelTechSmithCodec(ForkJoinPool pool, int minBandHeight) {
+        super(new Format[]{
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                                EncodingKey, ENCODING_BUFFERED_IMAGE, FixedFrameRateKey, true)},
+                new Format[]{
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE,
+                                CompressorNameKey, COMPRESSOR_NAME_AVI_TECHSMITH_SCREEN_CAPTURE,
+                                DataClassKey, byte[].class, FixedFrameRateKey, true, DepthKey, 24),
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_QUICKTIME,
+                                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE,
+                                CompressorNameKey, COMPRESSOR_NAME_AVI_TECHSMITH_SCREEN_CAPTURE,
+                                DataClassKey, byte[].class, FixedFrameRateKey, true, DepthKey, 24)});
+        this.name = "TechSmith Screen Capture (parallel)";
+        this.pool = pool;
+        this.minBandHeight = minBandHeight;
+    }
+
+    /**
+     * Returns true, if the codec can encode a track of the given format.
+     */
+    public static boolean supports(Format trackFormat) {
+        return ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE.equals(trackFormat.get(EncodingKey))
+                && trackFormat.get(DepthKey, 24) == 24;
+    }
+
+    /**
+     * The next frame is a key frame.
+     */
+    @Override
+    public void reset() {
+        frameCounter = 0;
+    }
+
+    public int process(Buffer in, Buffer out) {
+        out.setMetaTo(in);
+        out.format = outputFormat;
+        if (in.isFlag(BufferFlag.DISCARD)) {
+            return CODEC_OK;
+        }
+        int width = outputFormat.get(WidthKey);
+        int height = outputFormat.get(HeightKey);
+        int keyFrameInterval = outputFormat.get(KeyFrameIntervalKey, outputFormat.get(FrameRateKey).intValue());
+        boolean isKeyFrame = frameCounter == 0 || keyFrameInterval <= 0 || frameCounter % keyFrameInterval == 0;
+        frameCounter++;
+        out.clearFlag(BufferFlag.SAME_DATA);
+        out.setFlag(BufferFlag.KEYFRAME, isKeyFrame);
+
+        int scanlineStride = width;
+        int offset = 0;
+        if (in.data instanceof BufferedImage) {
+            BufferedImage image = (BufferedImage) in.data;
+            WritableRaster raster = image.getRaster();
+            scanlineStride = raster.getSampleModel().getWidth();
+            Rectangle r = raster.getBounds();
+            offset = (r.x - raster.getSampleModelTranslateX()) + (r.y - raster.getSampleModelTranslateY()) * scanlineStride;
+            out.header = image.getColorModel();
+        } else {
+            out.header = null;
+        }
+        int[] pixels = getRGB24(in);
+        if (pixels == null) {
+            out.setFlag(BufferFlag.DISCARD);
+            return CODEC_OK;
+        }
+        if (previousPixels == null || previousPixels.length != pixels.length) {
+            previousPixels = new int[pixels.length];
+            isKeyFrame = true;
+            out.setFlag(BufferFlag.KEYFRAME);
+        }
+        // SAME_DATA compares a frame with the frame captured before it, the
+        // previous pixels are only that frame, if no frame has been skipped
+        boolean sameData = in.isFlag(BufferFlag.SAME_DATA) && in.sequenceNumber == previousSequenceNumber + 1;
+        previousSequenceNumber = in.sequenceNumber;
+        if (!isKeyFrame && sameData) {
+            setData(out, SAME_FRAME.clone());
+            return CODEC_OK;
+        }
+
+        ensureBands(height);
+        Frame frame = new Frame(pixels, previousPixels, isKeyFrame, width, height, offset, scanlineStride);
+        pool.invoke(new BandTask(frame, 0, bands.length, false));
+        boolean changed = false;
+        for (Band band : bands) {
+            changed |= band.changed;
+        }
+        if (!changed) {
+            setData(out, SAME_FRAME.clone());
+            return CODEC_OK;
+        }
+        pool.invoke(new BandTask(frame, 0, bands.length, true));
+        setData(out, join());
+        return CODEC_OK;
+    }
+
+    private static void setData(Buffer out, byte[] data) {
+        out.data = data;
+        out.offset = 0;
+        out.length = data.length;
+        out.sampleCount = 1;
+    }
+
+    private void ensureBands(int height) {
+        int n = Math.max(1, Math.min(pool.getParallelism(), height / minBandHeight));
+        if (bands.length == n && bandedHeight == height) {
+            return;
+        }
+        Band[] b = new Band[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = i < bands.length ? bands[i] : new Band();
+            b[i].firstLine = (int) ((long) height * i / n);
+            b[i].lines = (int) ((long) height * (i + 1) / n) - b[i].firstLine;
+        }
+        for (int i = n; i < bands.length; i++) {
+            bands[i].deflater.end();
+        }
+        bands = b;
+        bandedHeight = height;
+    }
+
+    /**
+     * Joins the compressed bands into one zlib stream.
+     */
+    private byte[] join() {
+        int length = 2 + 4;
+        for (Band band : bands) {
+            length += band.deflatedLength;
+        }
+        byte[] data = new byte[length];
+        data[0] = (byte) (ZLIB_HEADER >> 8);
+        data[1] = (byte) ZLIB_HEADER;
+        int pos = 2;
+        long adler = 1;
+        for (Band band : bands) {
+            System.arraycopy(band.deflated, 0, data, pos, band.deflatedLength);
+            pos += band.deflatedLength;
+            adler = combineAdler32(adler, band.adler, band.rleLength);
+        }
+        data[pos++] = (byte) (adler >> 24);
+        data[pos++] = (byte) (adler >> 16);
+        data[pos++] = (byte) (adler >> 8);
+        data[pos] = (byte) adler;
+        return data;
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated byte sequences.
+     *
+     * @param adler1 - checksum of the first sequence
+     * @param adler2 - checksum of the second sequence
+     * @param length2 - length of the second sequence
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * The pixels of the frame, that is encoded.
+     */
+    private static final class Frame {
+        final int[] pixels;
+        final int[] previous;
+        final boolean isKeyFrame;
+        final int width;
+        final int height;
+        final int offset;
+        final int scanlineStride;
+
+        Frame(int[] pixels, int[] previous, boolean isKeyFrame, int width, int height, int offset, int scanlineStride) {
+            this.pixels = pixels;
+            this.previous = previous;
+            this.isKeyFrame = isKeyFrame;
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+        }
+
+        /**
+         * Returns the index of the first pixel of a line. Lines are encoded
+         * from the bottom of the image to the top.
+         */
+        int lineStart(int line) {
+            return offset + (height - 1 - line) * scanlineStride;
+        }
+    }
+
+    /**
+     * Encodes or compresses a range of bands, splits the range until there
+     * is one band per task.
+     */
+    private final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame frame;
+        private final int from;
+        private final int to;
+        private final boolean compress;
+
+        BandTask(Frame frame, int from, int to, boolean compress) {
+            this.frame = frame;
+            this.from = from;
+            this.to = to;
+            this.compress = compress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(frame, from, mid, compress), new BandTask(frame, mid, to, compress));
+            } else if (compress) {
+                compress(from);
+            } else {
+                encode(frame, bands[from], from == bands.length - 1);
+            }
+        }
+    }
+
+    /**
+     * Run-length encodes the lines of a band and copies them to the
+     * previous frame.
+     */
+    private static void encode(Frame f, Band band, boolean last) {
+        int[] p = f.pixels;
+        int[] q = f.previous;
+        band.rleLength = 0;
+        band.changed = f.isKeyFrame;
+        int verticalOffset = 0;
+        for (int line = band.firstLine, end = band.firstLine + band.lines; line < end; line++) {
+            int xy = f.lineStart(line);
+            int xymax = xy + f.width;
+            if (f.isKeyFrame) {
+                encodeKeyLine(band, p, xy, xymax);
+                continue;
+            }
+            int x = xy;
+            while (x < xymax && p[x] == q[x]) {
+                x++;
+            }
+            if (x == xymax) {
+                verticalOffset++;
+                continue;
+            }
+            band.changed = true;
+            band.skip(0, verticalOffset);
+            verticalOffset = 0;
+            encodeDeltaLine(band, p, q, xy, xymax);
+        }
+        if (last) {
+            band.op(0, 1);
+        } else {
+            // Move the cursor to the first line of the next band
+            band.skip(0, verticalOffset);
+        }
+        for (int line = band.firstLine, end = band.firstLine + band.lines; line < end; line++) {
+            int xy = f.lineStart(line);
+            System.arraycopy(p, xy, q, xy, f.width);
+        }
+        band.checksum.reset();
+        band.checksum.update(band.rle, 0, band.rleLength);
+        band.adler = band.checksum.getValue();
+    }
+
+    private static void encodeKeyLine(Band band, int[] p, int xy, int xymax) {
+        int literal = xy;
+        while (xy < xymax) {
+            int v = p[xy];
+            int run = 1;
+            while (xy + run < xymax && run < 255 && p[xy + run] == v) {
+                run++;
+            }
+            if (run >= 3) {
+                band.literal(p, literal, xy);
+                band.run(run, v);
+                xy += run;
+                literal = xy;
+            } else {
+                xy++;
+            }
+        }
+        band.literal(p, literal, xymax);
+        band.op(0, 0);
+    }
+
+    private static void encodeDeltaLine(Band band, int[] p, int[] q, int xy, int xymax) {
+        int literal = xy;
+        while (xy < xymax) {
+            int skip = 0;
+            while (xy + skip < xymax && p[xy + skip] == q[xy + skip]) {
+                skip++;
+            }
+            if (xy + skip == xymax) {
+                // The rest of the line is unchanged
+                break;
+            }
+            if (skip >= 4) {
+                band.literal(p, literal, xy);
+                band.skip(skip, 0);
+                xy += skip;
+                literal = xy;
+                continue;
+            }
+            int v = p[xy];
+            int run = 1;
+            while (xy + run < xymax && run < 255 && p[xy + run] == v) {
+                run++;
+            }
+            if (run >= 3) {
+                band.literal(p, literal, xy);
+                band.run(run, v);
+                xy += run;
+                literal = xy;
+            } else {
+                xy++;
+            }
+        }
+        band.literal(p, literal, xy);
+        band.op(0, 0);
+    }
+
+    /**
+     * Compresses a band. All bands but the last end with a sync flush, so
+     * that the next band starts on a byte boundary.
+     */
+    private void compress(int index) {
+        Band band = bands[index];
+        Deflater deflater = band.deflater;
+        deflater.reset();
+        if (index > 0) {
+            Band previous = bands[index - 1];
+            int n = Math.min(DICTIONARY_SIZE, previous.rleLength);
+            deflater.setDictionary(previous.rle, previous.rleLength - n, n);
+        }
+        deflater.setInput(band.rle, 0, band.rleLength);
+        boolean last = index == bands.length - 1;
+        if (last) {
+            deflater.finish();
+        }
+        band.deflatedLength = 0;
+        while (true) {
+            if (band.deflatedLength == band.deflated.length) {
+                byte[] larger = new byte[band.deflated.length * 2];
+                System.arraycopy(band.deflated, 0, larger, 0, band.deflatedLength);
+                band.deflated = larger;
+            }
+            band.deflatedLength += deflater.deflate(band.deflated, band.deflatedLength,
+                    band.deflated.length - band.deflatedLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            if (last ? deflater.finished() : band.deflatedLength < band.deflated.length) {
+                return;
+            }
+        }
+    }
+}
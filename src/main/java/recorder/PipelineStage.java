@@ -0,0 +1,249 @@
+package recorder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stage of the recording pipeline with a bounded hand-off queue. <p> The
+ * stage runs either on its own thread, or on a pool, that is shared with the
+ * stages of other recordings. On a pool, the items of a stage are still
+ * processed one after the other, and a stage hands the pool thread back after
+ * a few items, so that the stages of all recordings take turns. <p> Producers
+ * block in {@link #put(Object)} while the queue is full. {@link #stop()} lets
+ * the stage process the items, that are already queued, before it terminates.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public abstract class PipelineStage<T> {
+    /**
+     * How long the stage waits for an item before it checks whether it has
+     * been stopped.
+     */
+    private static final long POLL_TIMEOUT = 100;
+    /**
+     * Number of items, that a stage processes on a pool thread before it
+     * gives the thread to another stage.
+     */
+    private static final int BATCH_SIZE = 4;
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final StageStatistics statistics;
+    private final Executor executor;
+    private final ThreadFactory threadFactory;
+    private volatile boolean running;
+    private volatile boolean broken;
+    private Thread thread;
+    /**
+     * True while a drain of the queue is submitted to the pool or running.
+     */
+    private boolean draining;
+    private volatile Thread drainThread;
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param name - name of the stage and of its thread
+     * @param capacity - capacity of the hand-off queue
+     */
+    public PipelineStage(String name, int capacity) {
+        this(name, capacity, null, null);
+    }
+
+    /**
+     * @param name - name of the stage
+     * @param capacity - capacity of the hand-off queue
+     * @param executor - pool, that processes the items, null for an own thread
+     */
+    public PipelineStage(String name, int capacity, Executor executor) {
+        this(name, capacity, executor, null);
+    }
+
+    /**
+     * @param name - name of the stage
+     * @param capacity - capacity of the hand-off queue
+     * @param executor - pool, that processes the items, null for an own thread
+     * @param threadFactory - creates the own thread, null for a platform thread with the name of the stage
+     */
+    public PipelineStage(String name, int capacity, Executor executor, ThreadFactory threadFactory) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<T>(Math.max(1, capacity));
+        this.statistics = new StageStatistics(name, queue);
+        this.executor = executor;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Processes an item on the thread of the stage.
+     */
+    protected abstract void process(T item) throws Exception;
+
+    /**
+     * Called on the thread of the stage, if {@link #process(Object)} fails.
+     * The stage terminates afterwards.
+     */
+    protected void failed(Throwable t) {
+        t.printStackTrace();
+    }
+
+    public synchronized void start() {
+        if (running || thread != null) {
+            return;
+        }
+        running = true;
+        broken = false;
+        if (executor != null) {
+            return;
+        }
+        Runnable loop = new Runnable() {
+            public void run() {
+                try {
+                    while (running || !queue.isEmpty()) {
+                        T item = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                        if (item != null) {
+                            processItem(item);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // We have been interrupted, terminate
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        };
+        thread = threadFactory != null ? threadFactory.newThread(loop) : new Thread(loop, name);
+        thread.start();
+    }
+
+    private void processItem(T item) throws Exception {
+        long start = System.nanoTime();
+        process(item);
+        statistics.record(System.nanoTime() - start);
+    }
+
+    private void fail(Throwable t) {
+        broken = true;
+        running = false;
+        queue.clear();
+        failed(t);
+    }
+
+    /**
+     * Processes a batch of items on a pool thread, and submits the next
+     * batch, if there are more items.
+     */
+    private void drain() {
+        drainThread = Thread.currentThread();
+        try {
+            for (int i = 0; i < BATCH_SIZE && !broken; i++) {
+                T item = queue.poll();
+                if (item == null) {
+                    break;
+                }
+                processItem(item);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+        drainThread = null;
+        synchronized (this) {
+            draining = false;
+            if (!broken && !queue.isEmpty()) {
+                submitDrain();
+            }
+            if (!draining) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Submits a drain of the queue to the pool, if none is pending.
+     */
+    private synchronized void submitDrain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            draining = false;
+            fail(e);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Hands an item to the stage, waits while the queue is full. The item
+     * is dropped, if the stage has failed.
+     */
+    public void put(T item) throws InterruptedException {
+        if (!queue.offer(item)) {
+            long start = System.nanoTime();
+            try {
+                while (!queue.offer(item, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    if (broken) {
+                        return;
+                    }
+                }
+            } finally {
+                statistics.recordBlockedPut(System.nanoTime() - start);
+            }
+        }
+        if (executor != null) {
+            submitDrain();
+        }
+    }
+
+    /**
+     * Returns the hand-off queue of the stage.
+     */
+    public BlockingQueue<T> getQueue() {
+        return queue;
+    }
+
+    public StageStatistics getStatistics() {
+        return statistics;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the stage after the queued items have been processed and waits
+     * for the thread, or for the last batch on the pool, to terminate.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+            if (executor != null) {
+                if (!broken && !queue.isEmpty()) {
+                    submitDrain();
+                }
+                while (draining && drainThread != Thread.currentThread()) {
+                    wait();
+                }
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            t.join();
+        }
+    }
+}
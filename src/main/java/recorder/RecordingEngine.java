@@ -0,0 +1,488 @@
+package recorder;
+
+import recorder.params.RecorderParams;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many recordings on a fixed set of threads. <p> A {@link BrowserRecorder}
+ * on its own runs a capture thread, an encoder thread, a writer thread and an
+ * audio thread. The sessions of an engine share instead: <ul> <li>one clock
+ * thread, that hands due captures and window enumerations to the pools,</li>
+ * <li>an encode pool, that captures and encodes the frames, enumerates the
+ * windows and reads the audio,</li> <li>a fork-join pool, that encodes,
+ * scales and converts the bands of a frame and captures the windows in
+ * parallel,</li> <li>an I/O pool, that opens, writes and closes the movie
+ * files.</li> </ul> <p> The stages of all sessions take
+ * turns on the pools. The engine shares a budget of frames per second between
+ * the sessions in proportion to their priorities, a session never gets more
+ * than its maximal frame rate. The budget is the global frame rate cap, and is
+ * lowered while the encode pool is saturated, so that the sessions with a low
+ * priority give up frames first, instead of all sessions falling behind.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class RecordingEngine {
+    public static final int MIN_PRIORITY = 1;
+    public static final int NORM_PRIORITY = 5;
+    public static final int MAX_PRIORITY = 10;
+    /**
+     * Frame rate, that a session keeps, however low its share of the budget is.
+     */
+    public static final double MIN_SESSION_FRAME_RATE = 1;
+    /**
+     * Interval between two distributions of the frame budget in milliseconds.
+     */
+    private static final long BALANCE_INTERVAL = 1000;
+    /**
+     * Utilization of the encode pool, above which the budget is lowered.
+     */
+    private static final double HIGH_LOAD = 0.85;
+    /**
+     * Utilization of the encode pool, below which the budget is raised.
+     */
+    private static final double LOW_LOAD = 0.6;
+
+    private final int encodeThreads;
+    private final int ioThreads;
+    private final double maxTotalFrameRate;
+    private final ScheduledThreadPoolExecutor clock;
+    private final ThreadPoolExecutor encodePool;
+    private final ThreadPoolExecutor ioPool;
+    private final ForkJoinPool bandPool;
+    private final List<RecordingSession> sessions = new CopyOnWriteArrayList<RecordingSession>();
+    /**
+     * Time, that the threads of the encode pool have spent on tasks, in
+     * nanoseconds.
+     */
+    private final AtomicLong encodeBusyTime = new AtomicLong();
+    private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    /**
+     * Frames per second, that the encode pool can sustain, infinite while
+     * it is not saturated. Only used by the clock thread.
+     */
+    private double capacity = Double.POSITIVE_INFINITY;
+    private long lastBalanceTime;
+    private long lastBusyTime;
+    private volatile double frameBudget = Double.POSITIVE_INFINITY;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates an engine with an encode thread per processor, two I/O threads
+     * and no global frame rate cap.
+     */
+    public RecordingEngine() {
+        this(Runtime.getRuntime().availableProcessors(), 2, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param encodeThreads - number of threads, that capture and encode
+     * @param ioThreads - number of threads, that write the files
+     * @param maxTotalFrameRate - maximal sum of the frame rates of all sessions
+     */
+    public RecordingEngine(int encodeThreads, int ioThreads, double maxTotalFrameRate) {
+        if (encodeThreads < 1 || ioThreads < 1) {
+            throw new IllegalArgumentException("Illegal number of threads " + encodeThreads + "/" + ioThreads);
+        }
+        if (!(maxTotalFrameRate > 0)) {
+            throw new IllegalArgumentException("Illegal frame rate " + maxTotalFrameRate);
+        }
+        this.encodeThreads = encodeThreads;
+        this.ioThreads = ioThreads;
+        this.maxTotalFrameRate = maxTotalFrameRate;
+        clock = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("RecordingEngine-Clock", Thread.MAX_PRIORITY));
+        clock.setRemoveOnCancelPolicy(true);
+        encodePool = new ThreadPoolExecutor(encodeThreads, encodeThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("RecordingEngine-Encoder", Thread.NORM_PRIORITY)) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                taskStart.get()[0] = System.nanoTime();
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                encodeBusyTime.addAndGet(System.nanoTime() - taskStart.get()[0]);
+            }
+        };
+        ioPool = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("RecordingEngine-IO", Thread.NORM_PRIORITY));
+        bandPool = newBandPool("RecordingEngine-Band", encodeThreads);
+        lastBalanceTime = System.nanoTime();
+        clock.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    balance();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, BALANCE_INTERVAL, BALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a session, that records the windows of a browser process.
+     *
+     * @param processID - processID of the browser
+     * @param recorderParams - parameters of the recording
+     * @param priority - share of the frame budget, between {@link #MIN_PRIORITY} and {@link #MAX_PRIORITY}
+     * @throws IllegalStateException if the engine has been shut down
+     * @throws IllegalArgumentException if there is a session for the process
+     */
+    public RecordingSession createSession(int processID, RecorderParams recorderParams, int priority) throws IOException, AWTException {
+        if (shutdown) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        synchronized (sessions) {
+            if (getSession(processID) != null) {
+                throw new IllegalArgumentException("There is a session for process " + processID);
+            }
+            BrowserRecorder recorder = new BrowserRecorder(recorderParams, this);
+            recorder.setCaptureWindowProcessID(processID);
+            RecordingSession session = new RecordingSession(this, recorder, processID, priority);
+            sessions.add(session);
+            return session;
+        }
+    }
+
+    public RecordingSession createSession(int processID, RecorderParams recorderParams) throws IOException, AWTException {
+        return createSession(processID, recorderParams, NORM_PRIORITY);
+    }
+
+    /**
+     * Returns the session of a browser process, null if there is none.
+     */
+    public RecordingSession getSession(int processID) {
+        for (RecordingSession session : sessions) {
+            if (session.getProcessID() == processID) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    public List<RecordingSession> getSessions() {
+        return new ArrayList<RecordingSession>(sessions);
+    }
+
+    void removeSession(RecordingSession session) {
+        sessions.remove(session);
+        requestBalance();
+    }
+
+    /**
+     * Distributes the frame budget soon, e.g. after a session has been
+     * started or its priority has changed.
+     */
+    void requestBalance() {
+        try {
+            clock.execute(new Runnable() {
+                public void run() {
+                    distribute(frameBudget);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The engine has been shut down
+        }
+    }
+
+    /**
+     * Adapts the budget to the load of the encode pool and distributes it
+     * between the sessions.
+     */
+    private void balance() {
+        long now = System.nanoTime();
+        long busyTime = encodeBusyTime.get();
+        long elapsed = now - lastBalanceTime;
+        double utilization = (busyTime - lastBusyTime) / ((double) elapsed * encodeThreads);
+        lastBalanceTime = now;
+        lastBusyTime = busyTime;
+
+        double achieved = 0;
+        double demand = 0;
+        for (RecordingSession session : sessions) {
+            achieved += session.takeFrameCount() * 1e9 / elapsed;
+            CaptureScheduler scheduler = session.getScheduler();
+            if (scheduler != null) {
+                demand += scheduler.getMaxFrameRate();
+            }
+        }
+        if (utilization > HIGH_LOAD && achieved > 0) {
+            capacity = Math.min(capacity, achieved * HIGH_LOAD / utilization);
+        } else if (utilization < LOW_LOAD && achieved > 0.9 * capacity) {
+            capacity *= 1.25;
+            if (capacity >= demand) {
+                capacity = Double.POSITIVE_INFINITY;
+            }
+        }
+        frameBudget = Math.min(maxTotalFrameRate, capacity);
+        distribute(frameBudget);
+    }
+
+    /**
+     * Shares the budget between the recording sessions in proportion to
+     * their priorities. Sessions, that need less than their share, leave the
+     * rest to the others.
+     */
+    private void distribute(double budget) {
+        List<RecordingSession> open = new ArrayList<RecordingSession>();
+        double demand = 0;
+        for (RecordingSession session : sessions) {
+            CaptureScheduler scheduler = session.getScheduler();
+            if (scheduler != null && !scheduler.isCancelled()) {
+                open.add(session);
+                demand += scheduler.getMaxFrameRate();
+            }
+        }
+        if (demand <= budget) {
+            for (RecordingSession session : open) {
+                session.getScheduler().setFrameRateLimit(Double.POSITIVE_INFINITY);
+            }
+            return;
+        }
+        boolean satisfied = true;
+        while (satisfied && !open.isEmpty()) {
+            double weights = 0;
+            for (RecordingSession session : open) {
+                weights += session.getPriority();
+            }
+            double share = budget / weights;
+            satisfied = false;
+            for (int i = open.size() - 1; i >= 0; i--) {
+                RecordingSession session = open.get(i);
+                double maxRate = session.getScheduler().getMaxFrameRate();
+                if (maxRate <= share * session.getPriority()) {
+                    session.getScheduler().setFrameRateLimit(Double.POSITIVE_INFINITY);
+                    budget -= maxRate;
+                    open.remove(i);
+                    satisfied = true;
+                }
+            }
+            if (!satisfied) {
+                for (RecordingSession session : open) {
+                    session.getScheduler().setFrameRateLimit(
+                            Math.max(MIN_SESSION_FRAME_RATE, share * session.getPriority()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the clock, that hands the due captures to the encode pool.
+     */
+    ScheduledExecutorService getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the pool, that captures and encodes the frames and reads the
+     * audio.
+     */
+    Executor getEncodePool() {
+        return encodePool;
+    }
+
+    /**
+     * Returns the pool, that writes the movie files.
+     */
+    Executor getIOPool() {
+        return ioPool;
+    }
+
+    /**
+     * Returns the pool, that encodes, scales and converts the bands of the
+     * frames, that the encode pool works on.
+     */
+    ForkJoinPool getBandPool() {
+        return bandPool;
+    }
+
+    /**
+     * Creates a fork-join pool of named daemon threads for the bands of the
+     * frames. The threads end, when the pool has been idle for a while.
+     *
+     * @param name - prefix of the names of the threads
+     * @param parallelism - number of threads
+     */
+    static ForkJoinPool newBandPool(final String name, int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName(name + "-" + count.incrementAndGet());
+                return t;
+            }
+        }, null, false);
+    }
+
+    /**
+     * Runs a task periodically on the encode pool. A run is skipped, if the
+     * previous run has not finished yet.
+     *
+     * @return handle, whose {@code get()} waits until the task has been
+     * cancelled and the last run has finished
+     */
+    Future<?> schedulePeriodic(Runnable task, long period, TimeUnit unit) {
+        PeriodicTask periodicTask = new PeriodicTask(task, encodePool);
+        periodicTask.timer = clock.scheduleWithFixedDelay(periodicTask.dispatchTask, 0, period, unit);
+        return periodicTask;
+    }
+
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+    public double getMaxTotalFrameRate() {
+        return maxTotalFrameRate;
+    }
+
+    /**
+     * Returns the frames per second, that are currently shared between the
+     * sessions.
+     */
+    public double getFrameBudget() {
+        return frameBudget;
+    }
+
+    /**
+     * Stops all sessions and the threads of the engine.
+     */
+    public void shutdown() throws IOException {
+        shutdown = true;
+        for (RecordingSession session : sessions) {
+            session.close();
+        }
+        clock.shutdownNow();
+        encodePool.shutdown();
+        ioPool.shutdown();
+        bandPool.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * A task, that the clock hands to a pool periodically.
+     */
+    private static class PeriodicTask implements Runnable, Future<Object> {
+        private final Runnable task;
+        private final Executor executor;
+        private volatile ScheduledFuture<?> timer;
+        private volatile boolean cancelled;
+        private boolean running;
+        final Runnable dispatchTask = new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        };
+
+        PeriodicTask(Runnable task, Executor executor) {
+            this.task = task;
+            this.executor = executor;
+        }
+
+        private void dispatch() {
+            synchronized (this) {
+                if (cancelled || running) {
+                    return;
+                }
+                running = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancel(false);
+                finished();
+            }
+        }
+
+        public void run() {
+            try {
+                if (!cancelled) {
+                    task.run();
+                }
+            } finally {
+                finished();
+            }
+        }
+
+        private synchronized void finished() {
+            running = false;
+            notifyAll();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            ScheduledFuture<?> t = timer;
+            if (t != null) {
+                t.cancel(false);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return cancelled && !running;
+        }
+
+        public synchronized Object get() throws InterruptedException {
+            while (!cancelled || running) {
+                wait();
+            }
+            return null;
+        }
+
+        public synchronized Object get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!cancelled || running) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            return null;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package recorder;
+
+import java.io.IOException;
+
+/**
+ * Recording of a browser process, that runs on the threads of a
+ * {@link RecordingEngine}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class RecordingSession {
+    private final RecordingEngine engine;
+    private final BrowserRecorder recorder;
+    private final int processID;
+    private volatile int priority;
+    /**
+     * Number of captures, when the engine last counted them.
+     */
+    private long countedFrames;
+    private CaptureScheduler countedScheduler;
+
+    RecordingSession(RecordingEngine engine, BrowserRecorder recorder, int processID, int priority) {
+        this.engine = engine;
+        this.recorder = recorder;
+        this.processID = processID;
+        setPriority(priority);
+    }
+
+    /**
+     * Starts the recording. A recording, that is running, is restarted.
+     */
+    public void start() throws IOException {
+        recorder.start();
+        engine.requestBalance();
+    }
+
+    /**
+     * Stops the recording, the session can be started again.
+     */
+    public void stop() throws IOException {
+        recorder.stop();
+        engine.requestBalance();
+    }
+
+    /**
+     * Stops the recording and removes the session from the engine.
+     */
+    public void close() throws IOException {
+        try {
+            recorder.stop();
+        } finally {
+            engine.removeSession(this);
+        }
+    }
+
+    public BrowserRecorder getRecorder() {
+        return recorder;
+    }
+
+    public int getProcessID() {
+        return processID;
+    }
+
+    /**
+     * Sets the share of the frame budget of the engine.
+     *
+     * @param priority - value between {@link RecordingEngine#MIN_PRIORITY} and {@link RecordingEngine#MAX_PRIORITY}
+     */
+    public void setPriority(int priority) {
+        if (priority < RecordingEngine.MIN_PRIORITY || priority > RecordingEngine.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Illegal priority " + priority);
+        }
+        this.priority = priority;
+        engine.requestBalance();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the frame rate, that the engine currently allows the session,
+     * infinite if the session is not limited.
+     */
+    public double getFrameRateLimit() {
+        CaptureScheduler scheduler = getScheduler();
+        return scheduler != null ? scheduler.getFrameRateLimit() : Double.POSITIVE_INFINITY;
+    }
+
+    CaptureScheduler getScheduler() {
+        return recorder.getCaptureScheduler();
+    }
+
+    /**
+     * Returns the number of captures since the previous call. Only called
+     * from the clock of the engine.
+     */
+    long takeFrameCount() {
+        CaptureScheduler scheduler = getScheduler();
+        if (scheduler != countedScheduler) {
+            countedScheduler = scheduler;
+            countedFrames = 0;
+        }
+        if (scheduler == null) {
+            return 0;
+        }
+        long frames = scheduler.getTickCount();
+        long count = frames - countedFrames;
+        countedFrames = frames;
+        return count;
+    }
+}
@@ -0,0 +1,251 @@
+package recorder;
+
+import org.monte.media.MovieWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Opens and closes the movie files of a recording in the background, so that
+ * the writer doesn't stall when a file is full. <p> The next file is prepared
+ * ahead of time, when the current file approaches its limits. Finished files
+ * are closed on a bounded executor, a file close, that finds the executor
+ * busy, runs on the calling thread instead of piling up threads. <p> The
+ * files can be opened and closed on an executor, that is shared with other
+ * recordings, instead. A task, that is waited for and has not started yet,
+ * runs on the waiting thread, so that a recording, that waits on a thread of
+ * the executor, doesn't wait for itself.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class RolloverManager {
+    /**
+     * Maximal number of threads, that open and close files.
+     */
+    private static final int MAX_THREADS = 2;
+    /**
+     * Maximal number of tasks, that wait for a thread.
+     */
+    private static final int MAX_PENDING = 4;
+    /**
+     * Time in seconds, that an idle thread is kept.
+     */
+    private static final long KEEP_ALIVE = 5;
+
+    /**
+     * Creates the movie files and their writers.
+     */
+    public interface WriterFactory {
+        File createMovieFile() throws IOException;
+
+        MovieWriter createMovieWriter(File file) throws IOException;
+
+        /**
+         * Called after a file has been closed, or discarded without being
+         * used.
+         */
+        void movieFileClosed(File file);
+    }
+
+    /**
+     * A movie file with its writer.
+     */
+    public static final class MovieFile {
+        private final File file;
+        private final MovieWriter writer;
+
+        MovieFile(File file, MovieWriter writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public MovieWriter getWriter() {
+            return writer;
+        }
+    }
+
+    private final WriterFactory factory;
+    private final Executor executor;
+    /**
+     * The threads of the manager, null if the executor is shared.
+     */
+    private final ThreadPoolExecutor ownExecutor;
+    private FutureTask<MovieFile> next;
+    private final List<FutureTask<?>> closing = new ArrayList<FutureTask<?>>();
+
+    /**
+     * @param factory - creates the files
+     * @param threadFactory - creates the threads, that open and close the files, null for platform threads
+     */
+    public RolloverManager(WriterFactory factory, ThreadFactory threadFactory) {
+        this.factory = factory;
+        ownExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING),
+                threadFactory != null ? threadFactory : new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "BrowserRecorder-Rollover");
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        ownExecutor.allowCoreThreadTimeOut(true);
+        executor = ownExecutor;
+    }
+
+    /**
+     * @param factory - creates the files
+     * @param executor - opens and closes the files, it is not shut down with the manager
+     */
+    public RolloverManager(WriterFactory factory, Executor executor) {
+        this.factory = factory;
+        this.executor = executor;
+        this.ownExecutor = null;
+    }
+
+    /**
+     * Starts to open the next file in the background, if it is not opened
+     * yet.
+     */
+    public synchronized void prepareNext() {
+        if (next != null) {
+            return;
+        }
+        FutureTask<MovieFile> task = new FutureTask<MovieFile>(new Callable<MovieFile>() {
+            public MovieFile call() throws IOException {
+                File file = factory.createMovieFile();
+                return new MovieFile(file, factory.createMovieWriter(file));
+            }
+        });
+        next = task;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The file is opened, when it is waited for
+        }
+    }
+
+    public synchronized boolean isNextPrepared() {
+        return next != null;
+    }
+
+    /**
+     * Returns the next file, waits until it is opened.
+     */
+    public MovieFile openNext() throws IOException {
+        FutureTask<MovieFile> file;
+        synchronized (this) {
+            prepareNext();
+            file = next;
+            next = null;
+        }
+        try {
+            file.run();
+            return file.get();
+        } catch (InterruptedException e) {
+            file.cancel(true);
+            throw (IOException) new IOException("Interrupted while opening movie file").initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw (IOException) new IOException("Can't open movie file").initCause(cause);
+        }
+    }
+
+    /**
+     * Closes a finished file in the background.
+     */
+    public void close(final MovieFile movieFile) {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws IOException {
+                movieFile.getWriter().close();
+                factory.movieFileClosed(movieFile.getFile());
+                return null;
+            }
+        });
+        synchronized (closing) {
+            for (int i = closing.size() - 1; i >= 0; i--) {
+                if (closing.get(i).isDone()) {
+                    closing.remove(i);
+                }
+            }
+            closing.add(task);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The file is closed, when it is waited for
+        }
+    }
+
+    /**
+     * Waits until the finished files have been closed.
+     */
+    public void awaitClosed() throws IOException {
+        while (true) {
+            FutureTask<?> task;
+            synchronized (closing) {
+                if (closing.isEmpty()) {
+                    return;
+                }
+                task = closing.remove(0);
+            }
+            try {
+                task.run();
+                task.get();
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted while closing movie file").initCause(e);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the next file, if it has been prepared but not used.
+     */
+    public void discardNext() {
+        FutureTask<MovieFile> file;
+        synchronized (this) {
+            file = next;
+            next = null;
+        }
+        if (file == null) {
+            return;
+        }
+        try {
+            file.run();
+            MovieFile movieFile = file.get();
+            movieFile.getWriter().close();
+            if (!movieFile.getFile().delete()) {
+                movieFile.getFile().deleteOnExit();
+            }
+            factory.movieFileClosed(movieFile.getFile());
+        } catch (Exception e) {
+            // The file could not be opened, there is nothing to clean up
+        }
+    }
+
+    /**
+     * Discards the next file, waits for the finished files to be closed
+     * and releases the threads.
+     */
+    public void shutdown() throws IOException {
+        discardNext();
+        try {
+            awaitClosed();
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package recorder;
+
+/**
+ * How the recorder scales the captured frames to the size of the video.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public enum ScaleQuality {
+    /**
+     * Bilinear filtering. Looks at 2x2 source pixels per video pixel, which
+     * is fast, but drops details, when the frame shrinks to less than half
+     * of its size.
+     */
+    SPEED,
+    /**
+     * Area averaging. Every video pixel is the average of the source pixels
+     * it covers, so thin lines and text stay visible in a downscaled frame.
+     */
+    QUALITY
+}
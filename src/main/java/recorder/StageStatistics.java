@@ -0,0 +1,139 @@
+package recorder;
+
+import recorder.metrics.LatencyHistogram;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a stage of the recording pipeline. <p> The service time is the
+ * time a stage spends on one item, without the time the item waited in the
+ * hand-off queue. The queue depth shows how many items wait for the stage, a
+ * stage whose queue is always full is the bottleneck of the pipeline.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class StageStatistics {
+    private final String name;
+    private final BlockingQueue<?> queue;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong totalServiceTime = new AtomicLong();
+    private final AtomicLong maxServiceTime = new AtomicLong();
+    private final LatencyHistogram serviceTimes = new LatencyHistogram();
+    private final LatencyHistogram blockedPutTimes = new LatencyHistogram();
+
+    /**
+     * @param name - name of the stage
+     * @param queue - input queue of the stage, null if the stage has none
+     */
+    public StageStatistics(String name, BlockingQueue<?> queue) {
+        this.name = name;
+        this.queue = queue;
+    }
+
+    /**
+     * Records that the stage has processed an item.
+     *
+     * @param serviceTime - time spent on the item in nanoseconds
+     */
+    public void record(long serviceTime) {
+        processed.incrementAndGet();
+        totalServiceTime.addAndGet(serviceTime);
+        serviceTimes.record(serviceTime);
+        long max = maxServiceTime.get();
+        while (serviceTime > max && !maxServiceTime.compareAndSet(max, serviceTime)) {
+            max = maxServiceTime.get();
+        }
+    }
+
+    /**
+     * Records that the stage has dropped an item, because the next stage
+     * was not ready.
+     */
+    public void recordDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Records that a producer had to wait, because the input queue of the
+     * stage was full.
+     *
+     * @param blockedTime - waiting time in nanoseconds
+     */
+    public void recordBlockedPut(long blockedTime) {
+        blockedPutTimes.record(blockedTime);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of items, that wait in the input queue of the stage.
+     */
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Returns the capacity of the input queue of the stage, 0 if the stage
+     * has no input queue.
+     */
+    public int getQueueCapacity() {
+        return queue == null ? 0 : queue.size() + queue.remainingCapacity();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the total service time in nanoseconds.
+     */
+    public long getTotalServiceTime() {
+        return totalServiceTime.get();
+    }
+
+    /**
+     * Returns the average service time in nanoseconds.
+     */
+    public double getAverageServiceTime() {
+        long n = processed.get();
+        return n == 0 ? 0 : (double) totalServiceTime.get() / n;
+    }
+
+    /**
+     * Returns the longest service time in nanoseconds.
+     */
+    public long getMaxServiceTime() {
+        return maxServiceTime.get();
+    }
+
+    /**
+     * Returns the histogram of the service times.
+     */
+    public LatencyHistogram getServiceTimes() {
+        return serviceTimes;
+    }
+
+    /**
+     * Returns the histogram of the times, that producers waited for room in
+     * the input queue. Puts into a queue with room are not recorded.
+     */
+    public LatencyHistogram getBlockedPutTimes() {
+        return blockedPutTimes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: queue %d/%d, processed %d, dropped %d, service avg %.3f ms, max %.3f ms",
+                name, getQueueDepth(), getQueueCapacity(), getProcessedCount(), getDroppedCount(),
+                getAverageServiceTime() / 1e6, getMaxServiceTime() / 1e6);
+    }
+}
@@ -0,0 +1,67 @@
+package recorder;
+
+import org.monte.media.Buffer;
+import org.monte.media.math.Rational;
+
+/**
+ * Buffer, that carries its time in nanoseconds since the start of the
+ * recording. <p> The grabbers and the encoder keep the time in nanoseconds
+ * and leave {@code timeStamp} and {@code sampleDuration} null, unless they
+ * have a constant for them. The writer stage builds the missing values with
+ * {@link #setMediaTime()}, so that a buffer gets its {@link Rational}s once,
+ * right before the movie writer.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class TimedBuffer extends Buffer {
+    /**
+     * Start of the buffer in nanoseconds since the start of the recording.
+     */
+    public long time;
+    /**
+     * Time in nanoseconds, that all samples of the buffer cover.
+     */
+    public long duration;
+
+    /**
+     * Copies the meta data of a buffer, with its time in nanoseconds, if it
+     * has one.
+     */
+    @Override
+    public void setMetaTo(Buffer that) {
+        super.setMetaTo(that);
+        setTimeTo(that);
+    }
+
+    /**
+     * Copies the time in nanoseconds of a buffer, if it has one.
+     */
+    public void setTimeTo(Buffer that) {
+        if (that instanceof TimedBuffer) {
+            time = ((TimedBuffer) that).time;
+            duration = ((TimedBuffer) that).duration;
+        }
+    }
+
+    /**
+     * Sets {@code timeStamp} and {@code sampleDuration} from the time in
+     * nanoseconds, if they are null.
+     */
+    public void setMediaTime() {
+        if (timeStamp == null) {
+            timeStamp = toRational(time);
+        }
+        if (sampleDuration == null) {
+            sampleDuration = toRational(duration / Math.max(1, sampleCount));
+        }
+    }
+
+    /**
+     * Converts nanoseconds to a media time in seconds. The time is rounded to
+     * microseconds to keep the numbers of the writers' time arithmetic small.
+     */
+    static Rational toRational(long nanos) {
+        return new Rational(nanos / 1000, 1000000L);
+    }
+}
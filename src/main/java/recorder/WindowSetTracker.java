@@ -0,0 +1,231 @@
+package recorder;
+
+import com.sun.jna.platform.win32.User32;
+import com.sun.jna.platform.win32.WinDef.HWND;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of the visible windows of a process. <p> Enumerating all
+ * top-level windows of the desktop is expensive, so the window set is
+ * refreshed on a background thread with a slower cadence than the frame rate,
+ * or as soon as a cached window is found to be closed or hidden. Readers get
+ * the last snapshot without locking. <p> Instead of its own thread, the
+ * tracker can use a timer and an executor, that are shared with other
+ * recordings. The timer only hands the refresh to the executor.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class WindowSetTracker {
+    /**
+     * Default interval between two enumerations of the windows in milliseconds.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+    private final long refreshInterval;
+    private volatile int processID;
+    private volatile HWND[] snapshot;
+    /**
+     * Changed with the process and on close, a refresh, that started with
+     * another generation, doesn't publish its windows.
+     */
+    private int generation;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    /**
+     * Timer and executor, that are shared with other recordings, null if the
+     * tracker starts its own thread.
+     */
+    private ScheduledExecutorService sharedTimer;
+    private Executor sharedExecutor;
+    /**
+     * The thread of the tracker, null if it is not started or the executor
+     * is shared.
+     */
+    private ScheduledThreadPoolExecutor ownTimer;
+    /**
+     * Runs the refreshes, null if the tracker is not started.
+     */
+    private volatile Executor refreshExecutor;
+    private ScheduledFuture<?> refreshFuture;
+    private final Runnable refreshTask = new Runnable() {
+        public void run() {
+            refreshPending.set(false);
+            refresh();
+        }
+    };
+    private final Runnable requestTask = new Runnable() {
+        public void run() {
+            requestRefresh();
+        }
+    };
+
+    public WindowSetTracker() {
+        this(DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param refreshInterval - interval between two enumerations of the windows in milliseconds
+     */
+    public WindowSetTracker(long refreshInterval) {
+        this.refreshInterval = Math.max(1, refreshInterval);
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the timer and the executor of the refreshes, that are shared with
+     * other recordings. A running tracker is stopped and starts again on the
+     * next call of {@link #getWindows()}.
+     *
+     * @param timer - schedules the refreshes, null to start a thread of the tracker
+     * @param executor - runs the refreshes
+     */
+    public synchronized void setExecutors(ScheduledExecutorService timer, Executor executor) {
+        stop();
+        this.sharedTimer = timer;
+        this.sharedExecutor = timer != null ? executor : null;
+    }
+
+    /**
+     * Set processID of windows, that needs to be tracked. The window set is
+     * enumerated immediately.
+     * @param processID - processID
+     */
+    public void setProcessID(int processID) {
+        synchronized (this) {
+            this.processID = processID;
+            generation++;
+        }
+        refresh();
+    }
+
+    public int getProcessID() {
+        return processID;
+    }
+
+    /**
+     * Returns the visible windows of the process. The cached windows are
+     * validated on every call, which costs one native call per window. If a
+     * window is not visible any more, it is left out and a refresh is
+     * requested.
+     */
+    public HWND[] getWindows() {
+        if (refreshExecutor == null) {
+            ensureStarted();
+        }
+        HWND[] hWnds = snapshot;
+        if (hWnds == null) {
+            hWnds = refresh();
+        }
+        for (int i = 0; i < hWnds.length; i++) {
+            if (!User32.INSTANCE.IsWindowVisible(hWnds[i])) {
+                return dropHidden(hWnds, i);
+            }
+        }
+        return hWnds;
+    }
+
+    private HWND[] dropHidden(HWND[] hWnds, int firstHidden) {
+        requestRefresh();
+        ArrayList<HWND> visible = new ArrayList<HWND>(hWnds.length);
+        for (int i = 0; i < firstHidden; i++) {
+            visible.add(hWnds[i]);
+        }
+        for (int i = firstHidden + 1; i < hWnds.length; i++) {
+            if (User32.INSTANCE.IsWindowVisible(hWnds[i])) {
+                visible.add(hWnds[i]);
+            }
+        }
+        return visible.toArray(new HWND[visible.size()]);
+    }
+
+    /**
+     * Requests an enumeration of the windows on the background thread.
+     */
+    public void requestRefresh() {
+        Executor executor = refreshExecutor;
+        if (executor != null && refreshPending.compareAndSet(false, true)) {
+            try {
+                executor.execute(refreshTask);
+            } catch (RejectedExecutionException e) {
+                refreshPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Enumerates the windows of the process on the calling thread. The
+     * windows are not kept, if the process has been changed or the tracker
+     * has been closed during the enumeration.
+     */
+    public HWND[] refresh() {
+        int processID;
+        int generation;
+        synchronized (this) {
+            processID = this.processID;
+            generation = this.generation;
+        }
+        HWND[] hWnds = InterfaceOperations.getHWNDsByPID(processID);
+        synchronized (this) {
+            if (generation == this.generation) {
+                snapshot = hWnds;
+            }
+        }
+        return hWnds;
+    }
+
+    private synchronized void ensureStarted() {
+        if (refreshExecutor != null) {
+            return;
+        }
+        if (sharedTimer != null) {
+            refreshExecutor = sharedExecutor;
+            refreshFuture = sharedTimer.scheduleWithFixedDelay(requestTask, refreshInterval, refreshInterval,
+                    TimeUnit.MILLISECONDS);
+            return;
+        }
+        ownTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "WindowSetTracker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refreshExecutor = ownTimer;
+        refreshFuture = ownTimer.scheduleWithFixedDelay(refreshTask, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+        if (refreshExecutor != null) {
+            refreshFuture.cancel(false);
+            if (ownTimer != null) {
+                ownTimer.shutdown();
+                ownTimer = null;
+            }
+            refreshExecutor = null;
+            refreshFuture = null;
+        }
+    }
+
+    /**
+     * Stops the background refresh. The tracker starts again on the next
+     * call of {@link #getWindows()}.
+     */
+    public synchronized void close() {
+        stop();
+        snapshot = null;
+        generation++;
+        refreshPending.set(false);
+    }
+}
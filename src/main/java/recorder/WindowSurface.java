@@ -0,0 +1,36 @@
+package recorder;
+
+import com.sun.jna.platform.win32.WinDef.HWND;
+
+/**
+ * Native drawing surface, that holds a copy of a window between captures.
+ * Creating a surface is expensive, so {@link CaptureSurfaceCache} keeps one
+ * per captured window as long as the window keeps its size.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public interface WindowSurface {
+
+    /**
+     * Copies the current content of the window into {@code pixels}.
+     *
+     * @param pixels - top-down RGB pixels of width * height of the surface
+     * @return false if the window can't be copied any more
+     */
+    boolean copyTo(int[] pixels);
+
+    /**
+     * Releases the native resources of the surface.
+     */
+    void dispose();
+
+    interface Factory {
+        /**
+         * Creates a surface for the window.
+         *
+         * @throws IllegalStateException if the surface can't be created
+         */
+        WindowSurface create(HWND hWnd, int width, int height);
+    }
+}
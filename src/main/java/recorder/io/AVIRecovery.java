@@ -0,0 +1,380 @@
+package recorder.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds a playable AVI file from a file, that was not closed, because the
+ * JVM has been killed. <p> The AVI writer fills in the headers and writes
+ * the index only when a file is closed, until then the headers are zeros.
+ * The samples themselves are complete chunks in the 'movi' list. The headers
+ * are taken from a template, a closed AVI file with the same tracks, usually
+ * the header file, that the recorder writes next to every file in crash-safe
+ * mode. The sample counts and buffer sizes in the headers are recomputed and
+ * the index is rebuilt from the chunks, that were written completely. <p>
+ * The chunks don't tell, which video frames are key frames, so only the
+ * first video frame is marked as key frame. The recorder starts every file
+ * with a key frame, the movie plays from the start, but seeking decodes from
+ * the first frame.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public final class AVIRecovery {
+    /**
+     * Suffix of the header file, that is written next to a movie file.
+     */
+    public static final String HEADER_SUFFIX = ".hdr";
+
+    private static final int RIFF = 0x52494646;
+    private static final int AVI = 0x41564920;
+    private static final int LIST = 0x4c495354;
+    private static final int HDRL = 0x6864726c;
+    private static final int STRL = 0x7374726c;
+    private static final int MOVI = 0x6d6f7669;
+    private static final int AVIH = 0x61766968;
+    private static final int STRH = 0x73747268;
+    private static final int IDX1 = 0x69647831;
+    private static final int AUDS = 0x61756473;
+    private static final int KEYFRAME = 0x10;
+    private static final int NO_TIME = 0x100;
+    private static final long MAX_HEADER_SIZE = 1 << 20;
+
+    private AVIRecovery() {
+
+    }
+
+    /**
+     * Returns the header file of a movie file.
+     */
+    public static File getHeaderFile(File movieFile) {
+        return new File(movieFile.getPath() + HEADER_SUFFIX);
+    }
+
+    /**
+     * Repairs all movie files of a folder, that have a header file left
+     * over. The header files are deleted afterwards. Empty movie files, that
+     * were opened ahead of time and never written, are deleted.
+     *
+     * @return the repaired files
+     */
+    public static List<File> recoverFolder(File folder) throws IOException {
+        List<File> recovered = new ArrayList<File>();
+        File[] headers = folder.listFiles();
+        if (headers == null) {
+            throw new IOException("Can't list directory " + folder.getAbsolutePath());
+        }
+        for (File header : headers) {
+            String name = header.getName();
+            if (!name.endsWith(HEADER_SUFFIX)) {
+                continue;
+            }
+            File movieFile = new File(folder, name.substring(0, name.length() - HEADER_SUFFIX.length()));
+            if (!movieFile.isFile()) {
+                continue;
+            }
+            if (movieFile.length() == 0) {
+                if (movieFile.delete() && !header.delete()) {
+                    header.deleteOnExit();
+                }
+                continue;
+            }
+            recoverInPlace(movieFile);
+            recovered.add(movieFile);
+        }
+        return recovered;
+    }
+
+    /**
+     * Repairs a movie file with its header file, and deletes the header
+     * file.
+     *
+     * @return the number of samples in the repaired file
+     */
+    public static int recoverInPlace(File movieFile) throws IOException {
+        File header = getHeaderFile(movieFile);
+        File tmp = new File(movieFile.getPath() + ".tmp");
+        int samples = recover(movieFile, header, tmp);
+        if (!movieFile.delete() || !tmp.renameTo(movieFile)) {
+            throw new IOException("Can't replace " + movieFile + " by " + tmp);
+        }
+        if (!header.delete()) {
+            header.deleteOnExit();
+        }
+        return samples;
+    }
+
+    /**
+     * Writes a playable copy of a movie file, that has not been closed.
+     *
+     * @param damaged - the movie file
+     * @param template - a closed AVI file with the same tracks
+     * @param output - the repaired file, must not be the damaged file
+     * @return the number of samples in the repaired file
+     */
+    public static int recover(File damaged, File template, File output) throws IOException {
+        if (output.getAbsoluteFile().equals(damaged.getAbsoluteFile())) {
+            throw new IllegalArgumentException("Output must not be the damaged file: " + output);
+        }
+        ByteBuffer hdrl = readHeaderList(template);
+        int[] strh = findStreamHeaders(hdrl);
+        int streams = strh.length;
+        RandomAccessFile in = new RandomAccessFile(damaged, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long moviStart = 12 + hdrl.limit();
+            long dataStart = moviStart + 12;
+            long fileLength = channel.size();
+
+            // Collect the complete chunks of the 'movi' list
+            ByteBuffer index = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            long[] count = new long[streams];
+            long[] bytes = new long[streams];
+            long[] maxLength = new long[streams];
+            long[] sampleSize = new long[streams];
+            boolean[] keyFrameSeen = new boolean[streams];
+            ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            long pos = dataStart;
+            int samples = 0;
+            while (pos + 8 <= fileLength) {
+                chunkHeader.clear();
+                readFully(channel, chunkHeader, pos);
+                int id = chunkHeader.getInt(0);
+                long size = chunkHeader.getInt(4) & 0xffffffffL;
+                if (!isFourCC(id) || Integer.reverseBytes(id) == IDX1 || pos + 8 + size > fileLength) {
+                    break;
+                }
+                int stream = streamOf(id);
+                if (stream >= 0 && stream < streams) {
+                    boolean palette = isType(id, "pc");
+                    boolean audio = hdrl.getInt(strh[stream]) == Integer.reverseBytes(AUDS);
+                    int flags = palette ? NO_TIME : 0;
+                    if (!palette && (audio || !keyFrameSeen[stream])) {
+                        flags |= KEYFRAME;
+                        keyFrameSeen[stream] = true;
+                    }
+                    if (!palette) {
+                        count[stream]++;
+                        bytes[stream] += size;
+                        maxLength[stream] = Math.max(maxLength[stream], size);
+                        sampleSize[stream] = count[stream] == 1 || sampleSize[stream] == size ? size : 0;
+                    }
+                    if (index.remaining() < 16) {
+                        ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                        index.flip();
+                        larger.put(index);
+                        index = larger;
+                    }
+                    index.putInt(id);
+                    index.putInt(flags);
+                    index.putInt((int) (pos - (moviStart + 8)));
+                    index.putInt((int) size);
+                    samples++;
+                }
+                pos += 8 + size + (size & 1);
+            }
+            long dataEnd = Math.min(pos, fileLength);
+            if (samples == 0) {
+                throw new IOException("No complete samples in " + damaged + ", or the header doesn't match");
+            }
+
+            // Recompute the counts and sizes in the headers
+            long largest = 0;
+            for (int i = 0; i < streams; i++) {
+                largest = Math.max(largest, maxLength[i]);
+                boolean audio = hdrl.getInt(strh[i]) == Integer.reverseBytes(AUDS);
+                long length = count[i];
+                if (audio) {
+                    int blockAlign = hdrl.getInt(strh[i] + 44);
+                    length = blockAlign > 0 ? bytes[i] / blockAlign : count[i];
+                }
+                hdrl.putInt(strh[i] + 32, (int) length);
+                hdrl.putInt(strh[i] + 36, (int) maxLength[i]);
+                if (!audio) {
+                    hdrl.putInt(strh[i] + 44, (int) sampleSize[i]);
+                }
+            }
+            int avih = findChunk(hdrl, 12, hdrl.limit(), AVIH);
+            if (avih >= 0) {
+                hdrl.putInt(avih + 4, (int) largest);
+                hdrl.putInt(avih + 16, (int) (streams > 0 ? count[0] : 0));
+                hdrl.putInt(avih + 28, (int) largest);
+            }
+
+            index.flip();
+            long moviSize = 4 + (dataEnd - dataStart);
+            long riffSize = 4 + hdrl.limit() + 8 + moviSize + 8 + index.limit();
+            if (riffSize > 0xffffffffL) {
+                throw new IOException("Recovered movie is larger than 4 GB");
+            }
+            RandomAccessFile out = new RandomAccessFile(output, "rw");
+            try {
+                out.setLength(0);
+                FileChannel target = out.getChannel();
+                ByteBuffer head = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                writeFully(target, putHeader(head, RIFF, riffSize, AVI));
+                hdrl.rewind();
+                writeFully(target, hdrl);
+                writeFully(target, putHeader(head, LIST, moviSize, MOVI));
+                for (long p = dataStart; p < dataEnd; ) {
+                    p += channel.transferTo(p, dataEnd - p, target);
+                }
+                ByteBuffer idx1 = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                idx1.putInt(Integer.reverseBytes(IDX1)).putInt(index.limit()).flip();
+                writeFully(target, idx1);
+                writeFully(target, index);
+            } finally {
+                out.close();
+            }
+            return samples;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the 'hdrl' list with its list header from a closed AVI file.
+     */
+    private static ByteBuffer readHeaderList(File template) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(template, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, head, 0);
+            long size = head.getInt(16) & 0xffffffffL;
+            if (Integer.reverseBytes(head.getInt(0)) != RIFF || Integer.reverseBytes(head.getInt(8)) != AVI
+                    || Integer.reverseBytes(head.getInt(12)) != LIST || Integer.reverseBytes(head.getInt(20)) != HDRL
+                    || size > MAX_HEADER_SIZE) {
+                throw new IOException("Not a closed AVI file: " + template);
+            }
+            ByteBuffer hdrl = ByteBuffer.allocate((int) (8 + size + (size & 1))).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, hdrl, 12);
+            hdrl.clear();
+            return hdrl;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the offsets of the data of the 'strh' chunks in the order of
+     * the streams.
+     */
+    private static int[] findStreamHeaders(ByteBuffer hdrl) throws IOException {
+        List<Integer> offsets = new ArrayList<Integer>();
+        int pos = 12;
+        while (pos + 8 <= hdrl.limit()) {
+            int id = Integer.reverseBytes(hdrl.getInt(pos));
+            int size = hdrl.getInt(pos + 4);
+            if (id == LIST && size >= 4 && Integer.reverseBytes(hdrl.getInt(pos + 8)) == STRL) {
+                int strh = findChunk(hdrl, pos + 12, pos + 8 + size, STRH);
+                if (strh >= 0) {
+                    offsets.add(strh);
+                }
+            }
+            pos += 8 + size + (size & 1);
+        }
+        if (offsets.isEmpty()) {
+            throw new IOException("AVI header without streams");
+        }
+        int[] result = new int[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of the data of a chunk in a range, -1 if there is
+     * none.
+     */
+    private static int findChunk(ByteBuffer buf, int pos, int end, int fourCC) {
+        while (pos + 8 <= end) {
+            int size = buf.getInt(pos + 4);
+            if (Integer.reverseBytes(buf.getInt(pos)) == fourCC) {
+                return pos + 8;
+            }
+            if (size < 0) {
+                return -1;
+            }
+            pos += 8 + size + (size & 1);
+        }
+        return -1;
+    }
+
+    private static ByteBuffer putHeader(ByteBuffer head, int id, long size, int type) {
+        head.clear();
+        head.putInt(Integer.reverseBytes(id)).putInt((int) size).putInt(Integer.reverseBytes(type)).flip();
+        return head;
+    }
+
+    /**
+     * Returns the stream of a sample chunk like '00dc' or '01wb', -1 if it
+     * is not a sample chunk. The id is in file byte order.
+     */
+    private static int streamOf(int id) {
+        int d0 = (id & 0xff) - '0';
+        int d1 = ((id >> 8) & 0xff) - '0';
+        if (d0 < 0 || d0 > 9 || d1 < 0 || d1 > 9) {
+            return -1;
+        }
+        return d0 * 10 + d1;
+    }
+
+    private static boolean isType(int id, String type) {
+        return ((id >> 16) & 0xff) == type.charAt(0) && ((id >> 24) & 0xff) == type.charAt(1);
+    }
+
+    private static boolean isFourCC(int id) {
+        for (int i = 0; i < 4; i++) {
+            int c = (id >> (8 * i)) & 0xff;
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Repairs movie files from the command line. <p> Usage: <br>
+     * {@code AVIRecovery <folder>} repairs all files of the folder with a header file, <br>
+     * {@code AVIRecovery <movie.avi>} repairs a file with its header file, <br>
+     * {@code AVIRecovery <movie.avi> <template.avi> <output.avi>} writes a repaired copy.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && new File(args[0]).isDirectory()) {
+            for (File file : recoverFolder(new File(args[0]))) {
+                System.out.println("Recovered " + file);
+            }
+        } else if (args.length == 1) {
+            System.out.println("Recovered " + recoverInPlace(new File(args[0])) + " samples");
+        } else if (args.length == 3) {
+            System.out.println("Recovered " + recover(new File(args[0]), new File(args[1]), new File(args[2])) + " samples");
+        } else {
+            System.err.println("Usage: AVIRecovery <folder> | <movie.avi> | <movie.avi> <template.avi> <output.avi>");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package recorder.io;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Image output stream, that writes a movie file through a {@link FileChannel}
+ * in the background. <p> Writes are collected in large direct buffers. A full
+ * buffer is handed to a write-behind thread, so that the writer only waits
+ * for the disk when all buffers are in flight. Writes at an earlier position,
+ * like the size fields, that the movie writers patch after a chunk, go into
+ * the current buffer if it covers the position, or into a buffer of their
+ * own otherwise. Buffers are written in the order they were handed over, so a
+ * later write to the same position always wins. <p> When the data is forced
+ * to the storage device is set by a {@link SyncPolicy}. A failed write is
+ * reported by the next call on the writer thread. <p> The buffers are taken
+ * from a {@link DirectBufferPool} and handed back, when the stream is
+ * closed. <p> Instead of a thread of its own, the stream can write the
+ * buffers in tasks on an executor, that is shared with other streams. A task
+ * ends, when there is no buffer left, and the writer writes the buffers
+ * itself, instead of waiting for a task, that hasn't started. A periodic
+ * sync then happens with the first buffer after the interval.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class ChannelImageOutputStream extends ImageOutputStreamImpl {
+    /**
+     * Default size of a buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /**
+     * Number of buffers of a stream.
+     */
+    static final int BUFFER_COUNT = 4;
+    /**
+     * Time in nanoseconds, after which a buffer is handed to the
+     * write-behind thread even if it is not full, so that a slow recording
+     * doesn't keep its data in memory.
+     */
+    private static final long MAX_BUFFER_AGE = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * How long the threads wait, before they check for a failure or for a
+     * periodic sync, in milliseconds.
+     */
+    private static final long POLL_TIMEOUT = 100;
+
+    /**
+     * A buffer and the position in the file, where its data goes.
+     */
+    private static final class Block {
+        final ByteBuffer buffer;
+        long position;
+
+        Block(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final Block END = new Block(null);
+
+    private final File file;
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final long syncInterval;
+    private final OutputStatistics statistics;
+    private final DirectBufferPool bufferPool;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> pending = new LinkedBlockingQueue<Block>();
+    /**
+     * The write-behind thread, null if the buffers are written on the
+     * executor.
+     */
+    private final Thread writeBehind;
+    private final Executor executor;
+    /**
+     * True while a task is queued on the executor.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * True while a thread writes the buffers on behalf of the executor.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            scheduled.set(false);
+            // A task, that starts after the close, has nothing to write
+            if (channel.isOpen()) {
+                writePending();
+            }
+        }
+    };
+    /**
+     * Time of the last sync and whether data has been written since, only
+     * used by the thread, that writes the buffers.
+     */
+    private long lastSync = System.nanoTime();
+    private boolean dirty;
+    private final byte[] single = new byte[1];
+    private Block current;
+    private long currentSince;
+    private long length;
+    private boolean closed;
+    /**
+     * Number of buffers, that have been handed over and are not written yet.
+     */
+    private int inFlight;
+    private volatile IOException failure;
+
+    /**
+     * Creates the file, an existing file is truncated.
+     *
+     * @param file - the movie file
+     * @param bufferSize - size of a buffer in bytes
+     * @param syncPolicy - when the data is forced to the storage device
+     * @param syncInterval - interval of {@link SyncPolicy#PERIODIC} in milliseconds
+     * @param statistics - receives the bytes and the latencies, null if not needed
+     * @param bufferPool - where the buffers come from, null to allocate them for this stream
+     * @param threadFactory - creates the write-behind thread, null for a platform thread
+     */
+    public ChannelImageOutputStream(File file, int bufferSize, SyncPolicy syncPolicy, long syncInterval,
+                                    OutputStatistics statistics, DirectBufferPool bufferPool,
+                                    ThreadFactory threadFactory) throws IOException {
+        this(file, bufferSize, syncPolicy, syncInterval, statistics, bufferPool, threadFactory, null);
+    }
+
+    /**
+     * Creates the file, an existing file is truncated.
+     *
+     * @param file - the movie file
+     * @param bufferSize - size of a buffer in bytes
+     * @param syncPolicy - when the data is forced to the storage device
+     * @param syncInterval - interval of {@link SyncPolicy#PERIODIC} in milliseconds
+     * @param statistics - receives the bytes and the latencies, null if not needed
+     * @param bufferPool - where the buffers come from, null to allocate them for this stream
+     * @param threadFactory - creates the write-behind thread, null for a platform thread
+     * @param executor - writes the buffers instead of a write-behind thread, null for a thread
+     */
+    public ChannelImageOutputStream(File file, int bufferSize, SyncPolicy syncPolicy, long syncInterval,
+                                    OutputStatistics statistics, DirectBufferPool bufferPool,
+                                    ThreadFactory threadFactory, Executor executor) throws IOException {
+        this.file = file;
+        this.executor = executor;
+        this.syncPolicy = syncPolicy != null ? syncPolicy : SyncPolicy.NONE;
+        this.syncInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncInterval));
+        this.statistics = statistics != null ? statistics : new OutputStatistics();
+        this.bufferPool = bufferPool != null ? bufferPool : new DirectBufferPool(BUFFER_COUNT);
+        this.free = new ArrayBlockingQueue<Block>(BUFFER_COUNT);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        boolean started = false;
+        try {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                free.add(new Block(this.bufferPool.acquire(Math.max(4096, bufferSize))));
+            }
+            if (executor == null) {
+                Runnable loop = new Runnable() {
+                    public void run() {
+                        writeBehind();
+                    }
+                };
+                writeBehind = threadFactory != null ? threadFactory.newThread(loop) : new Thread(loop, "BrowserRecorder-WriteBehind");
+                writeBehind.start();
+            } else {
+                writeBehind = null;
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                releaseBuffers();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // The failure of the constructor is reported
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public OutputStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        checkFailure();
+        if (len <= 0) {
+            return;
+        }
+        while (len > 0) {
+            Block block = blockAt(streamPos);
+            ByteBuffer buffer = block.buffer;
+            int index = (int) (streamPos - block.position);
+            int n = Math.min(len, buffer.capacity() - index);
+            int end = buffer.position();
+            if (index != end) {
+                buffer.position(index);
+            }
+            buffer.put(b, off, n);
+            if (end > index + n) {
+                buffer.position(end);
+            }
+            off += n;
+            len -= n;
+            streamPos += n;
+        }
+        if (streamPos > length) {
+            length = streamPos;
+        }
+        if (!current.buffer.hasRemaining() || System.nanoTime() - currentSince > MAX_BUFFER_AGE) {
+            handOver();
+        }
+    }
+
+    /**
+     * Returns a buffer, that takes the data at the given position.
+     */
+    private Block blockAt(long position) throws IOException {
+        Block block = current;
+        if (block != null) {
+            long offset = position - block.position;
+            if (offset >= 0 && offset <= block.buffer.position() && offset < block.buffer.capacity()) {
+                return block;
+            }
+            handOver();
+        }
+        block = takeFree();
+        block.position = position;
+        current = block;
+        currentSince = System.nanoTime();
+        return block;
+    }
+
+    private Block takeFree() throws IOException {
+        Block block = free.poll();
+        if (block != null) {
+            return block;
+        }
+        long start = System.nanoTime();
+        try {
+            if (executor != null) {
+                writePending();
+            }
+            while ((block = free.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+                if (executor != null) {
+                    writePending();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException("Interrupted while waiting for the disk").initCause(e);
+        } finally {
+            statistics.recordBufferWait(System.nanoTime() - start);
+        }
+        return block;
+    }
+
+    /**
+     * Hands the current buffer to the write-behind thread or the executor.
+     */
+    private void handOver() {
+        Block block = current;
+        current = null;
+        if (block == null) {
+            return;
+        }
+        if (block.buffer.position() == 0) {
+            free.add(block);
+            return;
+        }
+        synchronized (pending) {
+            inFlight++;
+        }
+        pending.add(block);
+        if (executor != null && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(writeTask);
+            } catch (RejectedExecutionException e) {
+                // The writer writes the buffers, when it waits for them
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the handed over buffers in order and syncs the file.
+     */
+    private void writeBehind() {
+        try {
+            while (true) {
+                Block block = pending.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (block == END) {
+                    return;
+                }
+                if (block != null) {
+                    writeAndFree(block);
+                }
+                syncIfDue();
+            }
+        } catch (InterruptedException e) {
+            // We have been interrupted, terminate
+        }
+    }
+
+    /**
+     * Writes the handed over buffers in order on the calling thread, unless
+     * another thread writes them already.
+     */
+    private void writePending() {
+        while (writing.compareAndSet(false, true)) {
+            try {
+                Block block;
+                while ((block = pending.poll()) != null) {
+                    writeAndFree(block);
+                }
+                syncIfDue();
+            } finally {
+                writing.set(false);
+            }
+            // A buffer, that has been handed over after the last poll
+            if (pending.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private void writeAndFree(Block block) {
+        if (failure == null) {
+            try {
+                writeBlock(block);
+                dirty = true;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        block.buffer.clear();
+        free.add(block);
+        synchronized (pending) {
+            inFlight--;
+            pending.notifyAll();
+        }
+    }
+
+    private void syncIfDue() {
+        if (syncPolicy == SyncPolicy.PERIODIC && dirty && failure == null
+                && System.nanoTime() - lastSync >= syncInterval) {
+            try {
+                sync();
+            } catch (IOException e) {
+                failure = e;
+            }
+            lastSync = System.nanoTime();
+            dirty = false;
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException {
+        ByteBuffer buffer = block.buffer;
+        buffer.flip();
+        int bytes = buffer.remaining();
+        long position = block.position;
+        long start = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        statistics.recordFlush(bytes, System.nanoTime() - start);
+    }
+
+    private void sync() throws IOException {
+        long start = System.nanoTime();
+        channel.force(true);
+        statistics.recordSync(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits until all handed over buffers have been written.
+     */
+    private void awaitWritten() throws IOException {
+        while (true) {
+            if (executor != null) {
+                writePending();
+            }
+            synchronized (pending) {
+                if (inFlight == 0 || writeBehind != null && !writeBehind.isAlive()) {
+                    break;
+                }
+                try {
+                    pending.wait(POLL_TIMEOUT);
+                } catch (InterruptedException e) {
+                    throw (IOException) new InterruptedIOException("Interrupted while waiting for the disk").initCause(e);
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw (IOException) new IOException("Write-behind of " + file + " failed").initCause(e);
+        }
+    }
+
+    /**
+     * Writes all buffered data to the file and waits until it is written.
+     * The data is not forced to the storage device.
+     */
+    public void drain() throws IOException {
+        checkClosed();
+        handOver();
+        awaitWritten();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        drain();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+        if (n > 0) {
+            streamPos += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Writes the buffered data, syncs the file unless the policy is
+     * {@link SyncPolicy#NONE} and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            handOver();
+            awaitWritten();
+            if (syncPolicy != SyncPolicy.NONE) {
+                sync();
+            }
+        } finally {
+            if (writeBehind != null) {
+                pending.add(END);
+                try {
+                    writeBehind.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // A write-behind thread, that is still running, may use the buffers
+            if (writeBehind == null || !writeBehind.isAlive()) {
+                releaseBuffers();
+            }
+            channel.close();
+            super.close();
+        }
+    }
+
+    /**
+     * Hands the free buffers back to the pool.
+     */
+    private void releaseBuffers() {
+        Block block;
+        while ((block = free.poll()) != null) {
+            bufferPool.release(block.buffer);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package recorder.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the direct buffers of {@link ChannelImageOutputStream}. <p> The
+ * memory of a direct buffer is only freed, when the garbage collector finds
+ * the buffer, so streams of short segments would keep allocating it. The
+ * streams of a recorder take their buffers from one pool and hand them back,
+ * when they are closed. A buffer of another capacity than the requested one
+ * is dropped and replaced with a new buffer.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class DirectBufferPool {
+    /**
+     * Default number of pooled buffers, enough for a stream, that is open,
+     * and the stream of the next file.
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 2 * ChannelImageOutputStream.BUFFER_COUNT;
+
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final AtomicLong allocations = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public DirectBufferPool(int maxPooledBuffers) {
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxPooledBuffers));
+    }
+
+    /**
+     * Takes a cleared buffer out of the pool or allocates a new one.
+     */
+    public ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null && buffer.capacity() == capacity) {
+            buffer.clear();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Hands a buffer back to the pool. The buffer is dropped, if the pool
+     * is full.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect()) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of buffers, that the pool has allocated.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Returns the number of buffers in the pool.
+     */
+    public int getPooledBuffers() {
+        return buffers.size();
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public void clear() {
+        buffers.clear();
+    }
+}
@@ -0,0 +1,150 @@
+package recorder.io;
+
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+import org.monte.media.MovieWriter;
+import org.monte.media.math.Rational;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Movie writer, that writes the {@link SeekIndex} of the video track next to
+ * the movie file. <p> The writer writes to a stream, that it has been
+ * created with. After a video frame has been written, the frame data ends
+ * at the position of the stream, followed by a pad byte in AVI files, if
+ * the data has an odd size. The time of the frame is the duration of the
+ * track before the frame. The index is flushed at every key frame and at
+ * least once a second, so that a viewer can seek in a movie, that is still
+ * being written. Unless the sync policy is {@link SyncPolicy#NONE}, the
+ * index is forced to the storage device, when the writer is closed.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class IndexingMovieWriter implements MovieWriter {
+    /**
+     * Maximal time in nanoseconds, that entries stay in the buffer.
+     */
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final MovieWriter writer;
+    private final ImageOutputStream out;
+    private final int videoTrack;
+    private final boolean paddedChunks;
+    private final FileOutputStream indexFile;
+    private final DataOutputStream index;
+    private final SyncPolicy syncPolicy;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * Creates the index file.
+     *
+     * @param writer - the writer of the movie
+     * @param out - the stream, that the writer writes to
+     * @param movieFile - the movie file
+     * @param videoTrack - the track, that is indexed
+     * @param paddedChunks - true if the writer pads data of odd size, like the AVI writer
+     * @param syncPolicy - the sync policy of the movie file, null for {@link SyncPolicy#NONE}
+     */
+    public IndexingMovieWriter(MovieWriter writer, ImageOutputStream out, File movieFile, int videoTrack,
+                               boolean paddedChunks, SyncPolicy syncPolicy) throws IOException {
+        this.writer = writer;
+        this.out = out;
+        this.videoTrack = videoTrack;
+        this.paddedChunks = paddedChunks;
+        this.syncPolicy = syncPolicy != null ? syncPolicy : SyncPolicy.NONE;
+        this.indexFile = new FileOutputStream(SeekIndex.getIndexFile(movieFile));
+        this.index = new DataOutputStream(new BufferedOutputStream(indexFile));
+        try {
+            index.writeInt(SeekIndex.MAGIC);
+            index.writeInt(SeekIndex.VERSION);
+            index.flush();
+        } catch (IOException e) {
+            indexFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the writer of the movie.
+     */
+    public MovieWriter getWriter() {
+        return writer;
+    }
+
+    public void write(int track, Buffer buf) throws IOException {
+        if (track != videoTrack) {
+            writer.write(track, buf);
+            return;
+        }
+        Rational time = writer.getDuration(track);
+        long start = out.getStreamPosition();
+        writer.write(track, buf);
+        long end = out.getStreamPosition();
+        if (end == start) {
+            // The writer has dropped the frame
+            return;
+        }
+        long offset = end - buf.length - (paddedChunks ? buf.length & 1 : 0);
+        boolean isKeyFrame = buf.isFlag(BufferFlag.KEYFRAME);
+        index.writeLong(time.getNumerator() * 1000000 / time.getDenominator());
+        index.writeLong(offset);
+        index.writeInt(buf.length);
+        index.writeInt(isKeyFrame ? SeekIndex.KEYFRAME : 0);
+        long now = System.nanoTime();
+        if (isKeyFrame || now - lastFlush >= FLUSH_INTERVAL) {
+            index.flush();
+            lastFlush = now;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            try {
+                index.flush();
+                if (syncPolicy != SyncPolicy.NONE) {
+                    indexFile.getFD().sync();
+                }
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    public Format getFileFormat() throws IOException {
+        return writer.getFileFormat();
+    }
+
+    public int addTrack(Format format) throws IOException {
+        return writer.addTrack(format);
+    }
+
+    public Format getFormat(int track) {
+        return writer.getFormat(track);
+    }
+
+    public int getTrackCount() {
+        return writer.getTrackCount();
+    }
+
+    public boolean isDataLimitReached() {
+        return writer.isDataLimitReached();
+    }
+
+    public Rational getDuration(int track) {
+        return writer.getDuration(track);
+    }
+
+    public boolean isEmpty(int track) {
+        return writer.isEmpty(track);
+    }
+}
@@ -0,0 +1,89 @@
+package recorder.io;
+
+import recorder.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the buffered output of the movie files. <p> The same
+ * statistics can be shared by all files of a recording, they are updated
+ * without locking.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class OutputStatistics {
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final LatencyHistogram flushTime = new LatencyHistogram();
+    private final LatencyHistogram syncTime = new LatencyHistogram();
+    private final LatencyHistogram bufferWaitTime = new LatencyHistogram();
+
+    /**
+     * Records a buffer, that has been written to the file.
+     *
+     * @param bytes - number of bytes
+     * @param nanos - time of the write in nanoseconds
+     */
+    public void recordFlush(int bytes, long nanos) {
+        bytesWritten.addAndGet(bytes);
+        flushTime.record(nanos);
+    }
+
+    /**
+     * Records the time in nanoseconds, that forcing a file to the storage
+     * device took.
+     */
+    public void recordSync(long nanos) {
+        syncTime.record(nanos);
+    }
+
+    /**
+     * Records the time in nanoseconds, that the writer waited for a free
+     * buffer, because the disk was behind.
+     */
+    public void recordBufferWait(long nanos) {
+        bufferWaitTime.record(nanos);
+    }
+
+    /**
+     * Returns the number of bytes, that have been written to the files.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Returns the write time per buffer.
+     */
+    public LatencyHistogram getFlushTime() {
+        return flushTime;
+    }
+
+    /**
+     * Returns the time per sync.
+     */
+    public LatencyHistogram getSyncTime() {
+        return syncTime;
+    }
+
+    /**
+     * Returns the time, that the writer waited for a free buffer.
+     */
+    public LatencyHistogram getBufferWaitTime() {
+        return bufferWaitTime;
+    }
+
+    public void reset() {
+        bytesWritten.set(0);
+        flushTime.reset();
+        syncTime.reset();
+        bufferWaitTime.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes, %d flushes, flush p99 %.3f ms, max %.3f ms, %d syncs, max %.3f ms, buffer waits %d",
+                bytesWritten.get(), flushTime.getCount(), flushTime.getPercentile(99) / 1e6, flushTime.getMax() / 1e6,
+                syncTime.getCount(), syncTime.getMax() / 1e6, bufferWaitTime.getCount());
+    }
+}
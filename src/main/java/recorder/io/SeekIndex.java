@@ -0,0 +1,210 @@
+package recorder.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The seek index of a movie file, that lets a viewer start at any time of a
+ * long recording without decoding it from the start. <p> The recorder writes
+ * the index into a file next to the movie file, while it writes the movie.
+ * The index file starts with a header of 8 bytes, the magic number and the
+ * version, followed by an entry of {@value #ENTRY_SIZE} bytes for every video
+ * frame in the order of the movie: the time in microseconds, the offset of
+ * the frame data in the movie file, the size of the data and the flags. All
+ * numbers are big-endian. An index, that is still being written, can be
+ * read at any time, a partial entry at the end is ignored. <p> To show the
+ * frame at a time, a viewer decodes the frames from
+ * {@link #findKeyFrame(long)} to {@link #findFrame(long)}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public final class SeekIndex {
+    /**
+     * Suffix of the index file, that is written next to a movie file.
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+    /**
+     * "BRSI" - browser recorder seek index.
+     */
+    static final int MAGIC = 0x42525349;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int ENTRY_SIZE = 24;
+    /**
+     * Flag of an entry of a key frame.
+     */
+    static final int KEYFRAME = 1;
+
+    private final long[] time;
+    private final long[] offset;
+    private final int[] size;
+    private final int[] flags;
+    /**
+     * Entries of the key frames in ascending order.
+     */
+    private final int[] keyFrames;
+
+    private SeekIndex(long[] time, long[] offset, int[] size, int[] flags) {
+        this.time = time;
+        this.offset = offset;
+        this.size = size;
+        this.flags = flags;
+        int[] keys = new int[flags.length];
+        int n = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if ((flags[i] & KEYFRAME) != 0) {
+                keys[n++] = i;
+            }
+        }
+        this.keyFrames = Arrays.copyOf(keys, n);
+    }
+
+    /**
+     * Returns the index file of a movie file.
+     */
+    public static File getIndexFile(File movieFile) {
+        return new File(movieFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Reads the index of a movie file.
+     *
+     * @param movieFile - the movie file, not the index file
+     */
+    public static SeekIndex open(File movieFile) throws IOException {
+        File file = getIndexFile(movieFile);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a seek index: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported seek index version " + version + ": " + file);
+            }
+            int n = (int) ((file.length() - HEADER_SIZE) / ENTRY_SIZE);
+            long[] time = new long[n];
+            long[] offset = new long[n];
+            int[] size = new int[n];
+            int[] flags = new int[n];
+            int i = 0;
+            try {
+                for (; i < n; i++) {
+                    time[i] = in.readLong();
+                    offset[i] = in.readLong();
+                    size[i] = in.readInt();
+                    flags[i] = in.readInt();
+                }
+            } catch (EOFException e) {
+                // The file has been truncated while we read it
+            }
+            if (i < n) {
+                time = Arrays.copyOf(time, i);
+                offset = Arrays.copyOf(offset, i);
+                size = Arrays.copyOf(size, i);
+                flags = Arrays.copyOf(flags, i);
+            }
+            return new SeekIndex(time, offset, size, flags);
+        } catch (EOFException e) {
+            throw new IOException("Seek index without header: " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of frames.
+     */
+    public int size() {
+        return time.length;
+    }
+
+    /**
+     * Returns the time of a frame in microseconds since the start of the
+     * movie file.
+     */
+    public long getTime(int frame) {
+        return time[frame];
+    }
+
+    /**
+     * Returns the offset of the data of a frame in the movie file.
+     */
+    public long getOffset(int frame) {
+        return offset[frame];
+    }
+
+    /**
+     * Returns the size of the data of a frame in bytes.
+     */
+    public int getSize(int frame) {
+        return size[frame];
+    }
+
+    public boolean isKeyFrame(int frame) {
+        return (flags[frame] & KEYFRAME) != 0;
+    }
+
+    /**
+     * Returns the duration of the indexed frames in microseconds, the
+     * duration of the last frame is not known and not included.
+     */
+    public long getDuration() {
+        return time.length == 0 ? 0 : time[time.length - 1];
+    }
+
+    /**
+     * Returns the frame, that is shown at a time, -1 if the index is empty.
+     *
+     * @param time - time in microseconds since the start of the movie file
+     */
+    public int findFrame(long time) {
+        if (this.time.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(this.time, time);
+        if (i < 0) {
+            // The frame before the insertion point
+            i = -i - 2;
+        }
+        return Math.max(i, 0);
+    }
+
+    /**
+     * Returns the key frame, from which the frame at a time can be decoded,
+     * -1 if the index has no key frame.
+     *
+     * @param time - time in microseconds since the start of the movie file
+     */
+    public int findKeyFrame(long time) {
+        int frame = findFrame(time);
+        int i = Arrays.binarySearch(keyFrames, frame);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i >= 0 ? keyFrames[i] : keyFrames.length > 0 ? keyFrames[0] : -1;
+    }
+
+    /**
+     * Reads the data of a frame from the movie file.
+     */
+    public byte[] readFrame(FileChannel movie, int frame) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size[frame]);
+        long position = offset[frame];
+        while (data.hasRemaining()) {
+            int n = movie.read(data, position + data.position());
+            if (n < 0) {
+                throw new EOFException("Frame " + frame + " is beyond the end of the movie file");
+            }
+        }
+        return data.array();
+    }
+}
@@ -0,0 +1,200 @@
+package recorder.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The segments of a segmented recording, with a playlist, that lists the
+ * closed segments while the recording goes on. <p> A segment is listed, when
+ * it has been closed and all earlier segments have been closed as well, so
+ * that a reader, that tails the playlist, only sees complete files. The
+ * playlist is an extended M3U file, with the tags of a live HLS playlist:
+ * the media sequence counts the segments, that have been dropped from the
+ * start, and the end tag is written, when the recording stops. The target
+ * duration is fixed, when the playlist is created, as HLS doesn't allow it
+ * to change. The file is replaced atomically, readers never see a partial
+ * playlist. <p> If a
+ * retention limit is set, the oldest closed segments are deleted with their
+ * seek index, when there are more.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class SegmentPlaylist {
+    /**
+     * Extension of the playlist file.
+     */
+    public static final String EXTENSION = ".m3u8";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A segment, that has been finished by the writer.
+     */
+    private static final class Segment {
+        final File file;
+        final double duration;
+        boolean closed;
+
+        Segment(File file, double duration) {
+            this.file = file;
+            this.duration = duration;
+        }
+    }
+
+    private final File file;
+    private final int retention;
+    private final long targetDuration;
+    /**
+     * The segments in the order of the recording, starting with the oldest,
+     * that has not been deleted.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    /**
+     * Number of segments, that have been deleted.
+     */
+    private long mediaSequence;
+    private boolean finished;
+
+    /**
+     * Writes an empty playlist.
+     *
+     * @param file - the playlist file, null if only the retention limit is applied
+     * @param retention - number of closed segments, that are kept, 0 to keep all
+     * @param targetDuration - longest duration of a segment in milliseconds
+     */
+    public SegmentPlaylist(File file, int retention, long targetDuration) throws IOException {
+        this.file = file;
+        this.retention = retention;
+        this.targetDuration = targetDuration;
+        write();
+    }
+
+    /**
+     * Returns the playlist file of the first segment of a recording.
+     */
+    public static File getPlaylistFile(File firstSegment) {
+        String name = firstSegment.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(firstSegment.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the segments, that are listed in the playlist.
+     */
+    public synchronized List<File> getSegments() {
+        List<File> files = new ArrayList<File>();
+        for (Segment segment : segments) {
+            if (!segment.closed) {
+                break;
+            }
+            files.add(segment.file);
+        }
+        return files;
+    }
+
+    /**
+     * Adds a segment, that the writer has finished. It is listed, when it
+     * has been closed.
+     *
+     * @param segment - the movie file
+     * @param duration - the duration in seconds
+     */
+    public synchronized void segmentFinished(File segment, double duration) {
+        segments.add(new Segment(segment, duration));
+    }
+
+    /**
+     * Lists a segment, that has been closed, and deletes the segments over
+     * the retention limit. Files, that have not been finished, are ignored.
+     */
+    public synchronized void segmentClosed(File segment) throws IOException {
+        boolean found = false;
+        for (Segment s : segments) {
+            if (s.file.equals(segment)) {
+                s.closed = true;
+                found = true;
+            }
+        }
+        if (!found) {
+            return;
+        }
+        if (retention > 0) {
+            int closed = 0;
+            for (Segment s : segments) {
+                if (s.closed) {
+                    closed++;
+                }
+            }
+            while (closed > retention && segments.get(0).closed) {
+                Segment oldest = segments.remove(0);
+                mediaSequence++;
+                closed--;
+                if (!oldest.file.delete()) {
+                    oldest.file.deleteOnExit();
+                }
+                File index = SeekIndex.getIndexFile(oldest.file);
+                if (index.exists() && !index.delete()) {
+                    index.deleteOnExit();
+                }
+            }
+        }
+        write();
+    }
+
+    /**
+     * Marks the end of the recording in the playlist.
+     */
+    public synchronized void finish() throws IOException {
+        finished = true;
+        write();
+    }
+
+    private void write() throws IOException {
+        if (file == null) {
+            return;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append("#EXTM3U\n");
+        b.append("#EXT-X-VERSION:3\n");
+        b.append("#EXT-X-TARGETDURATION:").append((targetDuration + 999) / 1000).append('\n');
+        b.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        for (Segment segment : segments) {
+            if (!segment.closed) {
+                break;
+            }
+            b.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.duration));
+            b.append(segment.file.getName()).append('\n');
+        }
+        if (finished) {
+            b.append("#EXT-X-ENDLIST\n");
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+        try {
+            out.write(b.toString());
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
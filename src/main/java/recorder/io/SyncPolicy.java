@@ -0,0 +1,27 @@
+package recorder.io;
+
+/**
+ * When the data of a movie file is forced to the storage device. <p> Until
+ * it is forced, written data may only be in the cache of the operating
+ * system, and is lost if the machine crashes.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public enum SyncPolicy {
+    /**
+     * Never forces the data, the operating system writes it back when it
+     * wants to.
+     */
+    NONE,
+    /**
+     * Forces the data, when a file is closed, either on rollover to the
+     * next file or at the end of the recording.
+     */
+    ON_ROLLOVER,
+    /**
+     * Forces the data in a fixed interval while the file is written, and
+     * when it is closed.
+     */
+    PERIODIC
+}
@@ -0,0 +1,382 @@
+package recorder.metrics;
+
+import recorder.StageStatistics;
+import recorder.io.OutputStatistics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a {@link recorder.BrowserRecorder}. <p> The recorder threads
+ * update preallocated counters and histograms without locking or allocating.
+ * Readers take a {@link RecorderMetricsSnapshot} or read the attributes of
+ * the MBean, that the recorder registers while it records.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class RecorderMetrics implements RecorderMetricsMBean {
+    private static final AtomicInteger instances = new AtomicInteger();
+    /**
+     * Number of closed files, whose sizes are kept.
+     */
+    public static final int RECENT_FILES = 64;
+
+    private final int id = instances.incrementAndGet();
+    private final LatencyHistogram captureTime = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram rolloverStallTime = new LatencyHistogram();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private final AtomicLong framesDuplicated = new AtomicLong();
+    private final AtomicLong framesDiscarded = new AtomicLong();
+    private final AtomicLong audioBytesRead = new AtomicLong();
+    private final AtomicLong audioUnderruns = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong currentFileBytes = new AtomicLong();
+    private final AtomicLong rolloverCount = new AtomicLong();
+    private final OutputStatistics output = new OutputStatistics();
+    /**
+     * Sizes of the last closed files in a ring, the number of closed files
+     * is the rollover count.
+     */
+    private final long[] fileSizes = new long[RECENT_FILES];
+    private long closedFiles;
+    private long maxFileSize;
+    private volatile LatencyHistogram windowCaptureTime;
+    private volatile StageStatistics captureStage;
+    private volatile StageStatistics writerStage;
+    private ObjectName objectName;
+
+    /**
+     * Records the time of a frame capture in nanoseconds.
+     */
+    public void recordCaptureTime(long nanos) {
+        captureTime.record(nanos);
+    }
+
+    /**
+     * Records the time of a frame encoding in nanoseconds.
+     */
+    public void recordEncodeTime(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    /**
+     * Records the time in nanoseconds, that the writer was held up by
+     * switching to the next file.
+     */
+    public void recordRolloverStall(long nanos) {
+        rolloverStallTime.record(nanos);
+    }
+
+    /**
+     * Records a frame, that was the same as the previous one.
+     */
+    public void frameSkipped() {
+        framesSkipped.incrementAndGet();
+    }
+
+    /**
+     * Records frame slots, that repeat the previous frame to keep a fixed
+     * frame rate.
+     */
+    public void framesDuplicated(int count) {
+        framesDuplicated.addAndGet(count);
+    }
+
+    /**
+     * Records a frame, that didn't get a frame slot of a fixed frame rate.
+     */
+    public void frameDiscarded() {
+        framesDiscarded.incrementAndGet();
+    }
+
+    public void audioRead(int bytes) {
+        audioBytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Records a read, that could not deliver continuous audio.
+     */
+    public void audioUnderrun() {
+        audioUnderruns.incrementAndGet();
+    }
+
+    /**
+     * Records bytes written into the current movie file.
+     */
+    public void bytesWritten(int bytes) {
+        bytesWritten.addAndGet(bytes);
+        currentFileBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records the start of a new movie file.
+     *
+     * @param rollover - true if the file replaces a full one during the recording
+     */
+    public void fileStarted(boolean rollover) {
+        synchronized (fileSizes) {
+            if (rollover) {
+                long size = currentFileBytes.get();
+                fileSizes[(int) (closedFiles++ % RECENT_FILES)] = size;
+                maxFileSize = Math.max(maxFileSize, size);
+                rolloverCount.incrementAndGet();
+            }
+            currentFileBytes.set(0);
+        }
+    }
+
+    /**
+     * Returns the statistics of the buffered output, that writes the movie
+     * files to disk.
+     */
+    public OutputStatistics getOutputStatistics() {
+        return output;
+    }
+
+    /**
+     * Sets the histogram of the captures of single windows, null if frames
+     * don't come from windows.
+     */
+    public void setWindowCaptureTime(LatencyHistogram windowCaptureTime) {
+        this.windowCaptureTime = windowCaptureTime;
+    }
+
+    /**
+     * Sets the statistics of the capture and of the writer stage of the
+     * current recording.
+     */
+    public void setStages(StageStatistics captureStage, StageStatistics writerStage) {
+        this.captureStage = captureStage;
+        this.writerStage = writerStage;
+    }
+
+    /**
+     * Clears all values for a new recording.
+     */
+    public void reset() {
+        captureTime.reset();
+        encodeTime.reset();
+        rolloverStallTime.reset();
+        framesSkipped.set(0);
+        framesDuplicated.set(0);
+        framesDiscarded.set(0);
+        audioBytesRead.set(0);
+        audioUnderruns.set(0);
+        bytesWritten.set(0);
+        currentFileBytes.set(0);
+        rolloverCount.set(0);
+        output.reset();
+        synchronized (fileSizes) {
+            closedFiles = 0;
+            maxFileSize = 0;
+        }
+        LatencyHistogram windows = windowCaptureTime;
+        if (windows != null) {
+            windows.reset();
+        }
+        captureStage = null;
+        writerStage = null;
+    }
+
+    /**
+     * Takes a copy of the current values.
+     */
+    public RecorderMetricsSnapshot snapshot() {
+        long[] sizes;
+        long maxSize;
+        synchronized (fileSizes) {
+            int n = (int) Math.min(closedFiles, RECENT_FILES);
+            sizes = new long[n + 1];
+            for (int i = 0; i < n; i++) {
+                sizes[i] = fileSizes[(int) ((closedFiles - n + i) % RECENT_FILES)];
+            }
+            sizes[n] = currentFileBytes.get();
+            maxSize = Math.max(maxFileSize, sizes[n]);
+        }
+        LatencyHistogram windows = windowCaptureTime;
+        StageStatistics writer = writerStage;
+        return new RecorderMetricsSnapshot(
+                getFramesCaptured(), getFramesDropped(), framesSkipped.get(), framesDuplicated.get(), framesDiscarded.get(),
+                new RecorderMetricsSnapshot.Latency(captureTime),
+                windows != null ? new RecorderMetricsSnapshot.Latency(windows) : null,
+                new RecorderMetricsSnapshot.Latency(encodeTime),
+                getWriterQueueDepth(), getWriterQueueCapacity(),
+                writer != null ? new RecorderMetricsSnapshot.Latency(writer.getBlockedPutTimes()) : null,
+                audioBytesRead.get(), audioUnderruns.get(),
+                bytesWritten.get(), rolloverCount.get(), new RecorderMetricsSnapshot.Latency(rolloverStallTime), sizes, maxSize,
+                output.getBytesWritten(), new RecorderMetricsSnapshot.Latency(output.getFlushTime()),
+                new RecorderMetricsSnapshot.Latency(output.getSyncTime()),
+                new RecorderMetricsSnapshot.Latency(output.getBufferWaitTime()));
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server.
+     */
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("recorder:type=BrowserRecorder,id=" + id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    /**
+     * Returns the name of the registered MBean, null if not registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public long getFramesCaptured() {
+        StageStatistics stage = captureStage;
+        return stage != null ? stage.getProcessedCount() : 0;
+    }
+
+    public long getFramesDropped() {
+        StageStatistics stage = captureStage;
+        return stage != null ? stage.getDroppedCount() : 0;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    public long getFramesDuplicated() {
+        return framesDuplicated.get();
+    }
+
+    public long getFramesDiscarded() {
+        return framesDiscarded.get();
+    }
+
+    public double getCaptureTimeMean() {
+        return captureTime.getMean() / 1e6;
+    }
+
+    public double getCaptureTime50thPercentile() {
+        return captureTime.getPercentile(50) / 1e6;
+    }
+
+    public double getCaptureTime99thPercentile() {
+        return captureTime.getPercentile(99) / 1e6;
+    }
+
+    public double getCaptureTimeMax() {
+        return captureTime.getMax() / 1e6;
+    }
+
+    public double getWindowCaptureTime99thPercentile() {
+        LatencyHistogram windows = windowCaptureTime;
+        return windows != null ? windows.getPercentile(99) / 1e6 : 0;
+    }
+
+    public double getWindowCaptureTimeMax() {
+        LatencyHistogram windows = windowCaptureTime;
+        return windows != null ? windows.getMax() / 1e6 : 0;
+    }
+
+    public double getEncodeTimeMean() {
+        return encodeTime.getMean() / 1e6;
+    }
+
+    public double getEncodeTime99thPercentile() {
+        return encodeTime.getPercentile(99) / 1e6;
+    }
+
+    public double getEncodeTimeMax() {
+        return encodeTime.getMax() / 1e6;
+    }
+
+    public int getWriterQueueDepth() {
+        StageStatistics stage = writerStage;
+        return stage != null ? stage.getQueueDepth() : 0;
+    }
+
+    public int getWriterQueueCapacity() {
+        StageStatistics stage = writerStage;
+        return stage != null ? stage.getQueueCapacity() : 0;
+    }
+
+    public long getWriterBlockedPuts() {
+        StageStatistics stage = writerStage;
+        return stage != null ? stage.getBlockedPutTimes().getCount() : 0;
+    }
+
+    public double getWriterBlockedTime99thPercentile() {
+        StageStatistics stage = writerStage;
+        return stage != null ? stage.getBlockedPutTimes().getPercentile(99) / 1e6 : 0;
+    }
+
+    public double getWriterBlockedTimeMax() {
+        StageStatistics stage = writerStage;
+        return stage != null ? stage.getBlockedPutTimes().getMax() / 1e6 : 0;
+    }
+
+    public long getAudioBytesRead() {
+        return audioBytesRead.get();
+    }
+
+    public long getAudioUnderruns() {
+        return audioUnderruns.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getCurrentFileBytes() {
+        return currentFileBytes.get();
+    }
+
+    public long getRolloverCount() {
+        return rolloverCount.get();
+    }
+
+    public double getRolloverStallTimeMax() {
+        return rolloverStallTime.getMax() / 1e6;
+    }
+
+    public long getDiskBytesWritten() {
+        return output.getBytesWritten();
+    }
+
+    public double getFlushTime99thPercentile() {
+        return output.getFlushTime().getPercentile(99) / 1e6;
+    }
+
+    public double getFlushTimeMax() {
+        return output.getFlushTime().getMax() / 1e6;
+    }
+
+    public double getSyncTimeMax() {
+        return output.getSyncTime().getMax() / 1e6;
+    }
+
+    public long getOutputBufferWaits() {
+        return output.getBufferWaitTime().getCount();
+    }
+}
@@ -0,0 +1,71 @@
+package recorder.metrics;
+
+/**
+ * Management interface of {@link RecorderMetrics}. Durations are in
+ * milliseconds.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public interface RecorderMetricsMBean {
+
+    long getFramesCaptured();
+
+    long getFramesDropped();
+
+    long getFramesSkipped();
+
+    long getFramesDuplicated();
+
+    long getFramesDiscarded();
+
+    double getCaptureTimeMean();
+
+    double getCaptureTime50thPercentile();
+
+    double getCaptureTime99thPercentile();
+
+    double getCaptureTimeMax();
+
+    double getWindowCaptureTime99thPercentile();
+
+    double getWindowCaptureTimeMax();
+
+    double getEncodeTimeMean();
+
+    double getEncodeTime99thPercentile();
+
+    double getEncodeTimeMax();
+
+    int getWriterQueueDepth();
+
+    int getWriterQueueCapacity();
+
+    long getWriterBlockedPuts();
+
+    double getWriterBlockedTime99thPercentile();
+
+    double getWriterBlockedTimeMax();
+
+    long getAudioBytesRead();
+
+    long getAudioUnderruns();
+
+    long getBytesWritten();
+
+    long getCurrentFileBytes();
+
+    long getRolloverCount();
+
+    double getRolloverStallTimeMax();
+
+    long getDiskBytesWritten();
+
+    double getFlushTime99thPercentile();
+
+    double getFlushTimeMax();
+
+    double getSyncTimeMax();
+
+    long getOutputBufferWaits();
+}
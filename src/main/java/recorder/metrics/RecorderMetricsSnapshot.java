@@ -0,0 +1,301 @@
+package recorder.metrics;
+
+/**
+ * Values of the {@link RecorderMetrics} at one point in time. Durations are
+ * in nanoseconds.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public final class RecorderMetricsSnapshot {
+
+    /**
+     * Summary of a {@link LatencyHistogram}.
+     */
+    public static final class Latency {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Latency(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getPercentile(50);
+            this.p90 = histogram.getPercentile(90);
+            this.p99 = histogram.getPercentile(99);
+            this.max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long get50thPercentile() {
+            return p50;
+        }
+
+        public long get90thPercentile() {
+            return p90;
+        }
+
+        public long get99thPercentile() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    count, mean / 1e6, p50 / 1e6, p90 / 1e6, p99 / 1e6, max / 1e6);
+        }
+    }
+
+    private final long framesCaptured;
+    private final long framesDropped;
+    private final long framesSkipped;
+    private final long framesDuplicated;
+    private final long framesDiscarded;
+    private final Latency captureTime;
+    private final Latency windowCaptureTime;
+    private final Latency encodeTime;
+    private final int writerQueueDepth;
+    private final int writerQueueCapacity;
+    private final Latency writerBlockedTime;
+    private final long audioBytesRead;
+    private final long audioUnderruns;
+    private final long bytesWritten;
+    private final long rolloverCount;
+    private final Latency rolloverStallTime;
+    private final long[] fileSizes;
+    private final long maxFileSize;
+    private final long diskBytesWritten;
+    private final Latency flushTime;
+    private final Latency syncTime;
+    private final Latency outputBufferWaitTime;
+
+    RecorderMetricsSnapshot(long framesCaptured, long framesDropped, long framesSkipped, long framesDuplicated,
+                            long framesDiscarded, Latency captureTime, Latency windowCaptureTime, Latency encodeTime,
+                            int writerQueueDepth, int writerQueueCapacity, Latency writerBlockedTime,
+                            long audioBytesRead, long audioUnderruns, long bytesWritten, long rolloverCount,
+                            Latency rolloverStallTime, long[] fileSizes, long maxFileSize, long diskBytesWritten,
+                            Latency flushTime, Latency syncTime, Latency outputBufferWaitTime) {
+        this.framesCaptured = framesCaptured;
+        this.framesDropped = framesDropped;
+        this.framesSkipped = framesSkipped;
+        this.framesDuplicated = framesDuplicated;
+        this.framesDiscarded = framesDiscarded;
+        this.captureTime = captureTime;
+        this.windowCaptureTime = windowCaptureTime;
+        this.encodeTime = encodeTime;
+        this.writerQueueDepth = writerQueueDepth;
+        this.writerQueueCapacity = writerQueueCapacity;
+        this.writerBlockedTime = writerBlockedTime;
+        this.audioBytesRead = audioBytesRead;
+        this.audioUnderruns = audioUnderruns;
+        this.bytesWritten = bytesWritten;
+        this.rolloverCount = rolloverCount;
+        this.rolloverStallTime = rolloverStallTime;
+        this.fileSizes = fileSizes;
+        this.maxFileSize = maxFileSize;
+        this.diskBytesWritten = diskBytesWritten;
+        this.flushTime = flushTime;
+        this.syncTime = syncTime;
+        this.outputBufferWaitTime = outputBufferWaitTime;
+    }
+
+    /**
+     * Returns the number of frames, that have been captured.
+     */
+    public long getFramesCaptured() {
+        return framesCaptured;
+    }
+
+    /**
+     * Returns the number of captured frames, that were dropped because the
+     * encoder was busy.
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Returns the number of frames, that were the same as the previous one.
+     */
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * Returns the number of frame slots, that repeat the previous frame to
+     * keep a fixed frame rate.
+     */
+    public long getFramesDuplicated() {
+        return framesDuplicated;
+    }
+
+    /**
+     * Returns the number of frames, that didn't get a slot of the fixed
+     * frame rate.
+     */
+    public long getFramesDiscarded() {
+        return framesDiscarded;
+    }
+
+    /**
+     * Returns the capture time per frame.
+     */
+    public Latency getCaptureTime() {
+        return captureTime;
+    }
+
+    /**
+     * Returns the capture time per window, null if frames don't come from
+     * windows.
+     */
+    public Latency getWindowCaptureTime() {
+        return windowCaptureTime;
+    }
+
+    /**
+     * Returns the encode time per frame.
+     */
+    public Latency getEncodeTime() {
+        return encodeTime;
+    }
+
+    public int getWriterQueueDepth() {
+        return writerQueueDepth;
+    }
+
+    public int getWriterQueueCapacity() {
+        return writerQueueCapacity;
+    }
+
+    /**
+     * Returns the time, that producers waited for room in the writer queue,
+     * null if the recorder has not been started.
+     */
+    public Latency getWriterBlockedTime() {
+        return writerBlockedTime;
+    }
+
+    public long getAudioBytesRead() {
+        return audioBytesRead;
+    }
+
+    /**
+     * Returns the number of audio reads, that could not deliver continuous
+     * audio.
+     */
+    public long getAudioUnderruns() {
+        return audioUnderruns;
+    }
+
+    /**
+     * Returns the number of media bytes written into all files.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getRolloverCount() {
+        return rolloverCount;
+    }
+
+    /**
+     * Returns the time, that the writer was held up by switching to the
+     * next file.
+     */
+    public Latency getRolloverStallTime() {
+        return rolloverStallTime;
+    }
+
+    /**
+     * Returns the number of media bytes written into the last
+     * {@value RecorderMetrics#RECENT_FILES} closed files of the recording and
+     * into the current file, which is the last one.
+     */
+    public long[] getFileSizes() {
+        return fileSizes.clone();
+    }
+
+    /**
+     * Returns the number of media bytes of the largest file of the
+     * recording, including the current file.
+     */
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Returns the number of bytes, that the buffered output has written to
+     * disk, 0 if the movie writer writes the files itself.
+     */
+    public long getDiskBytesWritten() {
+        return diskBytesWritten;
+    }
+
+    /**
+     * Returns the time per buffer, that the buffered output has written.
+     */
+    public Latency getFlushTime() {
+        return flushTime;
+    }
+
+    /**
+     * Returns the time per sync of a movie file to the storage device.
+     */
+    public Latency getSyncTime() {
+        return syncTime;
+    }
+
+    /**
+     * Returns the time, that the writer waited for a free output buffer.
+     */
+    public Latency getOutputBufferWaitTime() {
+        return outputBufferWaitTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("frames captured ").append(framesCaptured)
+                .append(", dropped ").append(framesDropped)
+                .append(", skipped ").append(framesSkipped)
+                .append(", duplicated ").append(framesDuplicated)
+                .append(", discarded ").append(framesDiscarded)
+                .append("\ncapture: ").append(captureTime);
+        if (windowCaptureTime != null) {
+            sb.append("\nwindow capture: ").append(windowCaptureTime);
+        }
+        sb.append("\nencode: ").append(encodeTime)
+                .append("\nwriter queue ").append(writerQueueDepth).append('/').append(writerQueueCapacity);
+        if (writerBlockedTime != null) {
+            sb.append(", blocked: ").append(writerBlockedTime);
+        }
+        sb.append("\naudio bytes ").append(audioBytesRead).append(", underruns ").append(audioUnderruns)
+                .append("\nbytes written ").append(bytesWritten).append(", rollovers ").append(rolloverCount);
+        if (rolloverCount > 0) {
+            sb.append(", stall: ").append(rolloverStallTime);
+        }
+        if (diskBytesWritten > 0) {
+            sb.append("\ndisk bytes ").append(diskBytesWritten)
+                    .append("\nflush: ").append(flushTime)
+                    .append("\nsync: ").append(syncTime);
+            if (outputBufferWaitTime.getCount() > 0) {
+                sb.append("\nbuffer wait: ").append(outputBufferWaitTime);
+            }
+        }
+        return sb.toString();
+    }
+}
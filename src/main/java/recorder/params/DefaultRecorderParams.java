@@ -22,7 +22,9 @@ import static org.monte.media.VideoFormatKeys.*;
  * @author Nikolay Soloviev <psolberger@gmail.com>
  */
 public class DefaultRecorderParams {
-    private static Rectangle captureArea = GraphicsEnvironment
+    private static Rectangle captureArea = GraphicsEnvironment.isHeadless()
+            ? new Rectangle(0, 0, 1920, 1080)
+            : GraphicsEnvironment
             .getLocalGraphicsEnvironment().getDefaultScreenDevice()
             .getDefaultConfiguration()
             .getBounds();
@@ -1,6 +1,10 @@
 package recorder.params;
 
 import org.monte.media.Format;
+import recorder.FramePool;
+import recorder.ScaleQuality;
+import recorder.io.SyncPolicy;
+import recorder.source.FrameSource;
 
 import java.awt.*;
 import java.io.File;
@@ -31,6 +35,108 @@ public class RecorderParams {
      * Where to store the movie
      */
     protected File movieFolder = null;
+    /**
+     * Where the video frames come from. Specify null to capture
+     * the windows of the browser process.
+     */
+    protected FrameSource frameSource = null;
+    /**
+     * Maximal number of bytes of frame images, that are kept for reuse.
+     */
+    protected long framePoolSize = FramePool.DEFAULT_MAX_POOLED_BYTES;
+    /**
+     * Size of the tiles, that are compared to detect unchanged frames.
+     * Specify 0 to encode every frame as new content.
+     */
+    protected int changeDetectionTileSize = 32;
+    /**
+     * Interval in milliseconds between two enumerations of the browser
+     * windows, if frames come from the browser process.
+     */
+    protected long windowRefreshInterval = 1000;
+    /**
+     * Number of browser windows, that are captured at the same time.
+     */
+    protected int captureThreads = 1;
+    /**
+     * Range of the capture frame rate. The recorder lowers the frame rate
+     * under load and raises it again, when there is headroom. Specify 0 to
+     * use the frame rate of the screen format.
+     */
+    protected double minFrameRate = 0;
+    protected double maxFrameRate = 0;
+    /**
+     * Run the threads, that mostly wait (file writer, audio reader and file
+     * closer), as virtual threads. Needs Java 21 or later, platform threads
+     * are used otherwise. Capture and encoding stay on platform threads.
+     */
+    protected boolean virtualThreads = false;
+    /**
+     * Size in bytes of the buffers, that collect the writes into the movie
+     * file, before a background thread writes them to disk. Specify 0 to
+     * let the movie writer write the file itself.
+     */
+    protected int outputBufferSize = 0;
+    /**
+     * When the buffered output forces the movie file to the storage device.
+     */
+    protected SyncPolicy syncPolicy = SyncPolicy.ON_ROLLOVER;
+    /**
+     * Interval in milliseconds of {@link SyncPolicy#PERIODIC}.
+     */
+    protected long syncInterval = 5000;
+    /**
+     * Crash-safe mode: maximal time in milliseconds of a movie file, the
+     * recorder starts a new file afterwards. Closed files are playable even
+     * if the JVM is killed, the file being written can be repaired with
+     * {@link recorder.io.AVIRecovery}. Specify 0 to disable crash-safe mode.
+     */
+    protected long segmentDuration = 0;
+    /**
+     * Segmented output: writes a playlist of the closed segments of a
+     * crash-safe recording next to them, so that the recording can be
+     * followed while it goes on. Needs a segment duration.
+     */
+    protected boolean playlist = false;
+    /**
+     * Number of the newest segments of a crash-safe recording, that are
+     * kept, older segments are deleted. Specify 0 to keep all segments.
+     */
+    protected int segmentRetention = 0;
+    /**
+     * Writes a seek index of the video frames next to every movie file, see
+     * {@link recorder.io.SeekIndex}. The index needs a writer of the file
+     * format, that writes to a stream, the recorder fails to start a file
+     * otherwise.
+     */
+    protected boolean seekIndex = false;
+    /**
+     * Ring mode: time in milliseconds, that the recorder keeps in memory
+     * instead of writing files. The kept frames are written into a movie by
+     * {@link recorder.BrowserRecorder#dump(File)}. Specify 0 to record to
+     * files.
+     */
+    protected long ringDuration = 0;
+    /**
+     * Size in bytes of the memory, that ring mode keeps the encoded frames
+     * and the audio in. The memory is allocated outside of the Java heap.
+     */
+    protected int ringBufferSize = 64 * 1024 * 1024;
+    /**
+     * Encode the horizontal bands of a TechSmith frame in parallel on the
+     * common fork-join pool. Only 24 bit frames are encoded in parallel.
+     */
+    protected boolean parallelEncoding = false;
+    /**
+     * How the captured frames are scaled, when the capture area has another
+     * size than the video.
+     */
+    protected ScaleQuality scaleQuality = ScaleQuality.QUALITY;
+    /**
+     * Record 8 bit video in 256 shades of gray instead of the colors of the
+     * Mac palette. Only used, if the depth of the screen format is 8.
+     */
+    protected boolean grayscale = false;
 
     public RecorderParams() {
 
@@ -80,4 +186,184 @@ public class RecorderParams {
         this.movieFolder = movieFolder;
         return this;
     }
+
+    public FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    public RecorderParams setFrameSource(FrameSource frameSource) {
+        this.frameSource = frameSource;
+        return this;
+    }
+
+    public long getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    public RecorderParams setFramePoolSize(long framePoolSize) {
+        this.framePoolSize = framePoolSize;
+        return this;
+    }
+
+    public int getChangeDetectionTileSize() {
+        return changeDetectionTileSize;
+    }
+
+    public RecorderParams setChangeDetectionTileSize(int changeDetectionTileSize) {
+        this.changeDetectionTileSize = changeDetectionTileSize;
+        return this;
+    }
+
+    public long getWindowRefreshInterval() {
+        return windowRefreshInterval;
+    }
+
+    public RecorderParams setWindowRefreshInterval(long windowRefreshInterval) {
+        this.windowRefreshInterval = windowRefreshInterval;
+        return this;
+    }
+
+    public int getCaptureThreads() {
+        return captureThreads;
+    }
+
+    public RecorderParams setCaptureThreads(int captureThreads) {
+        this.captureThreads = captureThreads;
+        return this;
+    }
+
+    public double getMinFrameRate() {
+        return minFrameRate;
+    }
+
+    public RecorderParams setMinFrameRate(double minFrameRate) {
+        this.minFrameRate = minFrameRate;
+        return this;
+    }
+
+    public double getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    public RecorderParams setMaxFrameRate(double maxFrameRate) {
+        this.maxFrameRate = maxFrameRate;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public RecorderParams setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    public RecorderParams setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+        return this;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public RecorderParams setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public RecorderParams setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    public long getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    public RecorderParams setSegmentDuration(long segmentDuration) {
+        this.segmentDuration = segmentDuration;
+        return this;
+    }
+
+    public boolean isPlaylist() {
+        return playlist;
+    }
+
+    public RecorderParams setPlaylist(boolean playlist) {
+        this.playlist = playlist;
+        return this;
+    }
+
+    public int getSegmentRetention() {
+        return segmentRetention;
+    }
+
+    public RecorderParams setSegmentRetention(int segmentRetention) {
+        this.segmentRetention = segmentRetention;
+        return this;
+    }
+
+    public boolean isSeekIndex() {
+        return seekIndex;
+    }
+
+    public RecorderParams setSeekIndex(boolean seekIndex) {
+        this.seekIndex = seekIndex;
+        return this;
+    }
+
+    public long getRingDuration() {
+        return ringDuration;
+    }
+
+    public RecorderParams setRingDuration(long ringDuration) {
+        this.ringDuration = ringDuration;
+        return this;
+    }
+
+    public int getRingBufferSize() {
+        return ringBufferSize;
+    }
+
+    public RecorderParams setRingBufferSize(int ringBufferSize) {
+        this.ringBufferSize = ringBufferSize;
+        return this;
+    }
+
+    public boolean isParallelEncoding() {
+        return parallelEncoding;
+    }
+
+    public RecorderParams setParallelEncoding(boolean parallelEncoding) {
+        this.parallelEncoding = parallelEncoding;
+        return this;
+    }
+
+    public ScaleQuality getScaleQuality() {
+        return scaleQuality;
+    }
+
+    public RecorderParams setScaleQuality(ScaleQuality scaleQuality) {
+        this.scaleQuality = scaleQuality;
+        return this;
+    }
+
+    public boolean isGrayscale() {
+        return grayscale;
+    }
+
+    public RecorderParams setGrayscale(boolean grayscale) {
+        this.grayscale = grayscale;
+        return this;
+    }
 }
@@ -0,0 +1,42 @@
+package recorder.source;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Frame source backed by an off-screen image. The application paints into
+ * the image, and the recorder captures whatever is in the image at the time
+ * of the capture. Works in headless mode.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class BufferFrameSource implements FrameSource {
+    private final BufferedImage image;
+
+    public BufferFrameSource(int width, int height) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Returns the image, that is captured. Painting should be synchronized
+     * on this source to avoid capturing half painted frames.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public Graphics2D createGraphics() {
+        return image.createGraphics();
+    }
+
+    public synchronized BufferedImage capture() {
+        return image;
+    }
+
+    public void release(BufferedImage image) {
+    }
+
+    public void close() {
+    }
+}
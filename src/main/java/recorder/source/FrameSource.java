@@ -0,0 +1,36 @@
+package recorder.source;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Source of the video frames, that {@link recorder.BrowserRecorder} writes into
+ * the movie file. <p> The recorder calls {@link #capture()} from its capture
+ * thread once per frame. The returned image stays owned by the source, the
+ * recorder reads it until it hands the image back with {@link #release(BufferedImage)}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public interface FrameSource {
+
+    /**
+     * Captures the next frame.
+     *
+     * @return captured image of type {@code BufferedImage.TYPE_INT_RGB}
+     * @throws IOException if the frame can't be captured
+     */
+    BufferedImage capture() throws IOException;
+
+    /**
+     * Hands a captured image back to the source, the caller doesn't use
+     * the image any more.
+     */
+    void release(BufferedImage image);
+
+    /**
+     * Releases resources, that the source holds between captures. The source
+     * can be captured from again after closing.
+     */
+    void close();
+}
@@ -0,0 +1,41 @@
+package recorder.source;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Captures an area of the screen through {@link Robot}. Works on every
+ * platform with a display, including Linux with X11.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class RobotFrameSource implements FrameSource {
+    private final Rectangle area;
+    private Robot robot;
+
+    public RobotFrameSource(Rectangle area) {
+        this.area = new Rectangle(area);
+    }
+
+    public synchronized BufferedImage capture() throws IOException {
+        if (robot == null) {
+            try {
+                robot = new Robot();
+            } catch (AWTException e) {
+                IOException ioe = new IOException("Can't create robot");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+        return robot.createScreenCapture(area);
+    }
+
+    public void release(BufferedImage image) {
+    }
+
+    public synchronized void close() {
+        robot = null;
+    }
+}
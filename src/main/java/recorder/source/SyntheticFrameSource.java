@@ -0,0 +1,240 @@
+package recorder.source;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+/**
+ * Deterministic frame source, that draws a browser-like page without any
+ * native calls. Useful for profiling and load-testing the recorder on machines
+ * without a desktop. <p> Two sources with the same parameters produce the same
+ * sequence of frames.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    public enum Motion {
+        /**
+         * A small blinking caret, the rest of the page stays the same.
+         */
+        CARET,
+        /**
+         * The whole page scrolls up.
+         */
+        SCROLL,
+        /**
+         * A box moves over the page.
+         */
+        MOVING_BOX,
+        /**
+         * A region of the page is filled with random pixels.
+         */
+        NOISE
+    }
+
+    private static final int LINE_PERIOD = 24;
+    private static final int BOX_SIZE = 64;
+    private static final int BACKGROUND = 0xffffff;
+
+    private final int width;
+    private final int height;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int[][] rowTemplates;
+    private double changeRate = 1.0;
+    private Motion motion = Motion.SCROLL;
+    private int scrollStep = 8;
+    private long seed = 0;
+    private Random random;
+    private long frameNumber;
+    private long scrollOffset;
+    private int boxX;
+    private int boxY;
+    private int boxDX = 7;
+    private int boxDY = 5;
+
+    public SyntheticFrameSource(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Illegal frame size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.rowTemplates = createRowTemplates(width);
+        reset();
+    }
+
+    /**
+     * Fraction of frames, that differ from the previous frame.
+     * @param changeRate - value in the range [0.0,1.0]
+     */
+    public SyntheticFrameSource setChangeRate(double changeRate) {
+        if (changeRate < 0 || changeRate > 1) {
+            throw new IllegalArgumentException("Change rate must be in the range [0.0,1.0]: " + changeRate);
+        }
+        this.changeRate = changeRate;
+        return this;
+    }
+
+    public double getChangeRate() {
+        return changeRate;
+    }
+
+    public SyntheticFrameSource setMotion(Motion motion) {
+        this.motion = motion;
+        reset();
+        return this;
+    }
+
+    public Motion getMotion() {
+        return motion;
+    }
+
+    /**
+     * Number of rows, that the page scrolls per changed frame in {@link Motion#SCROLL} mode.
+     */
+    public SyntheticFrameSource setScrollStep(int scrollStep) {
+        this.scrollStep = max1(scrollStep);
+        return this;
+    }
+
+    public SyntheticFrameSource setSeed(long seed) {
+        this.seed = seed;
+        reset();
+        return this;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Restarts the frame sequence from the first frame.
+     */
+    public synchronized void reset() {
+        random = new Random(seed);
+        frameNumber = 0;
+        scrollOffset = 0;
+        boxX = 0;
+        boxY = 0;
+        drawPage();
+    }
+
+    public synchronized BufferedImage capture() {
+        long n = frameNumber++;
+        if ((long) ((n + 1) * changeRate) > (long) (n * changeRate)) {
+            switch (motion) {
+                case CARET:
+                    drawCaret(n);
+                    break;
+                case SCROLL:
+                    scrollOffset += scrollStep;
+                    drawPage();
+                    break;
+                case MOVING_BOX:
+                    moveBox();
+                    break;
+                case NOISE:
+                    drawNoise();
+                    break;
+            }
+        }
+        return image;
+    }
+
+    public void release(BufferedImage image) {
+    }
+
+    public void close() {
+    }
+
+    private void drawPage() {
+        for (int y = 0; y < height; y++) {
+            int[] row = rowTemplates[(int) ((y + scrollOffset) % LINE_PERIOD)];
+            System.arraycopy(row, 0, pixels, y * width, width);
+        }
+        if (motion == Motion.MOVING_BOX) {
+            fillRect(boxX, boxY, BOX_SIZE, BOX_SIZE, 0x3366cc);
+        }
+    }
+
+    private void drawCaret(long n) {
+        int x = Math.min(width - 1, 40);
+        int y = Math.min(height - 1, 40);
+        fillRect(x, y, 2, 16, (n & 1) == 0 ? 0x000000 : BACKGROUND);
+    }
+
+    private void moveBox() {
+        restoreRect(boxX, boxY, BOX_SIZE, BOX_SIZE);
+        boxX += boxDX;
+        boxY += boxDY;
+        if (boxX < 0 || boxX + BOX_SIZE > width) {
+            boxDX = -boxDX;
+            boxX = Math.max(0, Math.min(boxX, width - BOX_SIZE));
+        }
+        if (boxY < 0 || boxY + BOX_SIZE > height) {
+            boxDY = -boxDY;
+            boxY = Math.max(0, Math.min(boxY, height - BOX_SIZE));
+        }
+        fillRect(boxX, boxY, BOX_SIZE, BOX_SIZE, 0x3366cc);
+    }
+
+    private void drawNoise() {
+        int w = max1(width / 4);
+        int h = max1(height / 4);
+        int x = random.nextInt(width - w + 1);
+        int y = random.nextInt(height - h + 1);
+        for (int yy = y; yy < y + h; yy++) {
+            int xy = yy * width + x;
+            for (int i = 0; i < w; i++) {
+                pixels[xy + i] = random.nextInt() & 0xffffff;
+            }
+        }
+    }
+
+    private void fillRect(int x, int y, int w, int h, int rgb) {
+        int xmax = Math.min(width, x + w);
+        int ymax = Math.min(height, y + h);
+        for (int yy = Math.max(0, y); yy < ymax; yy++) {
+            for (int xy = yy * width + Math.max(0, x), end = yy * width + xmax; xy < end; xy++) {
+                pixels[xy] = rgb;
+            }
+        }
+    }
+
+    private void restoreRect(int x, int y, int w, int h) {
+        int xmin = Math.max(0, x);
+        int xmax = Math.min(width, x + w);
+        int ymax = Math.min(height, y + h);
+        for (int yy = Math.max(0, y); yy < ymax; yy++) {
+            int[] row = rowTemplates[(int) ((yy + scrollOffset) % LINE_PERIOD)];
+            System.arraycopy(row, xmin, pixels, yy * width + xmin, xmax - xmin);
+        }
+    }
+
+    /**
+     * Creates rows of a page with gray "text" lines on a white background.
+     */
+    private static int[][] createRowTemplates(int width) {
+        int[][] rows = new int[LINE_PERIOD][width];
+        for (int y = 0; y < LINE_PERIOD; y++) {
+            boolean textRow = y >= 6 && y < 18;
+            for (int x = 0; x < width; x++) {
+                boolean glyph = textRow && x >= 16 && x < width - 16 && (x % 9) < 6 && ((x / 9 + y) % 7) != 0;
+                rows[y][x] = glyph ? 0x404040 : BACKGROUND;
+            }
+        }
+        return rows;
+    }
+
+    private static int max1(int value) {
+        return Math.max(1, value);
+    }
+}
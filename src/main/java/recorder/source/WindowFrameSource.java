@@ -0,0 +1,107 @@
+package recorder.source;
+
+import recorder.CaptureWindow;
+import recorder.FramePool;
+import recorder.WindowSetTracker;
+import recorder.metrics.LatencyHistogram;
+
+import com.sun.jna.platform.win32.WinDef.HWND;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Captures all visible windows of a process through GDI.
+ * Works only on Windows.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class WindowFrameSource implements FrameSource {
+    private final CaptureWindow captureWindow;
+    private final WindowSetTracker windowSetTracker;
+
+    public WindowFrameSource() {
+        this(new FramePool());
+    }
+
+    public WindowFrameSource(FramePool framePool) {
+        this(framePool, WindowSetTracker.DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param framePool - pool of the composed images
+     * @param windowRefreshInterval - interval between two enumerations of the
+     * windows of the process in milliseconds
+     */
+    public WindowFrameSource(FramePool framePool, long windowRefreshInterval) {
+        this.captureWindow = new CaptureWindow(framePool);
+        this.windowSetTracker = new WindowSetTracker(windowRefreshInterval);
+    }
+
+    public WindowFrameSource(int processID) {
+        this();
+        setProcessID(processID);
+    }
+
+    /**
+     * Set processID of windows, that needs to be captured.
+     * @param processID - processID
+     */
+    public void setProcessID(int processID) {
+        windowSetTracker.setProcessID(processID);
+    }
+
+    public int getProcessID() {
+        return windowSetTracker.getProcessID();
+    }
+
+    /**
+     * Sets the number of windows, that are captured at the same time.
+     */
+    public void setCaptureThreads(int captureThreads) {
+        captureWindow.setParallelism(captureThreads);
+    }
+
+    /**
+     * Captures and enumerates the windows on threads, that are shared with
+     * other recordings, instead of threads of the source.
+     *
+     * @param captureExecutor - captures the windows in parallel, null for workers of the source
+     * @param timer - schedules the enumerations of the windows, null for a thread of the source
+     * @param executor - enumerates the windows
+     */
+    public void setExecutors(ExecutorService captureExecutor, ScheduledExecutorService timer, Executor executor) {
+        captureWindow.setExecutor(captureExecutor);
+        windowSetTracker.setExecutors(timer, executor);
+    }
+
+    /**
+     * Returns the duration of the last capture of every captured window in nanoseconds.
+     */
+    public Map<HWND, Long> getWindowCaptureTimes() {
+        return captureWindow.getWindowCaptureTimes();
+    }
+
+    /**
+     * Returns the histogram of the capture durations of single windows.
+     */
+    public LatencyHistogram getWindowCaptureLatency() {
+        return captureWindow.getWindowCaptureLatency();
+    }
+
+    public BufferedImage capture() {
+        return captureWindow.capture(windowSetTracker.getWindows());
+    }
+
+    public void release(BufferedImage image) {
+        captureWindow.release(image);
+    }
+
+    public void close() {
+        windowSetTracker.close();
+        captureWindow.close();
+    }
+}
@@ -0,0 +1,73 @@
+package recorder;
+
+import org.junit.Test;
+import org.monte.media.Buffer;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the allocations and releases of {@link AudioChunkPool}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class AudioChunkPoolTest {
+
+    @Test
+    public void settlesAfterLargerChunk() {
+        AudioChunkPool pool = new AudioChunkPool();
+        ArrayDeque<Buffer> queued = new ArrayDeque<Buffer>();
+        Random random = new Random(1);
+        long allocationsAfterSpike = 0;
+        for (int i = 0; i < 100000; i++) {
+            // Chunks vary by a few bytes, one chunk is much larger
+            int size = i == 5000 ? 20000 : 4400 + random.nextInt(20);
+            Buffer buf = pool.acquire(size);
+            assertTrue(((byte[]) buf.data).length >= size);
+            queued.add(buf);
+            if (queued.size() > 4) {
+                pool.release(queued.poll());
+            }
+            if (i == 6000) {
+                allocationsAfterSpike = pool.getAllocations();
+            }
+        }
+        assertEquals(allocationsAfterSpike, pool.getAllocations());
+        assertTrue(pool.getAllocations() <= 2 * AudioChunkPool.DEFAULT_MAX_POOLED_CHUNKS);
+    }
+
+    @Test
+    public void ignoresForeignAndDuplicateReleases() {
+        AudioChunkPool pool = new AudioChunkPool(2);
+        Buffer foreign = new Buffer();
+        foreign.data = new byte[100];
+        pool.release(foreign);
+        assertEquals(0, pool.getPooledChunks());
+
+        Buffer buf = pool.acquire(100);
+        pool.release(buf);
+        pool.release(buf);
+        assertEquals(1, pool.getPooledChunks());
+        assertEquals(1, pool.getReleases());
+        assertSame(buf, pool.acquire(100));
+        assertNotSame(buf, pool.acquire(100));
+    }
+
+    @Test
+    public void countsOnlyAcceptedReleases() {
+        AudioChunkPool pool = new AudioChunkPool(1);
+        Buffer a = pool.acquire(10);
+        Buffer b = pool.acquire(10);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getPooledChunks());
+        assertEquals(1, pool.getReleases());
+        // A dropped buffer can be released again later
+        assertSame(a, pool.acquire(10));
+        pool.release(b);
+        assertEquals(2, pool.getReleases());
+    }
+}
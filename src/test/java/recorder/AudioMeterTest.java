@@ -0,0 +1,73 @@
+package recorder;
+
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the unrolled 16-bit loops of {@link AudioMeter} with a simple
+ * loop over the samples.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class AudioMeterTest {
+
+    @Test
+    public void measures16BitLikeReference() {
+        Random random = new Random(3);
+        for (int channels = 1; channels <= 2; channels++) {
+            for (int order = 0; order < 2; order++) {
+                for (int encoding = 0; encoding < 2; encoding++) {
+                    boolean bigEndian = order == 1;
+                    boolean signed = encoding == 0;
+                    AudioFormat format = new AudioFormat(signed ? AudioFormat.Encoding.PCM_SIGNED
+                            : AudioFormat.Encoding.PCM_UNSIGNED, 8000, 16, channels, 2 * channels, 8000, bigEndian);
+                    // Lengths around the four samples of an iteration
+                    for (int frames = 0; frames < 13; frames++) {
+                        byte[] data = new byte[3 + frames * 2 * channels];
+                        random.nextBytes(data);
+                        if (frames == 5) {
+                            // The lowest sample, its square fills an int
+                            data[3 + (bigEndian ? 0 : 1)] = (byte) (signed ? 0x80 : 0);
+                            data[3 + (bigEndian ? 1 : 0)] = 0;
+                        }
+                        float[] levels = new float[2];
+                        AudioMeter.measure(data, 3, data.length - 3, format, levels);
+                        long[] sums = new long[channels];
+                        for (int i = 0; i < frames * channels; i++) {
+                            int hi = data[3 + 2 * i + (bigEndian ? 0 : 1)];
+                            int lo = data[3 + 2 * i + (bigEndian ? 1 : 0)] & 0xff;
+                            int v = (signed ? hi : (byte) (hi ^ 0x80)) << 8 | lo;
+                            sums[i % channels] += (long) v * v;
+                        }
+                        for (int c = 0; c < channels; c++) {
+                            float level = frames == 0 ? 0 : (float) (Math.sqrt((double) sums[c] / frames) / 32768);
+                            assertEquals(format + " " + frames, level, levels[c], 0f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void publishesPeaksOfEachChannel() {
+        AudioFormat format = new AudioFormat(1000, 16, 2, true, false);
+        // A window of 10 frames
+        AudioMeter meter = new AudioMeter(format, 10, 0);
+        byte[] data = new byte[10 * 4];
+        data[7] = 0x40;
+        data[36] = (byte) 0xff;
+        data[37] = (byte) 0xdf;
+        meter.process(data, 0, 17);
+        assertEquals(0, meter.getWindowCount());
+        meter.process(data, 17, data.length - 17);
+        assertEquals(1, meter.getWindowCount());
+        assertEquals(0x4000 / 32768f, meter.getPeak(1), 0f);
+        assertEquals(0x2001 / 32768f, meter.getPeak(0), 0f);
+    }
+}
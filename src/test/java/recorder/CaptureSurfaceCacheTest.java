@@ -0,0 +1,142 @@
+package recorder;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.WinDef.HWND;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link CaptureSurfaceCache} with fake window surfaces.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class CaptureSurfaceCacheTest {
+
+    /**
+     * Surface, that fills the pixels with a counter of its copies.
+     */
+    private static class FakeSurface implements WindowSurface {
+        final HWND hWnd;
+        final int width;
+        final int height;
+        int copies;
+        boolean disposed;
+        boolean failing;
+
+        FakeSurface(HWND hWnd, int width, int height) {
+            this.hWnd = hWnd;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean copyTo(int[] pixels) {
+            assertFalse("copy from a disposed surface", disposed);
+            assertEquals(width * height, pixels.length);
+            if (failing) {
+                return false;
+            }
+            copies++;
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = copies;
+            }
+            return true;
+        }
+
+        public void dispose() {
+            assertFalse("surface disposed twice", disposed);
+            disposed = true;
+        }
+    }
+
+    private final List<FakeSurface> created = new ArrayList<FakeSurface>();
+    private final HWND window1 = new HWND(new Pointer(1));
+    private final HWND window2 = new HWND(new Pointer(2));
+    private final HWND window3 = new HWND(new Pointer(3));
+    private HWND refused;
+    private CaptureSurfaceCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new CaptureSurfaceCache(new WindowSurface.Factory() {
+            public WindowSurface create(HWND hWnd, int width, int height) {
+                if (hWnd.equals(refused)) {
+                    throw new IllegalStateException("Can't create surface");
+                }
+                FakeSurface surface = new FakeSurface(hWnd, width, height);
+                created.add(surface);
+                return surface;
+            }
+        });
+    }
+
+    @Test
+    public void reusesSurfaceAndImage() {
+        BufferedImage first = cache.capture(window1, 4, 3);
+        BufferedImage second = cache.capture(window1, 4, 3);
+        assertSame(first, second);
+        assertEquals(1, created.size());
+        assertEquals(2, created.get(0).copies);
+        assertEquals(2, second.getRGB(3, 2) & 0xffffff);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getCaptureLatency().getCount());
+        assertTrue(cache.getCaptureTimes().containsKey(window1));
+    }
+
+    @Test
+    public void replacesSurfaceOnResize() {
+        BufferedImage small = cache.capture(window1, 4, 3);
+        BufferedImage large = cache.capture(window1, 8, 6);
+        assertNotSame(small, large);
+        assertEquals(8, large.getWidth());
+        assertEquals(6, large.getHeight());
+        assertEquals(2, created.size());
+        assertTrue(created.get(0).disposed);
+        assertFalse(created.get(1).disposed);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void retainDisposesOtherWindows() {
+        cache.capture(window1, 4, 3);
+        cache.capture(window2, 5, 3);
+        cache.capture(window3, 6, 3);
+        cache.retain(new HWND[]{window2});
+        assertEquals(1, cache.size());
+        assertTrue(created.get(0).disposed);
+        assertFalse(created.get(1).disposed);
+        assertTrue(created.get(2).disposed);
+        // The retained window keeps its surface
+        cache.capture(window2, 5, 3);
+        assertEquals(3, created.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(created.get(1).disposed);
+    }
+
+    @Test
+    public void dropsSurfaceThatFailsToCopy() {
+        cache.capture(window1, 4, 3);
+        created.get(0).failing = true;
+        assertNull(cache.capture(window1, 4, 3));
+        assertTrue(created.get(0).disposed);
+        assertEquals(0, cache.size());
+        // The next capture creates a new surface
+        assertNotNull(cache.capture(window1, 4, 3));
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void returnsNullIfSurfaceCantBeCreated() {
+        refused = window1;
+        assertNull(cache.capture(window1, 4, 3));
+        assertEquals(0, cache.size());
+    }
+}
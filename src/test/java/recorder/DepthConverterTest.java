@@ -0,0 +1,150 @@
+package recorder;
+
+import org.junit.Test;
+import org.monte.media.color.Colors;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Converts small frames with {@link DepthConverter} on one thread and in
+ * bands and compares every pixel with a loop of the test, that searches the
+ * palette.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class DepthConverterTest {
+
+    @Test
+    public void convertsToPaletteLikeReference() {
+        IndexColorModel colors = Colors.createMacColors();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            // 200 rows are three bands of the pool
+            for (int[] size : new int[][]{{1, 1}, {7, 5}, {33, 200}, {65, 131}}) {
+                convertAndCompare(colors, pool, size[0], size[1]);
+                convertAndCompare(colors, null, size[0], size[1]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void convertsToGrayLikeReference() {
+        IndexColorModel colors = DepthConverter.createGrayColors();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (int[] size : new int[][]{{1, 1}, {9, 3}, {17, 200}}) {
+                convertAndCompare(colors, pool, size[0], size[1]);
+                convertAndCompare(colors, null, size[0], size[1]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsColorsOfPalette() {
+        IndexColorModel colors = Colors.createMacColors();
+        int[] palette = new int[colors.getMapSize()];
+        colors.getRGBs(palette);
+        BufferedImage source = new BufferedImage(palette.length, 1, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < palette.length; i++) {
+            source.setRGB(i, 0, palette[i]);
+        }
+        BufferedImage target = new BufferedImage(palette.length, 1, BufferedImage.TYPE_BYTE_INDEXED, colors);
+        assertTrue(DepthConverter.create(target, null).convert(source, target));
+        for (int i = 0; i < palette.length; i++) {
+            // The cell of the inverse palette rounds each channel to 6 bits
+            int converted = target.getRGB(i, 0);
+            for (int shift = 0; shift < 24; shift += 8) {
+                assertTrue("color " + Integer.toHexString(palette[i]) + " became "
+                                + Integer.toHexString(converted),
+                        Math.abs(((palette[i] >> shift) & 0xff) - ((converted >> shift) & 0xff)) <= 4);
+            }
+        }
+    }
+
+    @Test
+    public void leavesUncoveredPixels() {
+        IndexColorModel colors = DepthConverter.createGrayColors();
+        BufferedImage source = new BufferedImage(5, 4, BufferedImage.TYPE_INT_RGB);
+        BufferedImage target = new BufferedImage(7, 6, BufferedImage.TYPE_BYTE_INDEXED, colors);
+        byte[] pixels = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, (byte) 0x55);
+        assertTrue(DepthConverter.create(target, null).convert(source, target));
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 7; x++) {
+                assertEquals(x < 5 && y < 4 ? 0 : 0x55, pixels[y * 7 + x] & 0xff);
+            }
+        }
+        // Not an 8 bit image
+        assertNull(DepthConverter.create(source, null));
+        assertFalse(DepthConverter.create(target, null).convert(
+                new BufferedImage(5, 4, BufferedImage.TYPE_3BYTE_BGR), target));
+    }
+
+    private static void convertAndCompare(IndexColorModel colors, ForkJoinPool pool, int width, int height) {
+        Random random = new Random(width * 31 + height);
+        // Subimages, so that the rasters start inside of their data buffers
+        BufferedImage source = new BufferedImage(width + 3, height + 2, BufferedImage.TYPE_INT_RGB)
+                .getSubimage(2, 1, width, height);
+        BufferedImage target = new BufferedImage(width + 4, height + 1, BufferedImage.TYPE_BYTE_INDEXED, colors)
+                .getSubimage(1, 1, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source.setRGB(x, y, random.nextInt());
+            }
+        }
+        DepthConverter converter = DepthConverter.create(target, pool);
+        assertNotNull(converter);
+        assertTrue(converter.convert(source, target));
+        int[] palette = new int[colors.getMapSize()];
+        colors.getRGBs(palette);
+        boolean gray = colors.getMapSize() == 256 && palette[255] == 0xffffffff && palette[128] == 0xff808080;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = source.getRGB(x, y);
+                int index = target.getRaster().getSample(x, y, 0);
+                if (gray) {
+                    double luma = 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+                    assertEquals("gray of " + Integer.toHexString(rgb) + " at " + x + "," + y, luma, index, 1.0);
+                } else {
+                    assertEquals("entry of " + Integer.toHexString(rgb) + " at " + x + "," + y,
+                            nearest(palette, rgb), index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the palette entry, that is nearest to the center of the cell
+     * of the 6 bit color.
+     */
+    private static int nearest(int[] palette, int rgb) {
+        int red = (rgb >> 16 & 0xfc) + 2;
+        int green = (rgb >> 8 & 0xfc) + 2;
+        int blue = (rgb & 0xfc) + 2;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int dr = red - ((palette[i] >> 16) & 0xff);
+            int dg = green - ((palette[i] >> 8) & 0xff);
+            int db = blue - (palette[i] & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,182 @@
+package recorder;
+
+import org.junit.Test;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Scales small images of odd sizes with {@link FastScaleImageCodec} and
+ * compares every pixel with a scaler of the test, that computes the
+ * bilinear and the area averaged pixels in floating point.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FastScaleImageCodecTest {
+    /**
+     * Largest difference of a color component to the reference, the fixed
+     * point weights round twice.
+     */
+    private static final int TOLERANCE = 1;
+
+    @Test
+    public void scalesLikeReference() {
+        int[][] sizes = {{13, 7, 5, 3}, {7, 5, 11, 9}, {1, 1, 3, 2}, {17, 9, 17, 9}, {9, 13, 4, 13},
+                {5, 3, 1, 1}, {31, 29, 3, 2}};
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (ScaleQuality quality : ScaleQuality.values()) {
+                for (int[] size : sizes) {
+                    scaleAndCompare(quality, pool, size[0], size[1], size[2], size[3], false);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void scalesBandsAndSubimages() {
+        // The rows are split into bands of at least 32 rows
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (ScaleQuality quality : ScaleQuality.values()) {
+                scaleAndCompare(quality, pool, 31, 130, 17, 97, false);
+                scaleAndCompare(quality, pool, 45, 67, 23, 101, true);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void clearsHeaderOfSourceRegions() {
+        FastScaleImageCodec codec = createCodec(ScaleQuality.SPEED, ForkJoinPool.commonPool(), 8, 6);
+        Buffer in = new Buffer();
+        in.data = new BufferedImage(16, 12, BufferedImage.TYPE_INT_RGB);
+        in.header = new FrameDiffer(16, 12, 4).createDirtyTiles();
+        in.setFlag(BufferFlag.KEYFRAME);
+        // A reused output buffer still has the header of an earlier frame
+        Buffer out = new Buffer();
+        out.header = in.header;
+        assertEquals(Codec.CODEC_OK, codec.process(in, out));
+        assertNull(out.header);
+        assertTrue(out.isFlag(BufferFlag.KEYFRAME));
+    }
+
+    private static FastScaleImageCodec createCodec(ScaleQuality quality, ForkJoinPool pool, int width, int height) {
+        FastScaleImageCodec codec = new FastScaleImageCodec(quality, pool);
+        assertNotNull(codec.setInputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE)));
+        assertNotNull(codec.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, width, HeightKey, height)));
+        return codec;
+    }
+
+    private static void scaleAndCompare(ScaleQuality quality, ForkJoinPool pool, int srcWidth, int srcHeight,
+                                        int width, int height, boolean subimage) {
+        Random random = new Random(srcWidth * 31 + srcHeight);
+        BufferedImage image;
+        if (subimage) {
+            // The raster of a subimage starts inside of a larger data buffer
+            image = new BufferedImage(srcWidth + 5, srcHeight + 3, BufferedImage.TYPE_INT_RGB)
+                    .getSubimage(3, 2, srcWidth, srcHeight);
+        } else {
+            image = new BufferedImage(srcWidth, srcHeight, BufferedImage.TYPE_INT_RGB);
+        }
+        for (int y = 0; y < srcHeight; y++) {
+            for (int x = 0; x < srcWidth; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        FastScaleImageCodec codec = createCodec(quality, pool, width, height);
+        // The second frame reuses the filters and the image
+        for (int frame = 0; frame < 2; frame++) {
+            Buffer in = new Buffer();
+            in.data = image;
+            Buffer out = new Buffer();
+            assertEquals(Codec.CODEC_OK, codec.process(in, out));
+            BufferedImage scaled = (BufferedImage) out.data;
+            assertEquals(width, scaled.getWidth());
+            assertEquals(height, scaled.getHeight());
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int expected = quality == ScaleQuality.SPEED
+                            ? bilinear(image, x, y, width, height) : average(image, x, y, width, height);
+                    int actual = scaled.getRGB(x, y);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int e = (expected >> shift) & 0xff;
+                        int a = (actual >> shift) & 0xff;
+                        if (Math.abs(e - a) > TOLERANCE) {
+                            fail(quality + " " + srcWidth + "x" + srcHeight + " to " + width + "x" + height
+                                    + " at " + x + "," + y + ": expected " + Integer.toHexString(expected)
+                                    + " but was " + Integer.toHexString(actual));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interpolates between the four source pixels around the center of the
+     * scaled pixel, the edge pixels are repeated.
+     */
+    private static int bilinear(BufferedImage image, int x, int y, int width, int height) {
+        double cx = Math.max(0, Math.min(image.getWidth() - 1, (x + 0.5) * image.getWidth() / width - 0.5));
+        double cy = Math.max(0, Math.min(image.getHeight() - 1, (y + 0.5) * image.getHeight() / height - 0.5));
+        int x0 = (int) cx;
+        int y0 = (int) cy;
+        int x1 = Math.min(x0 + 1, image.getWidth() - 1);
+        int y1 = Math.min(y0 + 1, image.getHeight() - 1);
+        double fx = cx - x0;
+        double fy = cy - y0;
+        double[] rgb = new double[3];
+        add(rgb, image.getRGB(x0, y0), (1 - fx) * (1 - fy));
+        add(rgb, image.getRGB(x1, y0), fx * (1 - fy));
+        add(rgb, image.getRGB(x0, y1), (1 - fx) * fy);
+        add(rgb, image.getRGB(x1, y1), fx * fy);
+        return toRGB(rgb);
+    }
+
+    /**
+     * Averages the source pixels, that the scaled pixel covers, weighted by
+     * the covered area.
+     */
+    private static int average(BufferedImage image, int x, int y, int width, int height) {
+        double sx = (double) image.getWidth() / width;
+        double sy = (double) image.getHeight() / height;
+        double left = x * sx;
+        double right = (x + 1) * sx;
+        double top = y * sy;
+        double bottom = (y + 1) * sy;
+        double[] rgb = new double[3];
+        for (int j = (int) top; j < Math.min(image.getHeight(), Math.ceil(bottom)); j++) {
+            double h = Math.min(bottom, j + 1) - Math.max(top, j);
+            for (int i = (int) left; i < Math.min(image.getWidth(), Math.ceil(right)); i++) {
+                double w = Math.min(right, i + 1) - Math.max(left, i);
+                add(rgb, image.getRGB(i, j), w * h / (sx * sy));
+            }
+        }
+        return toRGB(rgb);
+    }
+
+    private static void add(double[] rgb, int pixel, double weight) {
+        rgb[0] += ((pixel >> 16) & 0xff) * weight;
+        rgb[1] += ((pixel >> 8) & 0xff) * weight;
+        rgb[2] += (pixel & 0xff) * weight;
+    }
+
+    private static int toRGB(double[] rgb) {
+        return (int) Math.round(rgb[0]) << 16 | (int) Math.round(rgb[1]) << 8 | (int) Math.round(rgb[2]);
+    }
+}
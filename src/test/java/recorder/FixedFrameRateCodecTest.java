@@ -0,0 +1,195 @@
+package recorder;
+
+import org.junit.Test;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Sends frames with the change detection of the grabber through a
+ * {@link FixedFrameRateCodec} and a {@link ParallelTechSmithCodec}, and
+ * decodes the encoded frames.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FixedFrameRateCodecTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int TILE_SIZE = 16;
+
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+    private final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    private final int[] decoded = new int[WIDTH * HEIGHT];
+    private final FrameDiffer differ = new FrameDiffer(WIDTH, HEIGHT, TILE_SIZE);
+    private final DirtyTiles tiles = differ.createDirtyTiles();
+    private FixedFrameRateCodec codec;
+    private long sequenceNumber;
+
+    @Test
+    public void encodesChangeOfDiscardedFrame() throws Exception {
+        try {
+            codec = createCodec();
+            // 10 frames per second, slot 0 is [0,100) ms
+            assertEncoded(frame(0, 50));
+            pixels[20 * WIDTH + 40] = 0xff0000;
+            // The frame ends before slot 1 and is discarded
+            Buffer in = frame(50, 30);
+            assertFalse(in.isFlag(BufferFlag.SAME_DATA));
+            assertTrue(encode(in).isFlag(BufferFlag.DISCARD));
+            // The same image again, the differ sees no change
+            in = frame(80, 40);
+            assertTrue(in.isFlag(BufferFlag.SAME_DATA));
+            assertEncoded(in);
+            assertFalse(in.isFlag(BufferFlag.SAME_DATA));
+            DirtyTiles dirty = (DirtyTiles) in.header;
+            assertEquals(1, dirty.getDirtyCount());
+            assertTrue(dirty.isDirty(40 / TILE_SIZE, 20 / TILE_SIZE));
+            assertEquals(1, codec.getDiscardedFrameCount());
+
+            // Unchanged frames stay unchanged
+            in = frame(120, 100);
+            assertTrue(in.isFlag(BufferFlag.SAME_DATA));
+            Buffer out = assertEncoded(in);
+            assertEquals(2, out.length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void mergesTilesOfDiscardedFrames() throws Exception {
+        try {
+            codec = createCodec();
+            assertEncoded(frame(0, 50));
+            pixels[0] = 0x00ff00;
+            assertTrue(encode(frame(50, 10)).isFlag(BufferFlag.DISCARD));
+            pixels[WIDTH * HEIGHT - 1] = 0x0000ff;
+            assertTrue(encode(frame(60, 10)).isFlag(BufferFlag.DISCARD));
+            // An unchanged frame in between is discarded as well
+            assertTrue(encode(frame(70, 10)).isFlag(BufferFlag.DISCARD));
+            pixels[20 * WIDTH + 20] = 0xffffff;
+            Buffer in = frame(80, 40);
+            assertEncoded(in);
+            DirtyTiles dirty = (DirtyTiles) in.header;
+            assertEquals(3, dirty.getDirtyCount());
+            assertTrue(dirty.isDirty(0, 0));
+            assertTrue(dirty.isDirty(1, 1));
+            assertTrue(dirty.isDirty((WIDTH - 1) / TILE_SIZE, (HEIGHT - 1) / TILE_SIZE));
+
+            // The tiles of a discarded frame without tiles are not known
+            pixels[WIDTH + 1] = 0x123456;
+            in = frame(120, 10);
+            in.header = null;
+            assertTrue(encode(in).isFlag(BufferFlag.DISCARD));
+            in = frame(130, 100);
+            assertTrue(in.isFlag(BufferFlag.SAME_DATA));
+            assertEncoded(in);
+            assertNull(in.header);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void setsTimeOfSlots() throws Exception {
+        try {
+            codec = createCodec();
+            // The frame covers the slots 0 to 2
+            TimedBuffer in = frame(0, 250);
+            TimedBuffer out = encode(in);
+            assertEquals(0, out.time);
+            assertEquals(100000000, out.duration);
+            assertNull(out.timeStamp);
+            assertEquals(new Rational(1, 10), out.sampleDuration);
+            out.setMediaTime();
+            assertEquals(new Rational(0, 1), out.timeStamp);
+            assertEquals(new Rational(1, 10), out.sampleDuration);
+            // The repeats of the slots 1 and 2
+            out = encode(in);
+            assertEquals(2, out.sampleCount);
+            assertEquals(100000000, out.time);
+            assertEquals(200000000, out.duration);
+            out.setMediaTime();
+            assertEquals(new Rational(1, 10), out.timeStamp);
+
+            // Buffers without the time in nanoseconds get the time of the slot
+            Buffer plain = new Buffer();
+            plain.format = codec.getInputFormat();
+            plain.data = image;
+            plain.timeStamp = new Rational(250, 1000);
+            plain.sampleDuration = new Rational(100, 1000);
+            Buffer encoded = new Buffer();
+            assertEquals(Codec.CODEC_OK, codec.process(plain, encoded));
+            assertEquals(new Rational(3, 10), encoded.timeStamp);
+            assertEquals(new Rational(1, 10), encoded.sampleDuration);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private FixedFrameRateCodec createCodec() {
+        Format in = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, WIDTH, HeightKey, HEIGHT, DepthKey, 24,
+                FrameRateKey, new Rational(10, 1), FixedFrameRateKey, true);
+        Format out = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE,
+                CompressorNameKey, COMPRESSOR_NAME_AVI_TECHSMITH_SCREEN_CAPTURE,
+                WidthKey, WIDTH, HeightKey, HEIGHT, DepthKey, 24, FrameRateKey, new Rational(10, 1),
+                KeyFrameIntervalKey, 100, DataClassKey, byte[].class, FixedFrameRateKey, true);
+        FixedFrameRateCodec codec = new FixedFrameRateCodec(new ParallelTechSmithCodec(pool),
+                new Rational(10, 1), 0);
+        assertNotNull(codec.setInputFormat(in));
+        assertNotNull(codec.setOutputFormat(out));
+        return codec;
+    }
+
+    /**
+     * Creates a buffer of the image like the grabber does.
+     *
+     * @param time - capture time in milliseconds
+     * @param duration - time in milliseconds until the next capture
+     */
+    private TimedBuffer frame(long time, long duration) {
+        TimedBuffer buf = new TimedBuffer();
+        buf.format = codec.getInputFormat();
+        buf.data = image;
+        buf.time = TimeUnit.MILLISECONDS.toNanos(time);
+        buf.duration = TimeUnit.MILLISECONDS.toNanos(duration);
+        buf.sequenceNumber = sequenceNumber++;
+        buf.header = differ.compare(image, tiles);
+        if (tiles.isEmpty()) {
+            buf.setFlag(BufferFlag.SAME_DATA);
+        }
+        return buf;
+    }
+
+    private TimedBuffer encode(Buffer in) {
+        TimedBuffer out = new TimedBuffer();
+        assertEquals(Codec.CODEC_OK, codec.process(in, out) & ~Codec.CODEC_INPUT_NOT_CONSUMED);
+        return out;
+    }
+
+    /**
+     * Encodes a frame, that covers a slot, and checks, that it decodes to
+     * the image.
+     */
+    private TimedBuffer assertEncoded(Buffer in) throws Exception {
+        TimedBuffer out = encode(in);
+        assertFalse(out.isFlag(BufferFlag.DISCARD));
+        ParallelTechSmithCodecTest.decode((byte[]) out.data, out.offset, out.length, decoded, WIDTH, HEIGHT);
+        assertArrayEquals(pixels, decoded);
+        return out;
+    }
+}
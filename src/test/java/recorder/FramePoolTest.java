@@ -0,0 +1,55 @@
+package recorder;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks reuse, eviction and double releases of {@link FramePool}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FramePoolTest {
+
+    @Test
+    public void reusesReleasedImages() {
+        FramePool pool = new FramePool();
+        BufferedImage image = pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB);
+        pool.release(image);
+        assertSame(image, pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB));
+        assertNotSame(image, pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB));
+        assertNotSame(image, pool.acquire(16, 8, BufferedImage.TYPE_USHORT_555_RGB));
+        assertEquals(1, pool.getHits());
+        assertEquals(3, pool.getMisses());
+    }
+
+    @Test
+    public void ignoresSecondRelease() {
+        FramePool pool = new FramePool();
+        BufferedImage image = pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB);
+        pool.release(image);
+        pool.release(image);
+        assertEquals(16 * 8 * 4, pool.getPooledBytes());
+        assertSame(image, pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB));
+        assertNotSame(image, pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSize() {
+        FramePool pool = new FramePool(2 * 16 * 8 * 4);
+        BufferedImage small = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+        BufferedImage other = new BufferedImage(8, 16, BufferedImage.TYPE_INT_RGB);
+        BufferedImage third = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+        pool.release(small);
+        pool.release(other);
+        pool.release(third);
+        assertEquals(1, pool.getEvictions());
+        assertNotSame(small, pool.acquire(16, 8, BufferedImage.TYPE_INT_RGB));
+        // The evicted image can be released again
+        pool.release(small);
+        assertEquals(2 * 16 * 8 * 4, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,293 @@
+package recorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+import org.monte.media.MovieWriter;
+import org.monte.media.math.Rational;
+import recorder.io.SeekIndex;
+import recorder.params.DefaultRecorderParams;
+import recorder.params.RecorderParams;
+import recorder.source.SyntheticFrameSource;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adds samples to a {@link FrameRing} with a buffer of a few bytes, so that
+ * the data wraps around, and dumps the ring of a recorder in ring mode.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class FrameRingTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long ONE_HOUR = 3600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int nextSample;
+
+    @Test
+    public void startsWithKeyFrame() {
+        FrameRing ring = new FrameRing(VIDEO, ONE_HOUR, 32);
+        assertTrue(ring.isKeyFrameDue());
+        ring.add(sample(VIDEO, 4, false));
+        ring.add(sample(AUDIO, 4, false));
+        assertEquals(0, ring.size());
+        assertEquals(2, ring.getDroppedSamples());
+        ring.add(sample(VIDEO, 4, true));
+        ring.add(sample(AUDIO, 4, false));
+        assertEquals(2, ring.size());
+        assertEquals(8, ring.getBytes());
+        assertFalse(ring.isKeyFrameDue());
+    }
+
+    @Test
+    public void wrapsAroundAndDropsOldestInterval() {
+        FrameRing ring = new FrameRing(VIDEO, ONE_HOUR, 32);
+        List<Buffer> added = new ArrayList<Buffer>();
+        added.add(add(ring, VIDEO, 8, true));
+        added.add(add(ring, VIDEO, 8, false));
+        added.add(add(ring, VIDEO, 8, true));
+        added.add(add(ring, AUDIO, 8, false));
+        assertEquals(4, ring.size());
+        assertEquals(32, ring.getBytes());
+        // The buffer is full, the first interval is dropped and the data
+        // starts at the beginning of the buffer again
+        added.add(add(ring, VIDEO, 8, false));
+        assertEquals(3, ring.size());
+        assertEquals(24, ring.getBytes());
+        assertEquals(0, ring.getDroppedSamples());
+        assertSamples(added.subList(2, 5), ring.snapshot());
+
+        // The data doesn't wrap around the end of the buffer, 6 bytes after
+        // the 28 bytes of the first samples start at 32 again
+        FrameRing gap = new FrameRing(VIDEO, ONE_HOUR, 32);
+        added.clear();
+        added.add(add(gap, VIDEO, 12, true));
+        added.add(add(gap, VIDEO, 12, true));
+        added.add(add(gap, AUDIO, 4, false));
+        added.add(add(gap, VIDEO, 6, false));
+        assertEquals(3, gap.size());
+        assertEquals(26, gap.getBytes());
+        assertSamples(added.subList(1, 4), gap.snapshot());
+    }
+
+    @Test
+    public void dropsRingWithoutSecondKeyFrame() {
+        FrameRing ring = new FrameRing(VIDEO, ONE_HOUR, 16);
+        add(ring, VIDEO, 6, true);
+        add(ring, VIDEO, 6, false);
+        // A single interval doesn't fit, all of it is dropped
+        add(ring, VIDEO, 6, false);
+        assertEquals(0, ring.size());
+        assertEquals(3, ring.getDroppedSamples());
+        // A key frame starts the ring again
+        Buffer key = add(ring, VIDEO, 6, true);
+        assertEquals(1, ring.size());
+        assertSamples(Arrays.asList(key), ring.snapshot());
+        // A sample larger than the buffer is dropped
+        add(ring, VIDEO, 17, true);
+        assertEquals(1, ring.size());
+        assertEquals(4, ring.getDroppedSamples());
+    }
+
+    @Test
+    public void dropsIntervalsOlderThanDuration() throws InterruptedException {
+        FrameRing ring = new FrameRing(VIDEO, 20, 1024);
+        add(ring, VIDEO, 4, true);
+        add(ring, AUDIO, 4, false);
+        Thread.sleep(30);
+        assertTrue(ring.isKeyFrameDue());
+        // The first interval is not dropped before a newer key frame is too old
+        Buffer first = add(ring, VIDEO, 4, true);
+        assertEquals(3, ring.size());
+        Thread.sleep(30);
+        Buffer key = add(ring, VIDEO, 4, true);
+        assertEquals(2, ring.size());
+        assertEquals(0, ring.getDroppedSamples());
+        FrameRing.Snapshot snapshot = ring.snapshot();
+        assertTrue(snapshot.getDuration() >= 30);
+        assertSamples(Arrays.asList(first, key), snapshot);
+    }
+
+    @Test
+    public void snapshotIsCopy() throws IOException {
+        FrameRing ring = new FrameRing(VIDEO, ONE_HOUR, 16);
+        Buffer key = add(ring, VIDEO, 8, true);
+        Buffer audio = add(ring, AUDIO, 8, false);
+        FrameRing.Snapshot snapshot = ring.snapshot();
+        // The ring overwrites the data of the snapshot
+        add(ring, VIDEO, 8, true);
+        add(ring, VIDEO, 8, false);
+        assertSamples(Arrays.asList(key, audio), snapshot);
+        List<Buffer> buffers = getBuffers(snapshot);
+        // Audio samples are all key frames
+        assertTrue(buffers.get(1).isFlag(BufferFlag.KEYFRAME));
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getBytes());
+        assertTrue(ring.isKeyFrameDue());
+        assertEquals(0, ring.snapshot().size());
+    }
+
+    @Test
+    public void dumpsRingOfRecorder() throws Exception {
+        RecorderParams params = DefaultRecorderParams.getOnlyVideo()
+                .setMovieFolder(folder.newFolder("movies"))
+                .setCaptureArea(new Rectangle(0, 0, 64, 48))
+                .setFrameSource(new SyntheticFrameSource(64, 48))
+                .setRingDuration(1000)
+                .setRingBufferSize(1 << 20)
+                .setSeekIndex(true);
+        BrowserRecorder recorder = new BrowserRecorder(params);
+        try {
+            recorder.dump(folder.newFile("none.avi"));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected, the recorder has not been started
+        }
+        recorder.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (recorder.getFrameRing().size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertDumped(recorder, new File(folder.getRoot(), "live.avi"));
+        } finally {
+            recorder.stop();
+        }
+        // The ring can be dumped after the recording until the next start
+        assertDumped(recorder, new File(folder.getRoot(), "stopped.avi"));
+        assertEquals(0, params.getMovieFolder().list().length);
+    }
+
+    private static void assertDumped(BrowserRecorder recorder, File file) throws IOException {
+        int samples = recorder.dump(file);
+        assertTrue(samples > 0);
+        SeekIndex index = SeekIndex.open(file);
+        assertEquals(samples, index.size());
+        assertTrue(index.isKeyFrame(0));
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            assertEquals(index.getSize(samples - 1), index.readFrame(channel, samples - 1).length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Creates a sample, that is filled with its number.
+     */
+    private Buffer sample(int track, int length, boolean keyFrame) {
+        Buffer buf = new Buffer();
+        buf.track = track;
+        buf.data = new byte[length + 2];
+        buf.offset = 1;
+        buf.length = length;
+        buf.sampleCount = 1;
+        buf.format = new Format();
+        buf.sampleDuration = new Rational(1, 10);
+        Arrays.fill((byte[]) buf.data, (byte) ++nextSample);
+        if (keyFrame) {
+            buf.setFlag(BufferFlag.KEYFRAME);
+        }
+        return buf;
+    }
+
+    private Buffer add(FrameRing ring, int track, int length, boolean keyFrame) {
+        Buffer buf = sample(track, length, keyFrame);
+        ring.add(buf);
+        return buf;
+    }
+
+    private static void assertSamples(List<Buffer> expected, FrameRing.Snapshot snapshot) {
+        List<Buffer> buffers = getBuffers(snapshot);
+        assertEquals(expected.size(), buffers.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Buffer e = expected.get(i);
+            Buffer a = buffers.get(i);
+            assertEquals(e.track, a.track);
+            assertEquals(e.length, a.length);
+            assertSame(e.format, a.format);
+            assertEquals(e.isFlag(BufferFlag.KEYFRAME) || e.track != VIDEO, a.isFlag(BufferFlag.KEYFRAME));
+            assertArrayEquals("sample " + i,
+                    Arrays.copyOfRange((byte[]) e.data, e.offset, e.offset + e.length),
+                    Arrays.copyOfRange((byte[]) a.data, a.offset, a.offset + a.length));
+        }
+    }
+
+    /**
+     * Returns the samples of a snapshot in the order, that they are written.
+     */
+    private static List<Buffer> getBuffers(FrameRing.Snapshot snapshot) {
+        final List<Buffer> buffers = new ArrayList<Buffer>();
+        try {
+            snapshot.writeTo(new RecordingWriter(buffers));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return buffers;
+    }
+
+    /**
+     * Movie writer, that collects the written samples.
+     */
+    private static class RecordingWriter implements MovieWriter {
+        private final List<Buffer> buffers;
+
+        RecordingWriter(List<Buffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        public void write(int track, Buffer buf) {
+            assertEquals(buf.track, track);
+            buffers.add(buf);
+        }
+
+        public Format getFileFormat() {
+            return null;
+        }
+
+        public int addTrack(Format format) {
+            return 0;
+        }
+
+        public Format getFormat(int track) {
+            return null;
+        }
+
+        public int getTrackCount() {
+            return 2;
+        }
+
+        public void close() {
+        }
+
+        public boolean isDataLimitReached() {
+            return false;
+        }
+
+        public Rational getDuration(int track) {
+            return null;
+        }
+
+        public boolean isEmpty(int track) {
+            return buffers.isEmpty();
+        }
+    }
+}
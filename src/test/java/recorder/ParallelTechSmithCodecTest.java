@@ -0,0 +1,292 @@
+package recorder;
+
+import org.junit.Test;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Codec;
+import org.monte.media.Format;
+import org.monte.media.avi.TechSmithCodec;
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Encodes the same frames with {@link ParallelTechSmithCodec} and the
+ * single-threaded {@link TechSmithCodec} and checks, that both decode to
+ * the captured frames. The frames are decoded by a decoder of the test,
+ * that fails on any operation outside of the frame.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class ParallelTechSmithCodecTest {
+    private static final int KEY_FRAME_INTERVAL = 10;
+
+    @Test
+    public void encodesBandsLikeSingleThreadedCodec() throws Exception {
+        encodeAndCompare(640, 240, new ForkJoinPool(4), 32, 40);
+    }
+
+    @Test
+    public void encodesOddWidths() throws Exception {
+        encodeAndCompare(101, 77, new ForkJoinPool(3), 8, 30);
+        encodeAndCompare(257, 65, new ForkJoinPool(2), 32, 30);
+    }
+
+    @Test
+    public void encodesMoreThreadsThanLines() throws Exception {
+        // The bands are clamped to one line each
+        encodeAndCompare(33, 5, new ForkJoinPool(16), 1, 30);
+        encodeAndCompare(7, 1, new ForkJoinPool(16), 1, 12);
+    }
+
+    @Test
+    public void encodesLongSkips() throws Exception {
+        // Unchanged runs of more than 255 pixels and lines
+        int width = 700;
+        int height = 600;
+        Codec[] codecs = createCodecs(width, height, new ForkJoinPool(4), 32);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(7);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(4) * 0x404040;
+        }
+        int[][] decoded = {new int[width * height], new int[width * height]};
+        encodeFrame(codecs, image, false, decoded, 0);
+        pixels[3 * width + 650] = 0xff0000;
+        encodeFrame(codecs, image, false, decoded, 1);
+        pixels[(height - 2) * width + 2] = 0x00ff00;
+        pixels[(height / 2) * width + 400] = 0x0000ff;
+        encodeFrame(codecs, image, false, decoded, 2);
+    }
+
+    @Test
+    public void marksSameDataFrames() throws Exception {
+        int width = 64;
+        int height = 64;
+        Codec[] codecs = createCodecs(width, height, new ForkJoinPool(2), 16);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[][] decoded = {new int[width * height], new int[width * height]};
+        encodeFrame(codecs, image, false, decoded, 0);
+        Buffer out = encodeFrame(codecs, image, true, decoded, 1);
+        assertEquals(2, out.length);
+        // An unchanged frame without the flag is detected by the encoder
+        out = encodeFrame(codecs, image, false, decoded, 2);
+        assertEquals(2, out.length);
+    }
+
+    @Test
+    public void comparesSameDataFrameAfterSkippedFrame() throws Exception {
+        int width = 64;
+        int height = 64;
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Codec codec = createCodecs(width, height, pool, 16)[1];
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int[] decoded = new int[width * height];
+            encode(codec, image, 0, false, decoded);
+            // Frame 1 changes the image and is not encoded, frame 2 is the
+            // same as frame 1, but not as the encoded frame 0
+            pixels[10 * width + 20] = 0xff0000;
+            Buffer out = encode(codec, image, 2, true, decoded);
+            assertTrue(out.length > 2);
+            // Frame 3 is the same as the encoded frame 2
+            out = encode(codec, image, 3, true, decoded);
+            assertEquals(2, out.length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Encodes a frame with a sequence number and decodes it.
+     */
+    private static Buffer encode(Codec codec, BufferedImage image, long sequenceNumber, boolean sameData,
+                                 int[] decoded) throws DataFormatException {
+        Buffer in = new Buffer();
+        in.data = image;
+        in.format = codec.getInputFormat();
+        in.sampleDuration = new Rational(1, 15);
+        in.sequenceNumber = sequenceNumber;
+        if (sameData) {
+            in.setFlag(BufferFlag.SAME_DATA);
+        }
+        Buffer out = new Buffer();
+        assertEquals(Codec.CODEC_OK, codec.process(in, out));
+        decode((byte[]) out.data, out.offset, out.length, decoded, image.getWidth(), image.getHeight());
+        assertArrayEquals(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), decoded);
+        return out;
+    }
+
+    private static void encodeAndCompare(int width, int height, ForkJoinPool pool, int minBandHeight, int frames)
+            throws Exception {
+        try {
+            Codec[] codecs = createCodecs(width, height, pool, minBandHeight);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int[][] decoded = {new int[width * height], new int[width * height]};
+            Random random = new Random(width * 31 + height);
+            for (int frame = 0; frame < frames; frame++) {
+                boolean sameData = frame % 9 == 5;
+                if (!sameData) {
+                    change(pixels, width, height, random);
+                }
+                encodeFrame(codecs, image, sameData, decoded, frame);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Changes a few rectangles, a run of one color and some single pixels.
+     */
+    private static void change(int[] pixels, int width, int height, Random random) {
+        for (int n = random.nextInt(4); n > 0; n--) {
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = Math.min(width, x0 + 1 + random.nextInt(300));
+            int y1 = Math.min(height, y0 + 1 + random.nextInt(60));
+            boolean noise = random.nextBoolean();
+            int color = random.nextInt() & 0xffffff;
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    pixels[y * width + x] = noise ? random.nextInt(8) * 0x202020 : color;
+                }
+            }
+        }
+        for (int n = random.nextInt(20); n > 0; n--) {
+            pixels[random.nextInt(pixels.length)] = random.nextInt() & 0xffffff;
+        }
+    }
+
+    private static Codec[] createCodecs(int width, int height, ForkJoinPool pool, int minBandHeight) {
+        Format in = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, width, HeightKey, height, DepthKey, 24,
+                FrameRateKey, new Rational(15, 1), FixedFrameRateKey, true);
+        Format out = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE,
+                CompressorNameKey, COMPRESSOR_NAME_AVI_TECHSMITH_SCREEN_CAPTURE,
+                WidthKey, width, HeightKey, height, DepthKey, 24, FrameRateKey, new Rational(15, 1),
+                KeyFrameIntervalKey, KEY_FRAME_INTERVAL, DataClassKey, byte[].class, FixedFrameRateKey, true);
+        Codec[] codecs = {new TechSmithCodec(), new ParallelTechSmithCodec(pool, minBandHeight)};
+        for (Codec codec : codecs) {
+            assertNotNull(codec.setInputFormat(in));
+            assertNotNull(codec.setOutputFormat(out));
+        }
+        return codecs;
+    }
+
+    /**
+     * Encodes a frame with both codecs and decodes both results.
+     *
+     * @return the output of the parallel codec
+     */
+    private static Buffer encodeFrame(Codec[] codecs, BufferedImage image, boolean sameData, int[][] decoded,
+                                      int frame) throws DataFormatException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Buffer[] out = new Buffer[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            Buffer in = new Buffer();
+            in.data = image;
+            in.format = codecs[i].getInputFormat();
+            in.sampleDuration = new Rational(1, 15);
+            in.sequenceNumber = frame;
+            if (sameData) {
+                in.setFlag(BufferFlag.SAME_DATA);
+            }
+            out[i] = new Buffer();
+            assertEquals(Codec.CODEC_OK, codecs[i].process(in, out[i]));
+            assertFalse(out[i].isFlag(BufferFlag.DISCARD));
+            decode((byte[]) out[i].data, out[i].offset, out[i].length, decoded[i], width, height);
+            assertArrayEquals("frame " + frame + " of " + codecs[i].getName(), pixels, decoded[i]);
+        }
+        assertEquals("key frame " + frame, out[0].isFlag(BufferFlag.KEYFRAME), out[1].isFlag(BufferFlag.KEYFRAME));
+        assertEquals(frame % KEY_FRAME_INTERVAL == 0, out[1].isFlag(BufferFlag.KEYFRAME));
+        return out[1];
+    }
+
+    /**
+     * Decodes a TSCC frame of 24 bit pixels into the previous frame. The
+     * lines are stored from the bottom of the image to the top.
+     */
+    static void decode(byte[] data, int offset, int length, int[] frame, int width, int height)
+            throws DataFormatException {
+        if (length <= 2) {
+            // The frame is unchanged
+            return;
+        }
+        byte[] rle = inflate(data, offset, length);
+        int x = 0;
+        int y = 0;
+        int i = 0;
+        while (true) {
+            assertTrue("missing end of frame", i + 1 < rle.length);
+            int count = rle[i++] & 0xff;
+            int op = rle[i++] & 0xff;
+            if (count > 0) {
+                assertTrue("truncated run", i + 2 < rle.length);
+                int v = op | (rle[i++] & 0xff) << 8 | (rle[i++] & 0xff) << 16;
+                for (int n = 0; n < count; n++) {
+                    set(frame, width, height, x++, y, v);
+                }
+            } else if (op == 0) {
+                x = 0;
+                y++;
+            } else if (op == 1) {
+                assertEquals("data after the end of frame", rle.length, i);
+                return;
+            } else if (op == 2) {
+                x += rle[i++] & 0xff;
+                y += rle[i++] & 0xff;
+            } else {
+                for (int n = 0; n < op; n++) {
+                    int v = (rle[i++] & 0xff) | (rle[i++] & 0xff) << 8 | (rle[i++] & 0xff) << 16;
+                    set(frame, width, height, x++, y, v);
+                }
+            }
+        }
+    }
+
+    private static void set(int[] frame, int width, int height, int x, int y, int v) {
+        assertTrue("pixel outside of the frame: " + x + "," + y, x < width && y < height);
+        frame[(height - 1 - y) * width + x] = v;
+    }
+
+    /**
+     * Inflates a zlib stream, the inflater checks the Adler-32 checksum.
+     */
+    private static byte[] inflate(byte[] data, int offset, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(b);
+                if (n == 0 && inflater.needsInput()) {
+                    fail("truncated zlib stream");
+                }
+                out.write(b, 0, n);
+            }
+            assertEquals("data after the zlib stream", 0, inflater.getRemaining());
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
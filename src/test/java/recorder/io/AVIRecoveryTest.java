@@ -0,0 +1,264 @@
+package recorder.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.monte.media.Format;
+import org.monte.media.avi.AVIWriter;
+import org.monte.media.math.Rational;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.monte.media.AudioFormatKeys.*;
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Cuts a closed AVI file in the middle of the 'movi' list, clears its
+ * headers like in a file, that has never been closed, and recovers it with
+ * the header file of its tracks.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class AVIRecoveryTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    /**
+     * Track and size of the chunks in the order of the file.
+     */
+    private static final int[][] CHUNKS = {{VIDEO, 5}, {AUDIO, 8}, {VIDEO, 8}, {VIDEO, 3}, {AUDIO, 8},
+            {VIDEO, 10}, {AUDIO, 6}, {VIDEO, 7}};
+    /**
+     * Number of the chunks, that are written completely into the damaged
+     * file, the next chunk is cut.
+     */
+    private static final int COMPLETE_CHUNKS = 7;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    /**
+     * Bytes of an audio frame, 16 bit mono.
+     */
+    private static final int BLOCK_ALIGN = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversCompleteChunks() throws IOException {
+        File closed = folder.newFile("closed.avi");
+        writeMovie(closed, CHUNKS.length);
+        File template = folder.newFile("template.avi");
+        writeMovie(template, 0);
+        File damaged = new File(folder.getRoot(), "damaged.avi");
+        long dataStart = cut(closed, damaged);
+
+        File recovered = new File(folder.getRoot(), "recovered.avi");
+        assertEquals(COMPLETE_CHUNKS, AVIRecovery.recover(damaged, template, recovered));
+        assertRecovered(recovered, dataStart, Files.readAllBytes(closed.toPath()));
+    }
+
+    @Test
+    public void recoversFolderWithHeaderFiles() throws IOException {
+        File closed = folder.newFile("closed.avi");
+        writeMovie(closed, CHUNKS.length);
+        File movies = folder.newFolder("movies");
+        File damaged = new File(movies, "movie.avi");
+        long dataStart = cut(closed, damaged);
+        writeMovie(AVIRecovery.getHeaderFile(damaged), 0);
+        // A file, that was opened ahead of time and never written
+        File empty = new File(movies, "next.avi");
+        assertTrue(empty.createNewFile());
+        writeMovie(AVIRecovery.getHeaderFile(empty), 0);
+
+        List<File> recovered = AVIRecovery.recoverFolder(movies);
+        assertEquals(Arrays.asList(damaged), recovered);
+        assertRecovered(damaged, dataStart, Files.readAllBytes(closed.toPath()));
+        assertEquals(Arrays.asList("movie.avi"), Arrays.asList(movies.list()));
+    }
+
+    @Test
+    public void rejectsFileWithoutCompleteChunk() throws IOException {
+        File closed = folder.newFile("closed.avi");
+        writeMovie(closed, CHUNKS.length);
+        File template = folder.newFile("template.avi");
+        writeMovie(template, 0);
+        byte[] data = Files.readAllBytes(closed.toPath());
+        File damaged = new File(folder.getRoot(), "damaged.avi");
+        write(damaged, Arrays.copyOf(data, (int) findMoviData(ByteBuffer.wrap(data)) + 6));
+        try {
+            AVIRecovery.recover(damaged, template, new File(folder.getRoot(), "recovered.avi"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes an AVI file with a video and an audio track and the first
+     * chunks of {@link #CHUNKS}, or a sample per track for a header file.
+     */
+    private static void writeMovie(File file, int chunks) throws IOException {
+        AVIWriter writer = new AVIWriter(file);
+        try {
+            writer.addTrack(new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE,
+                    CompressorNameKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, WidthKey, 4, HeightKey, 4,
+                    DepthKey, 24, FrameRateKey, new Rational(10, 1)));
+            writer.addTrack(new Format(MediaTypeKey, MediaType.AUDIO, EncodingKey, ENCODING_PCM_SIGNED,
+                    FrameRateKey, new Rational(8000, 1), SampleRateKey, new Rational(8000, 1),
+                    SampleSizeInBitsKey, 16, ChannelsKey, 1, FrameSizeKey, BLOCK_ALIGN, SignedKey, true,
+                    ByteOrderKey, ByteOrder.LITTLE_ENDIAN));
+            if (chunks == 0) {
+                byte[] sample = new byte[1];
+                writer.writeSample(VIDEO, sample, 0, sample.length, true);
+                writer.writeSample(AUDIO, sample, 0, sample.length, true);
+            }
+            for (int i = 0; i < chunks; i++) {
+                byte[] data = chunkData(i);
+                writer.writeSample(CHUNKS[i][0], data, 0, data.length, true);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static byte[] chunkData(int chunk) {
+        byte[] data = new byte[CHUNKS[chunk][1]];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (chunk * 16 + i + 1);
+        }
+        return data;
+    }
+
+    /**
+     * Writes a copy of a closed file, that ends in the middle of the chunk
+     * after the complete chunks, and has zeros instead of the headers.
+     *
+     * @return the offset of the first chunk in the 'movi' list
+     */
+    private static long cut(File closed, File damaged) throws IOException {
+        byte[] data = Files.readAllBytes(closed.toPath());
+        ByteBuffer file = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int dataStart = (int) findMoviData(file);
+        int pos = dataStart;
+        for (int i = 0; i < COMPLETE_CHUNKS; i++) {
+            int size = file.getInt(pos + 4);
+            pos += 8 + size + (size & 1);
+        }
+        byte[] cut = Arrays.copyOf(data, pos + 8 + 3);
+        Arrays.fill(cut, 0, dataStart, (byte) 0);
+        write(damaged, cut);
+        return dataStart;
+    }
+
+    /**
+     * Returns the offset of the first chunk in the 'movi' list of a file.
+     */
+    private static long findMoviData(ByteBuffer file) {
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 12;
+        while (!"movi".equals(fourCC(file, pos + 8))) {
+            int size = file.getInt(pos + 4);
+            pos += 8 + size + (size & 1);
+        }
+        return pos + 12;
+    }
+
+    private static void assertRecovered(File recovered, long dataStart, byte[] closed) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(recovered.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", fourCC(file, 0));
+        assertEquals(file.limit() - 8, file.getInt(4));
+        assertEquals("AVI ", fourCC(file, 8));
+        // The chunks keep their offsets
+        assertEquals(dataStart, findMoviData(file));
+        int movi = (int) dataStart - 12;
+        int moviSize = file.getInt(movi + 4);
+        int idx1 = movi + 8 + moviSize;
+        assertEquals("idx1", fourCC(file, idx1));
+        assertEquals(idx1 + 8 + file.getInt(idx1 + 4), file.limit());
+        assertEquals(COMPLETE_CHUNKS * 16, file.getInt(idx1 + 4));
+
+        int videoFrames = 0;
+        int audioBytes = 0;
+        int largest = 0;
+        for (int i = 0; i < COMPLETE_CHUNKS; i++) {
+            int entry = idx1 + 8 + i * 16;
+            int track = CHUNKS[i][0];
+            int size = CHUNKS[i][1];
+            assertEquals(track == VIDEO ? "00dc" : "01wb", fourCC(file, entry));
+            // Only the first video frame is known to be a key frame
+            boolean keyFrame = track == AUDIO || videoFrames == 0;
+            assertEquals("flags of chunk " + i, keyFrame ? AVIIF_KEYFRAME : 0, file.getInt(entry + 4));
+            int offset = file.getInt(entry + 8);
+            assertEquals(size, file.getInt(entry + 12));
+            // The offset is relative to the 'movi' type of the list
+            int chunk = movi + 8 + offset;
+            assertEquals(fourCC(file, entry), fourCC(file, chunk));
+            assertEquals(size, file.getInt(chunk + 4));
+            byte[] data = new byte[size];
+            file.position(chunk + 8);
+            file.get(data);
+            assertArrayEquals("chunk " + i, chunkData(i), data);
+            assertArrayEquals(Arrays.copyOfRange(closed, chunk + 8, chunk + 8 + size), data);
+            if (track == VIDEO) {
+                videoFrames++;
+            } else {
+                audioBytes += size;
+            }
+            largest = Math.max(largest, size);
+        }
+
+        // The lengths of the streams and the frames of the file
+        int avih = findChunk(file, "avih");
+        assertEquals(videoFrames, file.getInt(avih + 16));
+        assertEquals(largest, file.getInt(avih + 28));
+        int videoHeader = findChunk(file, "strh");
+        int audioHeader = videoHeader + file.getInt(videoHeader - 4);
+        audioHeader = findChunk(file, audioHeader, "strh");
+        assertEquals("vids", fourCC(file, videoHeader));
+        assertEquals("auds", fourCC(file, audioHeader));
+        assertEquals(videoFrames, file.getInt(videoHeader + 32));
+        assertEquals(audioBytes / BLOCK_ALIGN, file.getInt(audioHeader + 32));
+        assertEquals(10, file.getInt(videoHeader + 36));
+    }
+
+    /**
+     * Returns the offset of the data of the first chunk with an id in the
+     * header list.
+     */
+    private static int findChunk(ByteBuffer file, String id) {
+        return findChunk(file, 12, id);
+    }
+
+    private static int findChunk(ByteBuffer file, int from, String id) {
+        for (int pos = from; pos + 4 <= file.limit(); pos++) {
+            if (id.equals(fourCC(file, pos))) {
+                return pos + 8;
+            }
+        }
+        throw new AssertionError("No chunk " + id);
+    }
+
+    private static String fourCC(ByteBuffer file, int pos) {
+        char[] c = new char[4];
+        for (int i = 0; i < 4; i++) {
+            c[i] = (char) (file.get(pos + i) & 0xff);
+        }
+        return new String(c);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
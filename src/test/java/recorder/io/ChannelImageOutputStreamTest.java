@@ -0,0 +1,128 @@
+package recorder.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes files through {@link ChannelImageOutputStream} with a shared
+ * {@link DirectBufferPool} and on a shared executor.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class ChannelImageOutputStreamTest {
+    private static final int BUFFER_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reusesBuffersAcrossFiles() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool();
+        for (int i = 0; i < 3; i++) {
+            File file = folder.newFile("segment" + i + ".avi");
+            byte[] data = new byte[5 * BUFFER_SIZE + 17];
+            Arrays.fill(data, (byte) i);
+            ChannelImageOutputStream out = new ChannelImageOutputStream(file, BUFFER_SIZE, SyncPolicy.NONE, 1000,
+                    null, pool, null);
+            out.write(data);
+            // Patch a size field in the first buffer, that has been handed over
+            out.seek(8);
+            out.writeInt(0x01020304);
+            out.close();
+
+            data[8] = 1;
+            data[9] = 2;
+            data[10] = 3;
+            data[11] = 4;
+            assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+            assertEquals(ChannelImageOutputStream.BUFFER_COUNT, pool.getPooledBuffers());
+        }
+        assertEquals(ChannelImageOutputStream.BUFFER_COUNT, pool.getAllocations());
+    }
+
+    @Test
+    public void writesOnSharedExecutor() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            writeAndCompare(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writesBuffersOfTasksThatDontStart() throws IOException {
+        // An executor, whose threads are all busy, never runs the tasks
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        writeAndCompare(new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        assertFalse(queued.isEmpty());
+        // A task, that starts after the stream has been closed, finds nothing to write
+        for (Runnable task : queued) {
+            task.run();
+        }
+    }
+
+    /**
+     * Writes more buffers, than the stream has, on an executor.
+     */
+    private void writeAndCompare(Executor executor) throws IOException {
+        DirectBufferPool pool = new DirectBufferPool();
+        File file = folder.newFile("movie.avi");
+        byte[] data = new byte[(ChannelImageOutputStream.BUFFER_COUNT * 3) * BUFFER_SIZE + 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / BUFFER_SIZE + i);
+        }
+        ChannelImageOutputStream out = new ChannelImageOutputStream(file, BUFFER_SIZE, SyncPolicy.PERIODIC, 1,
+                null, pool, null, executor);
+        for (int i = 0; i < data.length; i += 1000) {
+            out.write(data, i, Math.min(1000, data.length - i));
+        }
+        out.seek(8);
+        out.writeInt(0x01020304);
+        out.close();
+
+        data[8] = 1;
+        data[9] = 2;
+        data[10] = 3;
+        data[11] = 4;
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertEquals(ChannelImageOutputStream.BUFFER_COUNT, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void releasesBuffersIfThreadCantBeCreated() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool();
+        ThreadFactory failing = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                throw new IllegalStateException("No threads");
+            }
+        };
+        try {
+            new ChannelImageOutputStream(folder.newFile("movie.avi"), BUFFER_SIZE, SyncPolicy.NONE, 1000,
+                    null, pool, failing);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(ChannelImageOutputStream.BUFFER_COUNT, pool.getPooledBuffers());
+    }
+}
@@ -0,0 +1,203 @@
+package recorder.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
+import org.monte.media.Format;
+import org.monte.media.avi.AVIWriter;
+import org.monte.media.math.Rational;
+
+import javax.imageio.stream.FileImageOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.monte.media.VideoFormatKeys.*;
+
+/**
+ * Writes frames of odd and even sizes through an {@link IndexingMovieWriter}
+ * into an AVI file and reads them back with the {@link SeekIndex}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class SeekIndexTest {
+    /**
+     * Sizes of the frames, the frames 0 and 3 are key frames.
+     */
+    private static final int[] SIZES = {5, 8, 3, 10, 7};
+    /**
+     * Size of the header of an AVI chunk, the id and the size.
+     */
+    private static final int CHUNK_HEADER = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexesFramesOfMovie() throws IOException {
+        File movie = writeMovie("movie.avi");
+        SeekIndex index = SeekIndex.open(movie);
+        assertEquals(SIZES.length, index.size());
+        FileChannel channel = new FileInputStream(movie).getChannel();
+        try {
+            for (int i = 0; i < SIZES.length; i++) {
+                assertEquals(i * 100000L, index.getTime(i));
+                assertEquals(SIZES[i], index.getSize(i));
+                assertEquals(i == 0 || i == 3, index.isKeyFrame(i));
+                assertArrayEquals("frame " + i, frameData(i), index.readFrame(channel, i));
+                if (i > 0) {
+                    // The chunk of an odd size is followed by a pad byte
+                    assertEquals(index.getOffset(i - 1) + SIZES[i - 1] + (SIZES[i - 1] & 1) + CHUNK_HEADER,
+                            index.getOffset(i));
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        assertEquals(400000, index.getDuration());
+    }
+
+    @Test
+    public void findsFramesAndKeyFrames() throws IOException {
+        SeekIndex index = SeekIndex.open(writeMovie("movie.avi"));
+        // Before the first frame
+        assertEquals(0, index.findFrame(-1));
+        assertEquals(0, index.findKeyFrame(-1));
+        assertEquals(0, index.findFrame(0));
+        // Between the key frames
+        assertEquals(2, index.findFrame(250000));
+        assertEquals(0, index.findKeyFrame(250000));
+        assertEquals(3, index.findFrame(300000));
+        assertEquals(3, index.findKeyFrame(300000));
+        // After the last frame
+        assertEquals(4, index.findFrame(10000000));
+        assertEquals(3, index.findKeyFrame(10000000));
+    }
+
+    @Test
+    public void ignoresPartialEntry() throws IOException {
+        File movie = writeMovie("movie.avi");
+        File truncated = new File(folder.getRoot(), "truncated.avi");
+        byte[] data = Files.readAllBytes(SeekIndex.getIndexFile(movie).toPath());
+        // Two entries and a part of the third one
+        writeFile(SeekIndex.getIndexFile(truncated), Arrays.copyOf(data,
+                SeekIndex.HEADER_SIZE + 2 * SeekIndex.ENTRY_SIZE + 10));
+        SeekIndex index = SeekIndex.open(truncated);
+        assertEquals(2, index.size());
+        assertEquals(1, index.findFrame(10000000));
+        assertEquals(0, index.findKeyFrame(10000000));
+        assertEquals(100000, index.getDuration());
+    }
+
+    @Test
+    public void findsNothingInEmptyIndex() throws IOException {
+        File movie = new File(folder.getRoot(), "empty.avi");
+        writeIndex(movie, new int[0]);
+        SeekIndex index = SeekIndex.open(movie);
+        assertEquals(0, index.size());
+        assertEquals(0, index.getDuration());
+        assertEquals(-1, index.findFrame(0));
+        assertEquals(-1, index.findKeyFrame(0));
+    }
+
+    @Test
+    public void findsNoKeyFrameInIndexWithoutKeyFrames() throws IOException {
+        File movie = new File(folder.getRoot(), "delta.avi");
+        writeIndex(movie, new int[]{0, 0, 0});
+        SeekIndex index = SeekIndex.open(movie);
+        assertEquals(3, index.size());
+        assertEquals(1, index.findFrame(1500));
+        assertEquals(-1, index.findKeyFrame(1500));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File movie = new File(folder.getRoot(), "other.avi");
+        writeFile(SeekIndex.getIndexFile(movie), new byte[]{'R', 'I', 'F', 'F', 0, 0, 0, 0});
+        try {
+            SeekIndex.open(movie);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        writeFile(SeekIndex.getIndexFile(movie), new byte[]{'B', 'R'});
+        try {
+            SeekIndex.open(movie);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File writeMovie(String name) throws IOException {
+        File movie = new File(folder.getRoot(), name);
+        FileImageOutputStream out = new FileImageOutputStream(movie);
+        AVIWriter avi = new AVIWriter(out);
+        Format format = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, WidthKey, 4, HeightKey, 4, DepthKey, 24,
+                FrameRateKey, new Rational(10, 1));
+        int track = avi.addTrack(format);
+        IndexingMovieWriter writer = new IndexingMovieWriter(avi, out, movie, track, true, SyncPolicy.NONE);
+        try {
+            for (int i = 0; i < SIZES.length; i++) {
+                Buffer buf = new Buffer();
+                buf.format = format;
+                buf.data = frameData(i);
+                buf.length = SIZES[i];
+                buf.sampleDuration = new Rational(1, 10);
+                if (i == 0 || i == 3) {
+                    buf.setFlag(BufferFlag.KEYFRAME);
+                }
+                writer.write(track, buf);
+            }
+        } finally {
+            writer.close();
+        }
+        return movie;
+    }
+
+    private static byte[] frameData(int frame) {
+        byte[] data = new byte[SIZES[frame]];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (frame * 16 + i);
+        }
+        return data;
+    }
+
+    /**
+     * Writes an index with an entry of a millisecond for each of the flags.
+     */
+    private static void writeIndex(File movie, int[] flags) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(SeekIndex.getIndexFile(movie)));
+        try {
+            out.writeInt(SeekIndex.MAGIC);
+            out.writeInt(SeekIndex.VERSION);
+            for (int i = 0; i < flags.length; i++) {
+                out.writeLong(i * 1000L);
+                out.writeLong(100 + i * 20);
+                out.writeInt(12);
+                out.writeInt(flags[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package recorder.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the playlist file and the retention limit of {@link SegmentPlaylist}.
+ *
+ * Copyright (c) Nikolay Soloviev. All rights reserved.
+ * @author Nikolay Soloviev <psolberger@gmail.com>
+ */
+public class SegmentPlaylistTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsTargetDuration() throws IOException {
+        File playlistFile = new File(folder.getRoot(), "recording.m3u8");
+        SegmentPlaylist playlist = new SegmentPlaylist(playlistFile, 0, 10500);
+        assertTrue(read(playlistFile).contains("#EXT-X-TARGETDURATION:11"));
+
+        File first = folder.newFile("recording.avi");
+        File second = folder.newFile("recording_1.avi");
+        playlist.segmentFinished(first, 10.2);
+        playlist.segmentFinished(second, 10.9);
+        // The second segment is closed first, it is listed after the first
+        playlist.segmentClosed(second);
+        assertEquals(0, playlist.getSegments().size());
+        playlist.segmentClosed(first);
+        playlist.finish();
+
+        List<String> lines = read(playlistFile);
+        assertEquals(Arrays.asList("#EXTM3U", "#EXT-X-VERSION:3", "#EXT-X-TARGETDURATION:11",
+                "#EXT-X-MEDIA-SEQUENCE:0", "#EXTINF:10.200,", "recording.avi", "#EXTINF:10.900,",
+                "recording_1.avi", "#EXT-X-ENDLIST"), lines);
+    }
+
+    @Test
+    public void deletesSegmentsOverRetention() throws IOException {
+        File playlistFile = new File(folder.getRoot(), "recording.m3u8");
+        SegmentPlaylist playlist = new SegmentPlaylist(playlistFile, 2, 5000);
+        File[] files = new File[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = folder.newFile("recording_" + i + ".avi");
+            assertTrue(SeekIndex.getIndexFile(files[i]).createNewFile());
+            playlist.segmentFinished(files[i], 5);
+            playlist.segmentClosed(files[i]);
+        }
+        assertEquals(Arrays.asList(files[2], files[3]), playlist.getSegments());
+        assertFalse(files[0].exists());
+        assertFalse(SeekIndex.getIndexFile(files[1]).exists());
+        assertTrue(files[2].exists());
+        assertTrue(read(playlistFile).contains("#EXT-X-MEDIA-SEQUENCE:2"));
+        assertTrue(read(playlistFile).contains("#EXT-X-TARGETDURATION:5"));
+    }
+
+    private static List<String> read(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+}